@@ -0,0 +1,76 @@
+package com.lyft.data.gateway.ha.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of blocking calls, such as probing every backend for a query id or polling every
+ * cluster, on the fixed platform pools the gateway used to size these paths with against
+ * virtual threads. Sample time gives the burst latency percentiles, its inverse the throughput.
+ * Must run on JDK 21 or later for the virtual mode to actually use virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingExecutorsBenchmark {
+  // Thread count of the fixed pools, the cluster monitor used 10
+  private static final int PLATFORM_THREADS = 10;
+
+  @Param({"platform", "virtual"})
+  public String threads;
+
+  // Blocking calls in flight at once
+  @Param({"10", "100", "1000"})
+  public int burst;
+
+  // Time each call blocks, as a backend round trip would
+  @Param({"5"})
+  public int blockingMillis;
+
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    BlockingExecutors executors = BlockingExecutors.forConfiguration("virtual".equals(threads));
+    executor = executors.newFixedExecutor("benchmark", PLATFORM_THREADS);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public void blockingBurst() throws Exception {
+    List<Future<?>> calls = new ArrayList<>(burst);
+    for (int i = 0; i < burst; i++) {
+      calls.add(executor.submit(() -> {
+        Thread.sleep(blockingMillis);
+        return null;
+      }));
+    }
+    for (Future<?> call : calls) {
+      call.get();
+    }
+  }
+}
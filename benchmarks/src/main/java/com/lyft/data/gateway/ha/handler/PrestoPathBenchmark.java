@@ -0,0 +1,85 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request classification and query id parsing of PrestoPath against the split based parsing it
+ * replaced. Run with -prof gc to compare allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrestoPathBenchmark {
+  @Param({
+      "/v1/statement",
+      "/v1/statement/executing/20201221_000000_00000_abcde/y6d7b6f1/2",
+      "/v1/query/20201221_000000_00000_abcde",
+      "/ui/api/stats",
+      "/entity"})
+  public String path;
+
+  @Benchmark
+  public void legacy(Blackhole blackhole) {
+    blackhole.consume(legacyIsPathWhiteListed(path));
+    blackhole.consume(legacyExtractQueryIdIfPresent(path, null));
+  }
+
+  @Benchmark
+  public void classifier(Blackhole blackhole) {
+    PrestoPath.Kind kind = PrestoPath.classify(path);
+    blackhole.consume(kind.isLoadBalanced());
+    blackhole.consume(PrestoPath.locateQueryId(path, kind));
+  }
+
+  @Benchmark
+  public void classifierWithQueryIdString(Blackhole blackhole) {
+    blackhole.consume(PrestoPath.classify(path).isLoadBalanced());
+    blackhole.consume(PrestoPath.queryId(path, null));
+  }
+
+  // QueryIdCachingProxyHandler before PrestoPath
+
+  private static boolean legacyIsPathWhiteListed(String path) {
+    return path.startsWith(QueryIdCachingProxyHandler.V1_STATEMENT_PATH)
+        || path.startsWith(QueryIdCachingProxyHandler.V1_QUERY_PATH)
+        || path.startsWith(QueryIdCachingProxyHandler.PRESTO_UI_PATH)
+        || path.startsWith(QueryIdCachingProxyHandler.V1_INFO_PATH)
+        || path.startsWith(QueryIdCachingProxyHandler.UI_API_STATS_PATH);
+  }
+
+  private static String legacyExtractQueryIdIfPresent(String path, String queryParams) {
+    String queryId = null;
+    if (path.startsWith(QueryIdCachingProxyHandler.V1_STATEMENT_PATH)
+        || path.startsWith(QueryIdCachingProxyHandler.V1_QUERY_PATH)) {
+      String[] tokens = path.split("/");
+      if (tokens.length >= 4) {
+        if (path.contains("queued")
+            || path.contains("scheduled")
+            || path.contains("executing")
+            || path.contains("partialCancel")) {
+          queryId = tokens[4];
+        } else {
+          queryId = tokens[3];
+        }
+      }
+    } else if (path.startsWith(QueryIdCachingProxyHandler.PRESTO_UI_PATH)) {
+      queryId = queryParams;
+    }
+    return queryId;
+  }
+}
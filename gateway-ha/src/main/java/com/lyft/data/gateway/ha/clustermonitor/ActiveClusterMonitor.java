@@ -3,125 +3,218 @@ package com.lyft.data.gateway.ha.clustermonitor;
 import static com.lyft.data.gateway.ha.handler.QueryIdCachingProxyHandler.UI_API_STATS_PATH;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.lyft.data.gateway.ha.concurrent.BlockingExecutors;
+import com.lyft.data.gateway.ha.config.ClusterMonitorConfiguration;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
-import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
-import com.lyft.data.gateway.ha.router.GatewayBackendManager;
-import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
 import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingSnapshot;
 
 import io.dropwizard.lifecycle.Managed;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 import org.apache.http.HttpStatus;
 
 /**
- * This class creates a thread that runs every 5 seconds
- * and queries all backends and updates the routing
- * table based on that information.
+ * This class polls all active backends for their stats, each on its own schedule: see
+ * {@link PollIntervalPolicy}. Polls are asynchronous and each must complete within a deadline,
+ * so a slow backend delays nobody but itself. The stats of a backend are handed to the
+ * {@link PrestoClusterStatsObserver}s as soon as they arrive, along with the latest stats of the
+ * other backends. The list of backends to poll is refreshed at the regular poll interval.
+ * Observers are called one at a time on a thread of their own, in the order the stats arrived,
+ * so an observer that blocks holds back neither the polls nor the other backends' stats.
  */
 @Slf4j
 public class ActiveClusterMonitor implements Managed {
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
   private static final int BACKEND_CONNECT_TIMEOUT_SECONDS = 15;
-  private static final int MONITOR_TASK_DELAY_SECS = 5;
 
   @Inject private List<PrestoClusterStatsObserver> clusterStatsObservers;
-  @Inject private GatewayBackendManager gatewayBackendManager;
-  @Inject private RoutingGroupsManager routingGroupsManager;
   @Inject private RoutingManager routingManager;
+  @Inject private ClusterMonitorConfiguration configuration;
+  @Inject(optional = true) private BlockingExecutors blockingExecutors = BlockingExecutors.PLATFORM;
 
   private volatile boolean monitorActive = true;
 
   private OkHttpClient httpClient;
-  private ExecutorService executorService = Executors.newFixedThreadPool(10);
-  private ExecutorService singleTaskExecutor = Executors.newSingleThreadExecutor();
+  private PollIntervalPolicy pollIntervalPolicy;
+  // Timers only: poll deadlines and next polls, nothing blocking
+  private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  // Refreshes the backends to poll from the database, which may block for a while
+  private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("cluster-monitor-refresh")
+          .setDaemon(true)
+          .build());
+  // Poll schedules by backend name, of the backends monitored
+  private final Map<String, ClusterSchedule> schedules = new ConcurrentHashMap<>();
+  // Latest stats by backend name, of the backends monitored. Guarded by itself, which also keeps
+  // the notifications in the order of the updates.
+  private final Map<String, ClusterStats> latestStats = new LinkedHashMap<>();
+  private final ExecutorService notifier = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("cluster-monitor-notifier")
+          .setDaemon(true)
+          .build());
+  private volatile Set<String> monitoredClusters = Collections.emptySet();
+
+  public ActiveClusterMonitor() {
+  }
+
+  ActiveClusterMonitor(RoutingManager routingManager,
+      List<PrestoClusterStatsObserver> clusterStatsObservers,
+      ClusterMonitorConfiguration configuration) {
+    this.routingManager = routingManager;
+    this.clusterStatsObservers = clusterStatsObservers;
+    this.configuration = configuration;
+  }
+
+  /**
+   * Polls of one backend. A backend is polled once at a time, the next poll is scheduled when
+   * the previous one completes.
+   */
+  private static final class ClusterSchedule {
+    private volatile ProxyBackendConfiguration backend;
+    private volatile long intervalMillis;
+    private volatile ClusterStats lastStats;
+    private volatile Call pendingPoll;
+    private volatile ScheduledFuture<?> nextPoll;
+
+    ClusterSchedule(ProxyBackendConfiguration backend) {
+      this.backend = backend;
+    }
+
+    void cancel() {
+      ScheduledFuture<?> poll = nextPoll;
+      if (poll != null) {
+        poll.cancel(false);
+      }
+      Call call = pendingPoll;
+      if (call != null) {
+        call.cancel();
+      }
+    }
+  }
 
   /**
    * Run an app that queries all active presto clusters for stats.
    */
   public void start() {
     // Build http client
+    Dispatcher dispatcher = new Dispatcher(blockingExecutors.newCachedExecutor("cluster-monitor"));
+    // Backends may share a host, they must not wait on each other
+    dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
     OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
+    clientBuilder.dispatcher(dispatcher);
     clientBuilder.writeTimeout(BACKEND_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     clientBuilder.readTimeout(BACKEND_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     httpClient = clientBuilder.build();
 
-    singleTaskExecutor.submit(
-        () -> {
-          while (monitorActive) {
-            try {
-              List<ProxyBackendConfiguration> clusters = gatewayBackendManager.getAllBackends();
-
-              List<RoutingGroupConfiguration> routingGroups = routingGroupsManager
-                  .getAllRoutingGroups(clusters);
-
-              // Update saved information about routing groups and clusters
-              routingManager.updateRoutingGroups(routingGroups);
-              routingManager.updateBackendProxyMap(clusters);
-
-              // Service all active cluster in unpaused routing groups
-              List<ProxyBackendConfiguration> clustersToService = clusters.stream()
-                  .filter(ProxyBackendConfiguration::isActive)
-                  .filter(cluster -> {
-                    return routingGroupsManager
-                           .isRoutingGroupActive(routingGroups, cluster.getRoutingGroup());
-                  }).collect(Collectors.toList());
-
-              List<Future<ClusterStats>> futures = new ArrayList<>();
-              for (ProxyBackendConfiguration backend : clustersToService) {
-                Future<ClusterStats> call =
-                    executorService.submit(() -> getPrestoClusterStats(backend));
-                futures.add(call);
-              }
-
-              List<ClusterStats> stats = new ArrayList<>();
-              for (Future<ClusterStats> clusterStatsFuture : futures) {
-                ClusterStats clusterStats = clusterStatsFuture.get();
-                stats.add(clusterStats);
-              }
-
-              if (clusterStatsObservers != null) {
-                for (PrestoClusterStatsObserver observer : clusterStatsObservers) {
-                  observer.observe(stats);
-                }
-              }
-            } catch (Exception e) {
-              log.error("Error performing backend monitor tasks", e);
-            }
-
-            try {
-              Thread.sleep(MONITOR_TASK_DELAY_SECS * 1000);
-            } catch (Exception e) {
-              log.error("Error with monitor task", e);
-            }
-          }
-        });
+    pollIntervalPolicy = new PollIntervalPolicy(configuration);
+    refresher.scheduleWithFixedDelay(this::refreshClusters, 0,
+        pollIntervalPolicy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void refreshClusters() {
+    try {
+      // Update saved information about routing groups and clusters
+      RoutingSnapshot snapshot = routingManager.refreshRoutingSnapshot();
+
+      // Service all active cluster in unpaused routing groups
+      List<ProxyBackendConfiguration> clustersToService = snapshot.getAllBackends()
+          .stream()
+          .filter(ProxyBackendConfiguration::isActive)
+          .filter(cluster -> snapshot.isRoutingGroupActive(cluster.getRoutingGroup()))
+          .collect(Collectors.toList());
+
+      retainClusters(clustersToService.stream()
+          .map(ProxyBackendConfiguration::getName)
+          .collect(Collectors.toSet()));
+
+      for (ProxyBackendConfiguration backend : clustersToService) {
+        ClusterSchedule schedule = schedules.get(backend.getName());
+        if (schedule == null) {
+          // Newly monitored, poll right away
+          schedule = new ClusterSchedule(backend);
+          schedules.put(backend.getName(), schedule);
+          pollCluster(schedule);
+        } else {
+          schedule.backend = backend;
+        }
+      }
+    } catch (Exception e) {
+      log.error("Error performing backend monitor tasks", e);
+    }
+  }
+
+  private boolean isMonitored(ClusterSchedule schedule) {
+    return monitorActive && schedules.get(schedule.backend.getName()) == schedule;
+  }
+
+  private void pollCluster(ClusterSchedule schedule) {
+    if (isMonitored(schedule)) {
+      pollClusterStats(schedule);
+    }
+  }
+
+  private void scheduleNextPoll(ClusterSchedule schedule, ClusterStats clusterStats) {
+    schedule.intervalMillis = pollIntervalPolicy.nextIntervalMillis(
+        schedule.intervalMillis, schedule.lastStats, clusterStats);
+    schedule.lastStats = clusterStats;
+    if (!isMonitored(schedule)) {
+      return;
+    }
+    try {
+      schedule.nextPoll = scheduler.schedule(() -> pollCluster(schedule),
+          schedule.intervalMillis, TimeUnit.MILLISECONDS);
+      log.debug("Next poll of [{}] in [{}] ms", schedule.backend.getName(),
+          schedule.intervalMillis);
+    } catch (RejectedExecutionException e) {
+      log.debug("Monitor stopped, no more polls of [{}]", schedule.backend.getName());
+    }
+  }
+
+  private void completePoll(ClusterSchedule schedule, ClusterStats clusterStats) {
+    schedule.pendingPoll = null;
+    publish(clusterStats);
+    scheduleNextPoll(schedule, clusterStats);
   }
 
   /**
-   * Sends an HTTP request to a backend to get information about
-   * the current status of the backend and returns it.
-   * 
-   * @param backend Backend to get information about
-   * @return A {@link ClusterStats} variable with information about the backend
+   * Sends an HTTP request to a backend to get information about the current status of the
+   * backend, and publishes it once the response is in.
+   *
+   * @param schedule Polls of the backend to get information about
    */
-  private ClusterStats getPrestoClusterStats(ProxyBackendConfiguration backend) {
-    ClusterStats clusterStats = new ClusterStats();
-    clusterStats.setClusterId(backend.getName());
-    clusterStats.setHealthy(false);
+  private void pollClusterStats(ClusterSchedule schedule) {
+    ProxyBackendConfiguration backend = schedule.backend;
 
     // The V1_NODE_PATH is used in 331 while V1_CLUSTER_PATH is used in 318
     // TODO: Remove V1_CLUSTER_PATH once we're upgraded all clusters.
@@ -135,49 +228,152 @@ public class ActiveClusterMonitor implements Managed {
     }
 
     String target = backend.getProxyTo() + dynpath;
-    
+
+    Call call;
     try {
       // Build http request
       Request request = new Request.Builder()
           .get()
           .url(target)
           .build();
-      
-      // Send http request
-      Response response = httpClient.newCall(request).execute();
-
-      // Parse response
-      if (response.code() == HttpStatus.SC_OK) {
-        clusterStats.setHealthy(true);
-
-        HashMap<String, Object> result = 
-            OBJECT_MAPPER.readValue(response.body().string(), HashMap.class);
-
-        clusterStats.setNumWorkerNodes((int) result.get("activeWorkers"));
-        clusterStats.setQueuedQueryCount((int) result.get("queuedQueries"));
-        clusterStats.setRunningQueryCount((int) result.get("runningQueries"));
-        clusterStats.setBlockedQueryCount((int) result.get("blockedQueries"));
-        clusterStats.setProxyTo(backend.getProxyTo());
-        clusterStats.setRoutingGroup(backend.getRoutingGroup());
-        log.info("Host: {}, Cluster_stat: {}", System.getenv("HOSTNAME"), clusterStats);
-      } else {
-        log.error("Received non 200 response, response code: " 
-            + "{} when fetching cluster stats from [{}]", response.code(), target);
-      }
+      call = httpClient.newCall(request);
     } catch (Exception e) {
-      clusterStats.setHealthy(false);
       log.error("Error fetching cluster stats from [{}]", target, e);
+      completePoll(schedule, unhealthyClusterStats(backend));
+      return;
     }
 
+    schedule.pendingPoll = call;
+    ScheduledFuture<?> deadline = scheduler.schedule(call::cancel,
+        configuration.getPollDeadlineMillis(), TimeUnit.MILLISECONDS);
+
+    // Send http request
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        deadline.cancel(false);
+        log.error("Error fetching cluster stats from [{}]", target, e);
+        completePoll(schedule, unhealthyClusterStats(backend));
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        deadline.cancel(false);
+        ClusterStats clusterStats;
+        try (ResponseBody body = response.body()) {
+          clusterStats = parseClusterStats(backend, target, response.code(), body);
+        } catch (Exception e) {
+          log.error("Error fetching cluster stats from [{}]", target, e);
+          clusterStats = unhealthyClusterStats(backend);
+        }
+        completePoll(schedule, clusterStats);
+      }
+    });
+  }
+
+  private static ClusterStats unhealthyClusterStats(ProxyBackendConfiguration backend) {
+    ClusterStats clusterStats = new ClusterStats();
+    clusterStats.setClusterId(backend.getName());
+    clusterStats.setHealthy(false);
+    return clusterStats;
+  }
+
+  private static ClusterStats parseClusterStats(ProxyBackendConfiguration backend, String target,
+      int responseCode, ResponseBody body) throws IOException {
+    ClusterStats clusterStats = unhealthyClusterStats(backend);
+
+    // Parse response
+    if (responseCode == HttpStatus.SC_OK) {
+      clusterStats.setHealthy(true);
+
+      HashMap<String, Object> result =
+          OBJECT_MAPPER.readValue(body.string(), HashMap.class);
+
+      clusterStats.setNumWorkerNodes((int) result.get("activeWorkers"));
+      clusterStats.setQueuedQueryCount((int) result.get("queuedQueries"));
+      clusterStats.setRunningQueryCount((int) result.get("runningQueries"));
+      clusterStats.setBlockedQueryCount((int) result.get("blockedQueries"));
+      clusterStats.setProxyTo(backend.getProxyTo());
+      clusterStats.setRoutingGroup(backend.getRoutingGroup());
+      // Logged on every poll, which adaptive polling makes frequent
+      log.debug("Host: {}, Cluster_stat: {}", System.getenv("HOSTNAME"), clusterStats);
+    } else {
+      log.error("Received non 200 response, response code: "
+          + "{} when fetching cluster stats from [{}]", responseCode, target);
+    }
     return clusterStats;
   }
 
+  /**
+   * Forgets the stats of backends no longer monitored.
+   */
+  private void retainClusters(Set<String> monitoredClusters) {
+    synchronized (latestStats) {
+      this.monitoredClusters = monitoredClusters;
+      if (latestStats.keySet().retainAll(monitoredClusters)) {
+        List<ClusterStats> stats = ImmutableList.copyOf(latestStats.values());
+        notifyObservers(observer -> observer.observe(stats));
+      }
+    }
+    Iterator<Map.Entry<String, ClusterSchedule>> iterator = schedules.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, ClusterSchedule> entry = iterator.next();
+      if (!monitoredClusters.contains(entry.getKey())) {
+        iterator.remove();
+        entry.getValue().cancel();
+      }
+    }
+  }
+
+  private void publish(ClusterStats clusterStats) {
+    if (!monitorActive || clusterStats == null) {
+      return;
+    }
+    synchronized (latestStats) {
+      if (!monitoredClusters.contains(clusterStats.getClusterId())) {
+        // Polled before the backend was deactivated
+        return;
+      }
+      latestStats.put(clusterStats.getClusterId(), clusterStats);
+      List<ClusterStats> stats = ImmutableList.copyOf(latestStats.values());
+      notifyObservers(observer -> observer.observe(clusterStats, stats));
+    }
+  }
+
+  /**
+   * Hands a notification to the observers, on the notifier thread. Called under the latestStats
+   * lock, so notifications are queued in the order of the updates.
+   */
+  private void notifyObservers(Consumer<PrestoClusterStatsObserver> action) {
+    if (clusterStatsObservers == null) {
+      return;
+    }
+    try {
+      notifier.execute(() -> {
+        for (PrestoClusterStatsObserver observer : clusterStatsObservers) {
+          try {
+            action.accept(observer);
+          } catch (Exception e) {
+            log.error("Error publishing cluster stats to [{}]", observer.getClass().getName(), e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.debug("Monitor stopped, cluster stats not published");
+    }
+  }
+
   /**
    * Shut down the app.
    */
   public void stop() {
     this.monitorActive = false;
-    this.executorService.shutdown();
-    this.singleTaskExecutor.shutdown();
+    this.refresher.shutdownNow();
+    this.scheduler.shutdownNow();
+    this.notifier.shutdown();
+    schedules.values().forEach(ClusterSchedule::cancel);
+    if (httpClient != null) {
+      httpClient.dispatcher().executorService().shutdown();
+    }
   }
 }
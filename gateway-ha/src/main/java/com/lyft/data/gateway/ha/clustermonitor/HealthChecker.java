@@ -14,15 +14,25 @@ public class HealthChecker implements PrestoClusterStatsObserver {
   @Override
   public void observe(List<ClusterStats> clustersStats) {
     for (ClusterStats clusterStats : clustersStats) {
-      if (!clusterStats.isHealthy()) {
-        notifyUnhealthyCluster(clusterStats);
-      } else {
-        if (clusterStats.getQueuedQueryCount() > MAX_THRESHOLD_QUEUED_QUERY_COUNT) {
-          notifyForTooManyQueuedQueries(clusterStats);
-        }
-        if (clusterStats.getNumWorkerNodes() < 1) {
-          notifyForNoWorkers(clusterStats);
-        }
+      checkCluster(clusterStats);
+    }
+  }
+
+  @Override
+  public void observe(ClusterStats polled, List<ClusterStats> latestStats) {
+    // Only the polled cluster has news, the others were checked when they were polled
+    checkCluster(polled);
+  }
+
+  private void checkCluster(ClusterStats clusterStats) {
+    if (!clusterStats.isHealthy()) {
+      notifyUnhealthyCluster(clusterStats);
+    } else {
+      if (clusterStats.getQueuedQueryCount() > MAX_THRESHOLD_QUEUED_QUERY_COUNT) {
+        notifyForTooManyQueuedQueries(clusterStats);
+      }
+      if (clusterStats.getNumWorkerNodes() < 1) {
+        notifyForNoWorkers(clusterStats);
       }
     }
   }
@@ -0,0 +1,33 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+/**
+ * How the load of a cluster, as used for queue length based routing, is computed from its stats.
+ * Lower is less loaded.
+ */
+public enum LoadFormula {
+  // Queued queries only
+  QUEUED {
+    @Override
+    public int load(ClusterStats stats) {
+      return stats.getQueuedQueryCount();
+    }
+  },
+  // Queued and running queries
+  QUEUED_AND_RUNNING {
+    @Override
+    public int load(ClusterStats stats) {
+      return stats.getQueuedQueryCount() + stats.getRunningQueryCount();
+    }
+  },
+  // Queued and running queries per 100 workers, so bigger clusters take proportionally more
+  PER_100_WORKERS {
+    @Override
+    public int load(ClusterStats stats) {
+      int workers = Math.max(1, stats.getNumWorkerNodes());
+      long queries = (long) stats.getQueuedQueryCount() + stats.getRunningQueryCount();
+      return (int) Math.min(Integer.MAX_VALUE, (queries * 100 + workers - 1) / workers);
+    }
+  };
+
+  public abstract int load(ClusterStats stats);
+}
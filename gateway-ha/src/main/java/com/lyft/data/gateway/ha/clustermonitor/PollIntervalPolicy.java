@@ -0,0 +1,74 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import com.lyft.data.gateway.ha.config.ClusterMonitorConfiguration;
+
+/**
+ * Decides when a cluster is polled next, from its last two polls. Clusters whose queue grows,
+ * and clusters just activated or back to health, are polled at the minimum interval so routing
+ * catches up with them quickly. Idle and unhealthy clusters back off towards the maximum
+ * interval, busy but stable clusters are polled at the regular interval.
+ */
+public class PollIntervalPolicy {
+  private final long minIntervalMillis;
+  private final long intervalMillis;
+  private final long maxIntervalMillis;
+
+  public PollIntervalPolicy(ClusterMonitorConfiguration configuration) {
+    this(configuration.getMinPollIntervalMillis(), configuration.getPollIntervalMillis(),
+        configuration.getMaxPollIntervalMillis());
+  }
+
+  /**
+   * Creates a policy with the given bounds.
+   *
+   * @param minIntervalMillis interval of clusters that need fresh stats
+   * @param intervalMillis regular interval
+   * @param maxIntervalMillis interval of idle and unhealthy clusters
+   */
+  public PollIntervalPolicy(long minIntervalMillis, long intervalMillis, long maxIntervalMillis) {
+    if (minIntervalMillis <= 0 || minIntervalMillis > intervalMillis
+        || intervalMillis > maxIntervalMillis) {
+      throw new IllegalArgumentException(String.format("Poll intervals must satisfy "
+          + "0 < min (%d) <= regular (%d) <= max (%d)",
+          minIntervalMillis, intervalMillis, maxIntervalMillis));
+    }
+    this.minIntervalMillis = minIntervalMillis;
+    this.intervalMillis = intervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Interval until the next poll of a cluster.
+   *
+   * @param currentIntervalMillis interval that led to the latest poll, 0 for the first poll
+   * @param previous stats of the poll before, null if there was none
+   * @param latest stats of the latest poll
+   */
+  public long nextIntervalMillis(long currentIntervalMillis, ClusterStats previous,
+      ClusterStats latest) {
+    if (!isUsable(latest)) {
+      return backOff(currentIntervalMillis);
+    }
+    if (previous == null || !isUsable(previous)
+        || latest.getQueuedQueryCount() > previous.getQueuedQueryCount()) {
+      return minIntervalMillis;
+    }
+    if (latest.getQueuedQueryCount() == 0 && latest.getRunningQueryCount() == 0) {
+      return backOff(currentIntervalMillis);
+    }
+    // Busy but not growing, ease back to the regular interval
+    return Math.min(intervalMillis, Math.max(minIntervalMillis, currentIntervalMillis * 2));
+  }
+
+  private long backOff(long currentIntervalMillis) {
+    return Math.min(maxIntervalMillis, Math.max(intervalMillis, currentIntervalMillis * 2));
+  }
+
+  private static boolean isUsable(ClusterStats stats) {
+    return stats.isHealthy() && stats.getNumWorkerNodes() > 0;
+  }
+}
@@ -5,4 +5,15 @@ import java.util.List;
 public interface PrestoClusterStatsObserver {
 
   void observe(List<ClusterStats> stats);
+
+  /**
+   * Called by {@link ActiveClusterMonitor} as soon as the stats of a single cluster are polled.
+   * By default the latest stats of all clusters are passed on to {@link #observe(List)}.
+   *
+   * @param polled stats just polled
+   * @param latestStats latest stats of every monitored cluster, polled included
+   */
+  default void observe(ClusterStats polled, List<ClusterStats> latestStats) {
+    observe(latestStats);
+  }
 }
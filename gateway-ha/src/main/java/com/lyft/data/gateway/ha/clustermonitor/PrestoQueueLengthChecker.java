@@ -1,6 +1,8 @@
 package com.lyft.data.gateway.ha.clustermonitor;
 
+import com.google.common.collect.ImmutableMap;
 import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,14 +10,31 @@ import java.util.Map;
 /**
  * Updates the QueueLength Based Routing Manager
  * {@link PrestoQueueLengthRoutingTable} with
- * updated queue lengths of active clusters.
+ * updated queue lengths of active clusters. The queue length of a cluster is its load as computed
+ * by the {@link LoadFormula} of its routing group.
  */
 public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
 
   PrestoQueueLengthRoutingTable routingManager;
+  private final LoadFormula defaultLoadFormula;
+  private final Map<String, LoadFormula> routingGroupLoadFormulas;
 
   public PrestoQueueLengthChecker(PrestoQueueLengthRoutingTable routingManager) {
+    this(routingManager, LoadFormula.QUEUED, ImmutableMap.of());
+  }
+
+  /**
+   * Creates a checker computing loads with the given formulas.
+   *
+   * @param routingManager routing table to update
+   * @param defaultLoadFormula formula of routing groups without one of their own
+   * @param routingGroupLoadFormulas formulas by routing group
+   */
+  public PrestoQueueLengthChecker(PrestoQueueLengthRoutingTable routingManager,
+      LoadFormula defaultLoadFormula, Map<String, LoadFormula> routingGroupLoadFormulas) {
     this.routingManager = routingManager;
+    this.defaultLoadFormula = defaultLoadFormula;
+    this.routingGroupLoadFormulas = ImmutableMap.copyOf(routingGroupLoadFormulas);
   }
 
   /**
@@ -26,6 +45,19 @@ public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
    */
   @Override
   public void observe(List<ClusterStats> stats) {
+    routingManager.updateRoutingTable(buildClusterQueueMap(stats));
+  }
+
+  /**
+   * Updates the routing table with the latest queue lengths, of which only the polled one is new.
+   */
+  @Override
+  public void observe(ClusterStats polled, List<ClusterStats> latestStats) {
+    routingManager.updateRoutingTable(buildClusterQueueMap(latestStats),
+        Collections.singleton(polled.getClusterId()));
+  }
+
+  private Map<String, Map<String, Integer>> buildClusterQueueMap(List<ClusterStats> stats) {
     Map<String, Map<String, Integer>> clusterQueueMap = 
         new HashMap<String, Map<String, Integer>>();
 
@@ -35,10 +67,11 @@ public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
         clusterQueueMap.putIfAbsent(stat.getRoutingGroup(), new HashMap<String, Integer>());
 
         clusterQueueMap.get(stat.getRoutingGroup())
-                       .put(stat.getClusterId(), stat.getQueuedQueryCount());
+                       .put(stat.getClusterId(), routingGroupLoadFormulas
+                           .getOrDefault(stat.getRoutingGroup(), defaultLoadFormula).load(stat));
       }
     }
 
-    routingManager.updateRoutingTable(clusterQueueMap);
+    return clusterQueueMap;
   }
 }
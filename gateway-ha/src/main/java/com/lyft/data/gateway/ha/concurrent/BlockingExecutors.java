@@ -0,0 +1,114 @@
+package com.lyft.data.gateway.ha.concurrent;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates the executors running blocking I/O off the request threads: backend probes and polls,
+ * query id cache reloads. On JDK 21 and later they can run every task on its own virtual thread,
+ * so blocking calls are not capped by a pool size. The virtual thread API is looked up
+ * reflectively, the gateway still builds and runs on Java 8 where platform threads are used.
+ */
+@Slf4j
+public class BlockingExecutors {
+  public static final BlockingExecutors PLATFORM = new BlockingExecutors(null);
+
+  // Thread.ofVirtual(), Thread.Builder.name(String, long), Thread.Builder.factory() and
+  // Executors.newThreadPerTaskExecutor(ThreadFactory), null before JDK 21
+  private static final Method[] VIRTUAL_THREAD_API = lookUpVirtualThreadApi();
+
+  // Null for platform threads
+  private final Method[] virtualThreadApi;
+
+  private BlockingExecutors(Method[] virtualThreadApi) {
+    this.virtualThreadApi = virtualThreadApi;
+  }
+
+  /**
+   * Executors on virtual threads if asked for and the JVM has them, on platform threads
+   * otherwise.
+   */
+  public static BlockingExecutors forConfiguration(boolean virtualThreads) {
+    if (!virtualThreads) {
+      return PLATFORM;
+    }
+    if (VIRTUAL_THREAD_API == null) {
+      log.warn("Virtual threads need JDK 21 or later, running on {}, using platform threads",
+          System.getProperty("java.version"));
+      return PLATFORM;
+    }
+    log.info("Running blocking I/O on virtual threads");
+    return new BlockingExecutors(VIRTUAL_THREAD_API);
+  }
+
+  public static boolean isVirtualThreadSupported() {
+    return VIRTUAL_THREAD_API != null;
+  }
+
+  public boolean isVirtual() {
+    return virtualThreadApi != null;
+  }
+
+  /**
+   * Executor running each task on a new virtual thread, or on a cached pool of daemon platform
+   * threads.
+   *
+   * @param name prefix of the thread names
+   */
+  public ExecutorService newCachedExecutor(String name) {
+    if (virtualThreadApi == null) {
+      return Executors.newCachedThreadPool(platformThreadFactory(name));
+    }
+    return newThreadPerTaskExecutor(name);
+  }
+
+  /**
+   * Executor running each task on a new virtual thread, or on the given number of daemon platform
+   * threads. Tasks are only capped by the number of threads on platform threads.
+   *
+   * @param name prefix of the thread names
+   */
+  public ExecutorService newFixedExecutor(String name, int platformThreads) {
+    if (virtualThreadApi == null) {
+      return Executors.newFixedThreadPool(platformThreads, platformThreadFactory(name));
+    }
+    return newThreadPerTaskExecutor(name);
+  }
+
+  private static ThreadFactory platformThreadFactory(String name) {
+    return new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
+  }
+
+  private ExecutorService newThreadPerTaskExecutor(String name) {
+    try {
+      Object builder = virtualThreadApi[0].invoke(null);
+      builder = virtualThreadApi[1].invoke(builder, name + "-", 0L);
+      ThreadFactory threadFactory = (ThreadFactory) virtualThreadApi[2].invoke(builder);
+      return (ExecutorService) virtualThreadApi[3].invoke(null, threadFactory);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to create virtual threads", e);
+    }
+  }
+
+  private static Method[] lookUpVirtualThreadApi() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method[] api = {
+          Thread.class.getMethod("ofVirtual"),
+          builderClass.getMethod("name", String.class, long.class),
+          builderClass.getMethod("factory"),
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+      };
+      // Preview releases have the methods but fail calling them unless previews are enabled
+      api[0].invoke(null);
+      return api;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class ClusterMonitorConfiguration {
+  // Poll interval of a busy cluster whose queue is stable
+  private long pollIntervalMillis = 5000;
+
+  // Poll interval of a cluster whose queue is growing or that was just activated
+  private long minPollIntervalMillis = 500;
+
+  // Poll interval an idle or unhealthy cluster slows down to
+  private long maxPollIntervalMillis = 30000;
+
+  // A poll not complete by then is cancelled and the cluster reported unhealthy
+  private long pollDeadlineMillis = 15000;
+}
@@ -1,15 +1,35 @@
 package com.lyft.data.gateway.ha.config;
 
-import lombok.AllArgsConstructor;
+import java.util.concurrent.TimeUnit;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class DataStoreConfiguration {
   private String jdbcUrl;
   private String user;
   private String password;
   private String driver;
+
+  // Hand out connections from a pool instead of opening one per call
+  private boolean pooled = true;
+  private int maxPoolSize = 10;
+  private int minIdle = 2;
+  private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+  private long maxLifetimeMillis = TimeUnit.MINUTES.toMillis(30);
+  private long connectionTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+  private long validationTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+  // Only needed for drivers that do not support Connection.isValid()
+  private String validationQuery;
+
+  /**
+   * Data store with the default connection pool settings.
+   */
+  public DataStoreConfiguration(String jdbcUrl, String user, String password, String driver) {
+    this.jdbcUrl = jdbcUrl;
+    this.user = user;
+    this.password = password;
+    this.driver = driver;
+  }
 }
@@ -10,4 +10,11 @@ public class HaGatewayConfiguration extends AppConfiguration {
   private RequestRouterConfiguration requestRouter;
   private NotifierConfiguration notifier;
   private DataStoreConfiguration dataStore;
+  private QueryHistoryWriterConfiguration queryHistoryWriter =
+      new QueryHistoryWriterConfiguration();
+  private ClusterMonitorConfiguration clusterMonitor = new ClusterMonitorConfiguration();
+  private OutlierDetectionConfiguration outlierDetection = new OutlierDetectionConfiguration();
+  // Run blocking I/O off the request threads (backend stats polls, query id probes, query id
+  // cache reloads) on virtual threads. Needs JDK 21 or later, ignored on older JVMs.
+  private boolean virtualThreads = false;
 }
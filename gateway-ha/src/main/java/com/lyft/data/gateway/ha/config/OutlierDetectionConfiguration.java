@@ -0,0 +1,27 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class OutlierDetectionConfiguration {
+  // Eject backends that fail the queries proxied to them from routing, until their ejection ends
+  private boolean enabled = true;
+
+  // Length of the sliding window error rates and latencies are computed over
+  private long windowMillis = 10000;
+
+  // Requests a backend must have served in the window before its error rate counts...
+  private int minRequests = 20;
+
+  // ...and the rate of 5xx responses and connect failures that gets it ejected
+  private double maxErrorRate = 0.5;
+
+  // Connect failures in a row that get a backend ejected, whatever its traffic
+  private int consecutiveConnectFailures = 5;
+
+  // Length of the first ejection, it doubles with every ejection that follows soon after
+  private long baseEjectionMillis = 30000;
+
+  // Longest ejection, also how long a backend must go without ejection for the doubling to reset
+  private long maxEjectionMillis = 300000;
+}
@@ -11,4 +11,12 @@ import lombok.RequiredArgsConstructor;
 public class ProxyBackendConfiguration extends ProxyServerConfiguration {
   private boolean active = true;
   private String routingGroup = "adhoc";
+
+  // Connection pool of the gateway to this backend, null for the request router defaults
+  private Integer maxConnections;
+  // Requests waiting for a connection, beyond that they are rejected
+  private Integer maxQueuedRequests;
+  private Long connectionIdleTimeoutMillis;
+  // Connections opened when the backend is activated or first reported healthy
+  private Integer prewarmConnections;
 }
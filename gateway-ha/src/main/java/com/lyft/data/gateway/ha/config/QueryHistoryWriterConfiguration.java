@@ -0,0 +1,32 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class QueryHistoryWriterConfiguration {
+  // Save query history from a background writer instead of the proxy response thread
+  private boolean async = true;
+
+  // Max number of queries waiting to be written
+  private int queueCapacity = 10000;
+
+  // Queries are written once this many are waiting...
+  private int batchSize = 100;
+
+  // ...or this long after the last write, whichever comes first
+  private long flushIntervalMillis = 1000;
+
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD_NEWEST;
+
+  /**
+   * What to do with a query when the queue is full.
+   */
+  public enum OverflowPolicy {
+    // Drop the query being submitted
+    DISCARD_NEWEST,
+    // Drop the oldest waiting query to make room
+    DISCARD_OLDEST,
+    // Write the query synchronously on the submitting thread
+    CALLER_RUNS
+  }
+}
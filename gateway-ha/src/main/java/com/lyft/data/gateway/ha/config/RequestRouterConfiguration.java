@@ -1,9 +1,17 @@
 package com.lyft.data.gateway.ha.config;
 
+import com.lyft.data.gateway.ha.clustermonitor.LoadFormula;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import lombok.Data;
 
 @Data
 public class RequestRouterConfiguration {
+  public static final String QUEUE_LENGTH_ROUTING = "QUEUE_LENGTH";
+
   // Local gateway port
   private int port;
 
@@ -16,4 +24,92 @@ public class RequestRouterConfiguration {
   private String keystorePass;
 
   private int historySize = 2000;
+
+  // Buffer every request body instead of only statement submissions
+  private boolean bufferAllRequests = false;
+
+  // Jetty tuning of the router listener, see ProxyServerConfiguration. Long polling clients
+  // only hold a thread while their bytes are moved, connections and idle timeout are what grow
+  // with their number.
+  private int maxThreads = 200;
+  private int minThreads = 8;
+  private int threadIdleTimeoutMillis = 60000;
+  private int reservedThreads = -1;
+  private int acceptors = -1;
+  private int selectors = -1;
+  private int acceptQueueSize = 0;
+  private long idleTimeoutMillis = 30000;
+  private int outputBufferSize = 32768;
+  private int requestHeaderSize = 1048576;
+  private int responseHeaderSize = 8192;
+
+  // Experimental HTTP/2 on the router listener and to the backends, needs the http2 maven profile.
+  // Polling clients are multiplexed over a few connections instead of one each.
+  private boolean http2 = false;
+  private boolean http2ToBackends = false;
+
+  // Connection pool of each backend, backends can override them, see ProxyBackendConfiguration
+  private int backendMaxConnections = 256;
+  private int backendMaxQueuedRequests = 1024;
+  private long backendIdleTimeoutMillis = 30000;
+  // Connections opened when a backend is activated or first reported healthy, 0 to disable
+  private int backendPrewarmConnections = 4;
+
+  // Query ids whose backend is kept in memory, beyond that the least recently used are evicted
+  // and their next lookup goes to the query history or to the backends
+  private long queryIdCacheSize = 10000;
+
+  // Query ids not looked up for that long are dropped from the cache
+  private long queryIdCacheExpiryMinutes = 30;
+
+  // Cached backends older than that are looked up again in the background on their next read,
+  // 0 never looks them up again. Corrects query ids first seen before their history was written.
+  private long queryIdCacheRefreshMinutes = 0;
+
+  // Time to wait for a backend to claim a query id the gateway has no record of. All backends
+  // are asked at once.
+  private long queryIdDiscoveryTimeoutMillis = 5000;
+
+  // Query ids no backend claimed go to an adhoc backend without asking again for that long, so
+  // clients polling an expired query do not have every backend probed on each poll
+  private long unknownQueryIdTtlSeconds = 30;
+
+  // Other backends of the routing group a statement submission is sent to when its backend can
+  // not be connected to, before the client gets an error. 0 disables failover.
+  private int maxSubmissionRetries = 2;
+
+  // Route query polls on a signed backend token the gateway adds to the nextUri and
+  // partialCancelUri it hands out, instead of looking up their query id
+  private boolean statelessRouting = false;
+
+  // Secret signing backend tokens, shared by the gateways behind a load balancer. Without it
+  // every gateway process signs with its own random secret.
+  private String statelessRoutingSecret;
+
+  // Let trusted clients send X-Gateway-Direct-Coordinator: true to have only the submission of
+  // their queries proxied, the nextUri they get points at the coordinator and result pages are
+  // fetched from it directly. Coordinators must be reachable from the clients.
+  private boolean directCoordinatorHeaderAllowed = false;
+
+  // Routing groups all queries of which are polled from the coordinator directly
+  private Set<String> directCoordinatorRoutingGroups = new HashSet<>();
+
+  // How queries are spread over the backends of a routing group. QUEUE_LENGTH weighs backends
+  // by their polled queue lengths. Otherwise the name of a RoutingPolicy: RANDOM,
+  // LEAST_OUTSTANDING_QUERIES, POWER_OF_TWO_CHOICES or the class name of a custom policy.
+  private String routingPolicy = QUEUE_LENGTH_ROUTING;
+
+  // Load of a cluster for QUEUE_LENGTH routing: QUEUED, QUEUED_AND_RUNNING or PER_100_WORKERS
+  private LoadFormula loadFormula = LoadFormula.QUEUED;
+
+  // Load formula by routing group, for groups that differ from loadFormula
+  private Map<String, LoadFormula> routingGroupLoadFormulas = new HashMap<>();
+
+  // Weight of the latest poll in the smoothed queue length of a cluster, in (0, 1]. 1 routes on
+  // the latest poll alone.
+  private double queueLengthSmoothing = 1.0;
+
+  // Weight of the latest slope in the smoothed queue length trend, in [0, 1]. Above 0 clusters are
+  // weighed on their queue length predicted one poll interval ahead.
+  private double queueLengthTrendSmoothing = 0.0;
 }
@@ -0,0 +1,91 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns a backend address into an opaque token clients hand back on their next request, and
+ * back. Tokens are signed, a client can not make the gateway proxy to an address of its choice.
+ * Gateways sharing the secret understand each other's tokens.
+ */
+public class BackendTokenCodec {
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  // Truncated signature, plenty against forgery by clients that can not query the gateway offline
+  private static final int SIGNATURE_BYTES = 16;
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final SecretKeySpec key;
+  private final ThreadLocal<Mac> mac;
+
+  /**
+   * Creates a codec signing with the given secret.
+   *
+   * @param secret shared by all gateways of a deployment
+   */
+  public BackendTokenCodec(byte[] secret) {
+    if (secret == null || secret.length == 0) {
+      throw new IllegalArgumentException("The backend token secret must not be empty");
+    }
+    this.key = new SecretKeySpec(secret, MAC_ALGORITHM);
+    this.mac = ThreadLocal.withInitial(this::newMac);
+    // Fail right away on a JVM without the algorithm, not on the first request
+    newMac();
+  }
+
+  /**
+   * Creates a codec with a random secret, its tokens are only understood by this gateway process.
+   */
+  public static BackendTokenCodec withRandomSecret() {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    return new BackendTokenCodec(secret);
+  }
+
+  private Mac newMac() {
+    try {
+      Mac instance = Mac.getInstance(MAC_ALGORITHM);
+      instance.init(key);
+      return instance;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to sign backend tokens", e);
+    }
+  }
+
+  public String encode(String backend) {
+    byte[] address = backend.getBytes(StandardCharsets.UTF_8);
+    return ENCODER.encodeToString(address) + "." + ENCODER.encodeToString(sign(address));
+  }
+
+  /**
+   * Backend address carried by the token.
+   *
+   * @return the address, null if the token is malformed or was not signed with this secret
+   */
+  public String decode(String token) {
+    int separator = token == null ? -1 : token.indexOf('.');
+    if (separator <= 0) {
+      return null;
+    }
+    try {
+      byte[] address = DECODER.decode(token.substring(0, separator));
+      byte[] signature = DECODER.decode(token.substring(separator + 1));
+      if (!MessageDigest.isEqual(sign(address), signature)) {
+        return null;
+      }
+      return new String(address, StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private byte[] sign(byte[] address) {
+    return Arrays.copyOf(mac.get().doFinal(address), SIGNATURE_BYTES);
+  }
+}
@@ -0,0 +1,105 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the query a statement kills with system.runtime.kill_query, by scanning the bytes of the
+ * buffered statement once, ignoring case. Statements that are not kill calls are neither copied
+ * nor decoded. Both CALL system.runtime.kill_query(query_id => 'id', ...) and the positional
+ * CALL system.runtime.kill_query('id', ...) are understood.
+ */
+final class KillQueryScanner {
+  private static final byte[] KILL_QUERY =
+      "system.runtime.kill_query".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] QUERY_ID = "query_id".getBytes(StandardCharsets.US_ASCII);
+
+  private KillQueryScanner() {
+  }
+
+  /**
+   * Id of the query killed by the statement.
+   *
+   * @param statement buffered statement, its position and limit are left untouched
+   * @return the quoted query id argument, null if the statement is not a kill_query call or its
+   *     query id can not be told
+   */
+  static String findKilledQueryId(ByteBuffer statement) {
+    if (statement == null) {
+      return null;
+    }
+    int limit = statement.limit();
+    int call = indexOfIgnoreCase(statement, statement.position(), limit, KILL_QUERY);
+    if (call < 0) {
+      return null;
+    }
+    int position = skipWhitespace(statement, call + KILL_QUERY.length, limit);
+    if (position >= limit || statement.get(position) != '(') {
+      return null;
+    }
+    position = skipWhitespace(statement, position + 1, limit);
+    if (position < limit && statement.get(position) == '\'') {
+      return readQuoted(statement, position, limit);
+    }
+    int name = indexOfIgnoreCase(statement, position, limit, QUERY_ID);
+    if (name < 0) {
+      return null;
+    }
+    position = skipWhitespace(statement, name + QUERY_ID.length, limit);
+    if (position + 1 >= limit
+        || statement.get(position) != '='
+        || statement.get(position + 1) != '>') {
+      return null;
+    }
+    position = skipWhitespace(statement, position + 2, limit);
+    return position < limit && statement.get(position) == '\''
+        ? readQuoted(statement, position, limit)
+        : null;
+  }
+
+  private static int indexOfIgnoreCase(ByteBuffer buffer, int from, int limit, byte[] lowerCase) {
+    int last = limit - lowerCase.length;
+    for (int i = from; i <= last; i++) {
+      int matched = 0;
+      while (matched < lowerCase.length
+          && toLowerCase(buffer.get(i + matched)) == lowerCase[matched]) {
+        matched++;
+      }
+      if (matched == lowerCase.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  private static int skipWhitespace(ByteBuffer buffer, int from, int limit) {
+    int position = from;
+    while (position < limit && Character.isWhitespace(buffer.get(position))) {
+      position++;
+    }
+    return position;
+  }
+
+  // Query ids never contain whitespace, a quoted argument that does is not a query id
+  private static String readQuoted(ByteBuffer buffer, int openingQuote, int limit) {
+    int end = openingQuote + 1;
+    while (end < limit && buffer.get(end) != '\'') {
+      if (Character.isWhitespace(buffer.get(end))) {
+        return null;
+      }
+      end++;
+    }
+    if (end >= limit || end == openingQuote + 1) {
+      return null;
+    }
+    byte[] queryId = new byte[end - openingQuote - 1];
+    for (int i = 0; i < queryId.length; i++) {
+      queryId[i] = buffer.get(openingQuote + 1 + i);
+    }
+    return new String(queryId, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,140 @@
+package com.lyft.data.gateway.ha.handler;
+
+/**
+ * Classifies request paths of the Presto APIs and locates the query id in them, in one pass over
+ * the characters of the path. Nothing is allocated but the query id string, and only when it is
+ * asked for.
+ */
+final class PrestoPath {
+  // Both halves of a query id slice are packed in a long, so locating one allocates nothing
+  static final long NO_QUERY_ID = -1;
+
+  enum Kind {
+    STATEMENT(true),
+    QUERY(true),
+    INFO(true),
+    STAGE(false),
+    UI(true),
+    OTHER(false);
+
+    private final boolean loadBalanced;
+
+    Kind(boolean loadBalanced) {
+      this.loadBalanced = loadBalanced;
+    }
+
+    /**
+     * Whether requests of this kind are spread over the backends, others go to the gateway.
+     */
+    boolean isLoadBalanced() {
+      return loadBalanced;
+    }
+  }
+
+  private static final String V1_PREFIX = "/v1/";
+  private static final String STATEMENT = "statement";
+  private static final String STAGE = "stage";
+  private static final String QUERY = "query";
+  private static final String INFO = "info";
+  private static final String UI_PREFIX = "/ui";
+
+  // Segments between /v1/statement and the query id of polls and cancellations
+  private static final String[] STATEMENT_STATE_SEGMENTS =
+      {"queued", "scheduled", "executing", "partialCancel"};
+
+  private PrestoPath() {
+  }
+
+  /**
+   * Kind of the request, by the prefix of its path. The ui api paths are ui requests.
+   */
+  static Kind classify(String path) {
+    if (path == null) {
+      return Kind.OTHER;
+    }
+    if (path.startsWith(V1_PREFIX)) {
+      int resource = V1_PREFIX.length();
+      switch (path.length() > resource ? path.charAt(resource) : 0) {
+        case 's':
+          if (path.startsWith(STATEMENT, resource)) {
+            return Kind.STATEMENT;
+          }
+          return path.startsWith(STAGE, resource) ? Kind.STAGE : Kind.OTHER;
+        case 'q':
+          return path.startsWith(QUERY, resource) ? Kind.QUERY : Kind.OTHER;
+        case 'i':
+          return path.startsWith(INFO, resource) ? Kind.INFO : Kind.OTHER;
+        default:
+          return Kind.OTHER;
+      }
+    }
+    return path.startsWith(UI_PREFIX) ? Kind.UI : Kind.OTHER;
+  }
+
+  /**
+   * Locates the query id in the path of a statement or query request: the segment after
+   * /v1/statement, skipping the queued, scheduled, executing and partialCancel segments, or
+   * after /v1/query.
+   *
+   * @return start index in the high and end index in the low half, NO_QUERY_ID if the path has
+   *     no query id
+   */
+  static long locateQueryId(String path, Kind kind) {
+    int start;
+    if (kind == Kind.STATEMENT) {
+      start = skipSegment(path, V1_PREFIX.length());
+      int end = segmentEnd(path, start);
+      while (isStatementStateSegment(path, start, end)) {
+        start = end + 1;
+        end = segmentEnd(path, start);
+      }
+    } else if (kind == Kind.QUERY) {
+      start = skipSegment(path, V1_PREFIX.length());
+    } else {
+      return NO_QUERY_ID;
+    }
+    if (start >= path.length()) {
+      return NO_QUERY_ID;
+    }
+    int end = segmentEnd(path, start);
+    return end == start ? NO_QUERY_ID : ((long) start << 32) | end;
+  }
+
+  /**
+   * Query id of the request: located in the path of statement and query requests, the whole
+   * query string of ui requests.
+   *
+   * @return the query id, null if there is none
+   */
+  static String queryId(String path, String queryString) {
+    Kind kind = classify(path);
+    if (kind == Kind.UI) {
+      return queryString;
+    }
+    long slice = locateQueryId(path, kind);
+    return slice == NO_QUERY_ID ? null : path.substring((int) (slice >>> 32), (int) slice);
+  }
+
+  // Index right after the slash ending the segment starting at from
+  private static int skipSegment(String path, int from) {
+    int end = segmentEnd(path, from);
+    return end + 1;
+  }
+
+  private static int segmentEnd(String path, int from) {
+    if (from >= path.length()) {
+      return path.length();
+    }
+    int end = path.indexOf('/', from);
+    return end < 0 ? path.length() : end;
+  }
+
+  private static boolean isStatementStateSegment(String path, int start, int end) {
+    for (String segment : STATEMENT_STATE_SEGMENTS) {
+      if (segment.length() == end - start && path.startsWith(segment, start)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
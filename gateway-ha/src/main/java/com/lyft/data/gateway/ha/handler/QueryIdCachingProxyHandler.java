@@ -1,21 +1,23 @@
 package com.lyft.data.gateway.ha.handler;
 
 import com.codahale.metrics.Meter;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
 import com.google.common.net.HttpHeaders;
 import com.lyft.data.gateway.ha.router.QueryHistoryManager;
 import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.proxyserver.NoBackendAvailableException;
 import com.lyft.data.proxyserver.ProxyHandler;
 import com.lyft.data.proxyserver.wrapper.MultiReadHttpServletRequest;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,6 +33,7 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
   public static final String V1_STATEMENT_PATH = "/v1/statement";
   public static final String V1_QUERY_PATH = "/v1/query";
   public static final String V1_INFO_PATH = "/v1/info";
+  public static final String V1_STAGE_PATH = "/v1/stage";
   public static final String UI_API_STATS_PATH = "/ui/api/stats";
   public static final String PRESTO_UI_PATH = "/ui";
 
@@ -44,26 +47,94 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
   public static final String CLIENT_TAGS_HEADER = "X-Trino-Client-Tags";
   public static final String ALTERNATE_CLIENT_TAGS_HEADER = "X-Presto-Client-Tags";
   public static final String ADHOC_ROUTING_GROUP = "adhoc";
+  // Trusted clients asking to poll the coordinator directly, when the gateway allows it
+  public static final String DIRECT_COORDINATOR_HEADER = "X-Gateway-Direct-Coordinator";
   private static final int QUERY_TEXT_LENGTH_FOR_HISTORY = 200;
 
-  private static final Pattern EXTRACT_BETWEEN_SINGLE_QUOTES = Pattern.compile("'([^\\s']+)'");
-
-  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final String QUERY_ID_EXTRACTOR_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".queryIdExtractor";
+  private static final String ROUTING_GROUP_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".routingGroup";
+  private static final String TRIED_BACKENDS_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".triedBackends";
+  private static final String URI_REWRITER_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".uriRewriter";
+  // Set once the first chunk of a poll response not scanned for the query state went through
+  private static final String POLL_RESPONSE_STARTED_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".pollResponseStarted";
+  private static final String DIRECT_COORDINATOR_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".directCoordinator";
 
   private final RoutingManager routingManager;
   private final QueryHistoryManager queryHistoryManager;
 
   private final Meter requestMeter;
+  private final int maxSubmissionRetries;
+  private BackendTokenCodec backendTokens;
+  private boolean directCoordinatorHeaderAllowed;
+  private Set<String> directCoordinatorRoutingGroups = Collections.emptySet();
 
   public QueryIdCachingProxyHandler(
       QueryHistoryManager queryHistoryManager,
       RoutingManager routingManager,
       int serverApplicationPort,
       Meter requestMeter) {
+    this(queryHistoryManager, routingManager, serverApplicationPort, requestMeter, 0);
+  }
+
+  /**
+   * Creates a handler that sends statement submissions to up to maxSubmissionRetries other
+   * backends of their routing group when their backend can not be connected to.
+   */
+  public QueryIdCachingProxyHandler(
+      QueryHistoryManager queryHistoryManager,
+      RoutingManager routingManager,
+      int serverApplicationPort,
+      Meter requestMeter,
+      int maxSubmissionRetries) {
     super(serverApplicationPort);
     this.requestMeter = requestMeter;
     this.routingManager = routingManager;
     this.queryHistoryManager = queryHistoryManager;
+    this.maxSubmissionRetries = maxSubmissionRetries;
+  }
+
+  /**
+   * Enables stateless routing: the nextUri and partialCancelUri of statement responses carry a
+   * signed token of their backend, follow-up requests are routed on it without any lookup.
+   */
+  public void setBackendTokenCodec(BackendTokenCodec backendTokens) {
+    this.backendTokens = backendTokens;
+  }
+
+  /**
+   * Enables direct-to-coordinator mode: only the submission of a query goes through the gateway,
+   * its nextUri points at the coordinator so that result pages are fetched from it directly.
+   *
+   * @param headerAllowed whether clients may ask for it with the DIRECT_COORDINATOR_HEADER
+   * @param routingGroups routing groups all queries of which are polled directly
+   */
+  public void configureDirectCoordinatorRouting(
+      boolean headerAllowed, Set<String> routingGroups) {
+    this.directCoordinatorHeaderAllowed = headerAllowed;
+    this.directCoordinatorRoutingGroups = ImmutableSet.copyOf(routingGroups);
+  }
+
+  private boolean isDirectToCoordinator(HttpServletRequest request) {
+    return request.getAttribute(DIRECT_COORDINATOR_ATTRIBUTE) != null;
+  }
+
+  private boolean rewritesStatementUris(HttpServletRequest request) {
+    return request.getRequestURI().startsWith(V1_STATEMENT_PATH)
+        && (backendTokens != null || isDirectToCoordinator(request));
+  }
+
+  @Override
+  public void customizeProxyRequest(HttpServletRequest request, Request proxyRequest) {
+    if (rewritesStatementUris(request)) {
+      // Statement responses get their uris rewritten, they must not be compressed
+      proxyRequest.getHeaders().remove(HttpHeaders.ACCEPT_ENCODING);
+    }
   }
 
   @Override
@@ -71,26 +142,65 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     if (request.getMethod().equals(HttpMethod.POST)
         && request.getRequestURI().startsWith(V1_STATEMENT_PATH)) {
       requestMeter.mark();
-      try {
-        String requestBody = CharStreams.toString(request.getReader());
-        // 6sense: Changed to debug to save sumo logic expenses
-        log.debug(
-            "Processing request endpoint: [{}], payload: [{}]",
-            request.getRequestURI(),
-            requestBody);
-        debugLogHeaders(request);
-      } catch (Exception e) {
-        log.warn("Error fetching the request payload", e);
+      // The payload is only decoded when it gets logged
+      if (log.isDebugEnabled()) {
+        try {
+          String requestBody = CharStreams.toString(request.getReader());
+          // 6sense: Changed to debug to save sumo logic expenses
+          log.debug(
+              "Processing request endpoint: [{}], payload: [{}]",
+              request.getRequestURI(),
+              requestBody);
+          debugLogHeaders(request);
+        } catch (Exception e) {
+          log.warn("Error fetching the request payload", e);
+        }
       }
+    } else if (request.getMethod().equals(HttpMethod.DELETE)
+        && request.getRequestURI().startsWith(V1_STATEMENT_PATH)
+        && routingManager.tracksInFlightQueries()) {
+      // Cancelled by the client, there will be no last page
+      routingManager.queryFinished(extractQueryIdIfPresent(request.getRequestURI(), null));
+    }
+  }
+
+  /**
+   * Feeds the outcome of load balanced requests to the passive health checks of their backend.
+   */
+  @Override
+  public void onBackendExchangeComplete(
+      HttpServletRequest request, int status, Throwable failure, long latencyNanos) {
+    String backend = request.getHeader(PROXY_TARGET_HEADER);
+    if (backend != null) {
+      routingManager.recordBackendResponse(backend, status, failure, latencyNanos);
+    }
+  }
+
+  /**
+   * Statement responses may change size when their uris get rewritten.
+   */
+  @Override
+  public String filterResponseHeader(
+      HttpServletRequest request, String headerName, String headerValue) {
+    if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(headerName)
+        && rewritesStatementUris(request)) {
+      return null;
     }
+    return headerValue;
+  }
+
+  /**
+   * Only statement submissions are inspected (query text for history, kill_query calls), every
+   * other request body is streamed to the backend without being copied.
+   */
+  @Override
+  public boolean requiresBufferedContent(HttpServletRequest request) {
+    return request.getMethod().equals(HttpMethod.POST)
+        && request.getRequestURI().startsWith(V1_STATEMENT_PATH);
   }
 
   private boolean isPathWhiteListed(String path) {
-    return path.startsWith(V1_STATEMENT_PATH)
-        || path.startsWith(V1_QUERY_PATH)
-        || path.startsWith(PRESTO_UI_PATH)
-        || path.startsWith(V1_INFO_PATH)
-        || path.startsWith(UI_API_STATS_PATH);
+    return PrestoPath.classify(path).isLoadBalanced();
   }
 
   public boolean isAuthEnabled() {
@@ -106,13 +216,25 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     /* Here comes the load balancer / gateway */
     String backendAddress = "http://localhost:" + serverApplicationPort;
 
-    // Only load balance presto query APIs.
-    if (isPathWhiteListed(request.getRequestURI())) {
+    String queryString = request.getQueryString();
+    String tokenBackend = findTokenBackend(request);
+
+    if (tokenBackend != null) {
+      // Stateless routing, the uri handed out to the client tells its backend
+      backendAddress = tokenBackend;
+      queryString = StatementUriRewriter.removeToken(queryString);
+      ((MultiReadHttpServletRequest) request).addHeader(PROXY_TARGET_HEADER, backendAddress);
+    } else if (isPathWhiteListed(request.getRequestURI())) {
+      // Only load balance presto query APIs.
       String queryId = extractQueryIdIfPresent(request);
 
       // Find query id and get url from cache
       if (!Strings.isNullOrEmpty(queryId)) {
         backendAddress = routingManager.findBackendForQueryId(queryId);
+        if (backendAddress == null) {
+          throw new NoBackendAvailableException(
+              HttpStatus.NOT_FOUND_404, "Query [" + queryId + "] not found on any backend");
+        }
       } else {
         String routingGroup = Optional.ofNullable(request.getHeader(ROUTING_GROUP_HEADER))
             .orElse(request.getHeader(ALTERNATE_ROUTING_GROUP_HEADER));
@@ -126,6 +248,21 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
           backendAddress = routingManager.provideBackendForRoutingGroup(routingGroup);
         } else {
           backendAddress = routingManager.provideAdhocBackend();
+          routingGroup = ADHOC_ROUTING_GROUP;
+        }
+        if (request.getMethod().equals(HttpMethod.POST)
+            && request.getRequestURI().startsWith(V1_STATEMENT_PATH)
+            && (directCoordinatorRoutingGroups.contains(routingGroup)
+                || (directCoordinatorHeaderAllowed
+                    && Boolean.parseBoolean(request.getHeader(DIRECT_COORDINATOR_HEADER))))) {
+          request.setAttribute(DIRECT_COORDINATOR_ATTRIBUTE, Boolean.TRUE);
+        }
+        if (maxSubmissionRetries > 0 && requiresBufferedContent(request)) {
+          // Remember how the submission was routed, in case it has to fail over
+          Set<String> triedBackends = new HashSet<>();
+          triedBackends.add(backendAddress);
+          request.setAttribute(ROUTING_GROUP_ATTRIBUTE, routingGroup);
+          request.setAttribute(TRIED_BACKENDS_ATTRIBUTE, triedBackends);
         }
       }
       // set target backend so that we could save queryId to backend mapping later.
@@ -138,25 +275,79 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
         return null;
       }
     }
-    String targetLocation =
-        backendAddress
-            + request.getRequestURI()
-            + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
-
-    String originalLocation =
-        request.getScheme()
-            + "://"
-            + request.getRemoteHost()
-            + ":"
-            + request.getServerPort()
-            + request.getRequestURI()
-            + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+    String targetLocation = buildTargetLocation(backendAddress, request, queryString);
 
     // 6sense: Changed to debug to save sumo logic expenses
-    log.debug("Rerouting [{}]--> [{}]", originalLocation, targetLocation);
+    if (log.isDebugEnabled()) {
+      String originalLocation =
+          request.getScheme()
+              + "://"
+              + request.getRemoteHost()
+              + ":"
+              + request.getServerPort()
+              + request.getRequestURI()
+              + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+      log.debug("Rerouting [{}]--> [{}]", originalLocation, targetLocation);
+    }
     return targetLocation;
   }
 
+  /**
+   * Sends a statement submission that could not connect to its backend to another backend of its
+   * routing group, at most maxSubmissionRetries times. Requests routed on a query id, polls among
+   * them, are never sent anywhere else.
+   */
+  @Override
+  public String rewriteTargetOnConnectFailure(
+      HttpServletRequest request, Throwable failure, int attempt) {
+    @SuppressWarnings("unchecked")
+    Set<String> triedBackends = (Set<String>) request.getAttribute(TRIED_BACKENDS_ATTRIBUTE);
+    if (triedBackends == null || attempt > maxSubmissionRetries) {
+      return null;
+    }
+    String routingGroup = (String) request.getAttribute(ROUTING_GROUP_ATTRIBUTE);
+    String backendAddress = routingManager.provideFailoverBackend(routingGroup, triedBackends);
+    if (backendAddress == null) {
+      log.warn("No backend of routing group [{}] left to retry the submission on, tried {}",
+          routingGroup, triedBackends);
+      return null;
+    }
+    triedBackends.add(backendAddress);
+    // The query gets mapped to, and its history recorded for, the backend that answers
+    ((MultiReadHttpServletRequest) request).addHeader(PROXY_TARGET_HEADER, backendAddress);
+    return buildTargetLocation(backendAddress, request, request.getQueryString());
+  }
+
+  private static String buildTargetLocation(
+      String backendAddress, HttpServletRequest request, String queryString) {
+    return backendAddress
+        + request.getRequestURI()
+        + (queryString != null ? "?" + queryString : "");
+  }
+
+  /**
+   * Backend carried by the token of a statement poll or stage cancellation, null if there is no
+   * valid token or its backend was removed since.
+   */
+  private String findTokenBackend(HttpServletRequest request) {
+    if (backendTokens == null
+        || !(request.getRequestURI().startsWith(V1_STATEMENT_PATH)
+            || request.getRequestURI().startsWith(V1_STAGE_PATH))) {
+      return null;
+    }
+    String token = StatementUriRewriter.findToken(request.getQueryString());
+    if (token == null) {
+      return null;
+    }
+    String backend = backendTokens.decode(token);
+    if (backend == null || !routingManager.getRoutingSnapshot().hasBackendAddress(backend)) {
+      // Expected after a restart without a shared secret, warned about once at startup
+      log.debug("Ignoring backend token [{}], falling back to query id routing", token);
+      return null;
+    }
+    return backend;
+  }
+
   /**
    * Extracts the queryId from the server requests if it is present.
    * @param request The request made
@@ -165,28 +356,17 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
   protected String extractQueryIdIfPresent(HttpServletRequest request) {
     String path = request.getRequestURI();
     String queryParams = request.getQueryString();
-    try {
-      String queryText = CharStreams.toString(request.getReader());
-      if (!Strings.isNullOrEmpty(queryText)
-          && queryText.toLowerCase().contains("system.runtime.kill_query")) {
-        // extract and return the queryId
-        String[] parts = queryText.split(",");
-        for (String part : parts) {
-          if (part.contains("query_id")) {
-            Matcher m = EXTRACT_BETWEEN_SINGLE_QUOTES.matcher(part);
-            if (m.find()) {
-              String queryQuoted = m.group();
-              if (!Strings.isNullOrEmpty(queryQuoted) && queryQuoted.length() > 0) {
-                return queryQuoted.substring(1, queryQuoted.length() - 1);
-              }
-            }
-          }
-        }
+    // Only statement submissions can be kill calls, and only their bodies are buffered
+    if (request.getMethod().equals(HttpMethod.POST)
+        && path.startsWith(V1_STATEMENT_PATH)
+        && request instanceof MultiReadHttpServletRequest) {
+      String killedQueryId = KillQueryScanner.findKilledQueryId(
+          ((MultiReadHttpServletRequest) request).getContentBuffer());
+      if (killedQueryId != null) {
+        return killedQueryId;
       }
-    } catch (Exception e) {
-      log.error("Error extracting query payload from request", e);
     }
-    
+
     log.debug("Trying to extract query id from path [{}] or queryString [{}]", path, queryParams);
     String queryId = extractQueryIdIfPresent(path, queryParams);
     if (queryId == null && !Strings.isNullOrEmpty(request.getHeader(HttpHeaders.REFERER))) {
@@ -206,29 +386,7 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
    * @return The queryId (if present)
    */
   protected String extractQueryIdIfPresent(String path, String queryParams) {
-    if (path == null) {
-      return null;
-    }
-
-    String queryId = null;
-
-    if (path.startsWith(V1_STATEMENT_PATH) || path.startsWith(V1_QUERY_PATH)) {
-      String[] tokens = path.split("/");
-      if (tokens.length >= 4) {
-        if (path.contains("queued")
-            || path.contains("scheduled")
-            || path.contains("executing")
-            || path.contains("partialCancel")) {
-          queryId = tokens[4];
-        } else {
-          queryId = tokens[3];
-        }
-      }
-    } else if (path.startsWith(PRESTO_UI_PATH)) {
-      queryId = queryParams;
-    }
-
-    return queryId;
+    return PrestoPath.queryId(path, queryParams);
   }
 
   /**
@@ -260,41 +418,17 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
       String requestPath = request.getRequestURI();
       if (requestPath.startsWith(V1_STATEMENT_PATH)
           && request.getMethod().equals(HttpMethod.POST)) {
-        String output;
-        boolean isGZipEncoding = isGZipEncoding(response);
-        if (isGZipEncoding) {
-          output = plainTextFromGz(buffer);
-        } else {
-          output = new String(buffer);
-        }
-        log.debug("Response output [{}]", output);
-
-        QueryHistoryManager.QueryDetail queryDetail = getQueryDetailsFromRequest(request);
-        log.debug("Proxy destination : {}", queryDetail.getBackendUrl());
-
-        if (response.getStatus() == HttpStatus.OK_200) {
-          HashMap<String, String> results = OBJECT_MAPPER.readValue(output, HashMap.class);
-          queryDetail.setQueryId(results.get("id"));
-
-          if (!Strings.isNullOrEmpty(queryDetail.getQueryId())) {
-            routingManager.setBackendForQueryId(
-                queryDetail.getQueryId(), queryDetail.getBackendUrl());
-
-            // Saving history at gateway.
-            queryHistoryManager.submitQueryDetail(queryDetail);
-            
-            log.debug(
-                "QueryId [{}] mapped with proxy [{}]",
-                queryDetail.getQueryId(),
-                queryDetail.getBackendUrl());
-          } else {
-            log.debug("QueryId [{}] could not be cached", queryDetail.getQueryId());
+        scanStatementResponse(request, response, buffer, offset, length, true);
+      } else if (requestPath.startsWith(V1_STATEMENT_PATH)
+          && request.getMethod().equals(HttpMethod.GET)) {
+        if (routingManager.tracksInFlightQueries()) {
+          scanStatementResponse(request, response, buffer, offset, length, false);
+        } else if (request.getAttribute(POLL_RESPONSE_STARTED_ATTRIBUTE) == null) {
+          // Result pages only matter to routing for the queries in flight, nothing to scan
+          request.setAttribute(POLL_RESPONSE_STARTED_ATTRIBUTE, Boolean.TRUE);
+          if (response.getStatus() == HttpStatus.OK_200) {
+            setUriRewriter(request, response);
           }
-        } else {
-          log.error(
-              "Non OK HTTP Status code with response [{}] , Status code [{}]",
-              output,
-              response.getStatus());
         }
       } else {
         log.debug("SKIPPING For {}", requestPath);
@@ -302,7 +436,126 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     } catch (Exception e) {
       log.error("Error in proxying falling back to super call", e);
     }
-    super.postConnectionHook(request, response, buffer, offset, length, callback);
+    StatementUriRewriter rewriter =
+        (StatementUriRewriter) request.getAttribute(URI_REWRITER_ATTRIBUTE);
+    if (rewriter == null) {
+      super.postConnectionHook(request, response, buffer, offset, length, callback);
+      return;
+    }
+    try {
+      rewriter.write(buffer, offset, length, response.getOutputStream());
+      callback.succeeded();
+    } catch (Throwable t) {
+      callback.failed(t);
+    }
+  }
+
+  @Override
+  public void postConnectionCompleteHook(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    StatementUriRewriter rewriter =
+        (StatementUriRewriter) request.getAttribute(URI_REWRITER_ATTRIBUTE);
+    if (rewriter != null) {
+      rewriter.finish(response.getOutputStream());
+    }
+  }
+
+  /**
+   * Scans the leading bytes of a statement response, one content chunk at a time. A submitted
+   * query is recorded as soon as its id is known. When routing tracks the queries in flight,
+   * every response is checked for being the last page of its query, which ends the query for
+   * routing purposes. Chunks after that are not looked at.
+   */
+  private void scanStatementResponse(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      byte[] buffer,
+      int offset,
+      int length,
+      boolean submission)
+      throws IOException {
+    QueryIdExtractor extractor =
+        (QueryIdExtractor) request.getAttribute(QUERY_ID_EXTRACTOR_ATTRIBUTE);
+    if (extractor == null) {
+      boolean trackQueries = routingManager.tracksInFlightQueries();
+      extractor = new QueryIdExtractor(isGZipEncoding(response), trackQueries);
+      request.setAttribute(QUERY_ID_EXTRACTOR_ATTRIBUTE, extractor);
+      if (response.getStatus() != HttpStatus.OK_200) {
+        extractor.close();
+        if (submission) {
+          log.error(
+              "Non OK HTTP Status code with response [{}] , Status code [{}]",
+              isGZipEncoding(response) ? "<gzip>" : new String(buffer, offset, length),
+              response.getStatus());
+        } else if (trackQueries && (response.getStatus() == HttpStatus.NOT_FOUND_404
+            || response.getStatus() == HttpStatus.GONE_410)) {
+          // The backend does not know the query anymore
+          routingManager.queryFinished(extractQueryIdIfPresent(request.getRequestURI(), null));
+        }
+        return;
+      }
+      if (!submission) {
+        routingManager.queryPolled(extractQueryIdIfPresent(request.getRequestURI(), null));
+      }
+      setUriRewriter(request, response);
+    }
+    if (extractor.isDone()) {
+      return;
+    }
+
+    boolean queryIdKnown = extractor.getQueryId() != null;
+    extractor.feed(buffer, offset, length);
+    if (submission && !queryIdKnown && (extractor.getQueryId() != null || extractor.isDone())) {
+      recordQuery(request, extractor.getQueryId());
+    }
+    if (extractor.isDone() && extractor.isLastPage()) {
+      String queryId = extractor.getQueryId() != null || submission
+          ? extractor.getQueryId()
+          : extractQueryIdIfPresent(request.getRequestURI(), null);
+      log.debug("Last page of query [{}]", queryId);
+      routingManager.queryFinished(queryId);
+    }
+  }
+
+  /**
+   * Rewrites the URIs of a successful statement response, when the client polls the coordinator
+   * directly or routing is stateless.
+   */
+  private void setUriRewriter(HttpServletRequest request, HttpServletResponse response) {
+    String backend = request.getHeader(PROXY_TARGET_HEADER);
+    if (backend != null && !isGZipEncoding(response)) {
+      if (isDirectToCoordinator(request)) {
+        request.setAttribute(URI_REWRITER_ATTRIBUTE, StatementUriRewriter.pointingAt(backend));
+      } else if (backendTokens != null) {
+        request.setAttribute(URI_REWRITER_ATTRIBUTE,
+            StatementUriRewriter.appendingToken(backendTokens.encode(backend)));
+      }
+    }
+  }
+
+  private void recordQuery(HttpServletRequest request, String queryId) throws IOException {
+    QueryHistoryManager.QueryDetail queryDetail = getQueryDetailsFromRequest(request);
+    log.debug("Proxy destination : {}", queryDetail.getBackendUrl());
+    queryDetail.setQueryId(queryId);
+
+    if (!Strings.isNullOrEmpty(queryDetail.getQueryId())) {
+      routingManager.setBackendForQueryId(
+          queryDetail.getQueryId(), queryDetail.getBackendUrl());
+      if (routingManager.tracksInFlightQueries() && !isDirectToCoordinator(request)) {
+        // The gateway never sees the last page of queries polled directly, they are not tracked
+        routingManager.queryStarted(queryDetail.getQueryId(), queryDetail.getBackendUrl());
+      }
+
+      // Saving history at gateway.
+      queryHistoryManager.submitQueryDetail(queryDetail);
+
+      log.debug(
+          "QueryId [{}] mapped with proxy [{}]",
+          queryDetail.getQueryId(),
+          queryDetail.getBackendUrl());
+    } else {
+      log.debug("QueryId [{}] could not be cached", queryDetail.getQueryId());
+    }
   }
 
   private QueryHistoryManager.QueryDetail getQueryDetailsFromRequest(HttpServletRequest request)
@@ -314,11 +567,28 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
             .orElse(request.getHeader(ALTERNATE_USER_HEADER)));
     queryDetail.setSource(Optional.ofNullable(request.getHeader(SOURCE_HEADER))
             .orElse(request.getHeader(ALTERNATE_SOURCE_HEADER)));
-    String queryText = CharStreams.toString(request.getReader());
+    // One more character than stored tells whether the query text is cut
+    char[] queryText = new char[QUERY_TEXT_LENGTH_FOR_HISTORY + 1];
+    int length = readFully(request.getReader(), queryText);
     queryDetail.setQueryText(
-        queryText.length() > QUERY_TEXT_LENGTH_FOR_HISTORY
-            ? queryText.substring(0, QUERY_TEXT_LENGTH_FOR_HISTORY) + "..."
-            : queryText);
+        length > QUERY_TEXT_LENGTH_FOR_HISTORY
+            ? new String(queryText, 0, QUERY_TEXT_LENGTH_FOR_HISTORY) + "..."
+            : new String(queryText, 0, length));
     return queryDetail;
   }
+
+  /**
+   * Reads until the buffer is full or the end of the stream.
+   *
+   * @return number of characters read
+   */
+  private static int readFully(Reader reader, char[] buffer) throws IOException {
+    int length = 0;
+    int read;
+    while (length < buffer.length
+        && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+    }
+    return length;
+  }
 }
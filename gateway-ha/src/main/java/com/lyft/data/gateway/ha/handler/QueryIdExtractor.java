@@ -0,0 +1,294 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pulls the top level "id" field out of a statement response while its content chunks go by,
+ * without ever materializing the body. Gzip encoded responses are inflated on the fly. Once the
+ * id is found, or the scan budget is spent, the extractor is done and ignores further input.
+ * When asked to, it also finds out whether the response is the last page of the query, which is
+ * the case when there is no top level "nextUri".
+ * Not thread safe, chunks of a response are delivered one after the other.
+ */
+@Slf4j
+class QueryIdExtractor {
+  // Presto writes the id as the very first field, there is no point in parsing result pages.
+  static final int MAX_SCAN_BYTES = 65536;
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String ID_FIELD = "id";
+  private static final String NEXT_URI_FIELD = "nextUri";
+  // Presto writes these after nextUri, reaching one of them means there is no nextUri
+  static final Set<String> FIELDS_AFTER_NEXT_URI = ImmutableSet.of(
+      "columns", "data", "stats", "error", "warnings", "updateType", "updateCount");
+  private static final int INFLATE_BUFFER_SIZE = 4096;
+  private static final int MAX_GZIP_HEADER_SIZE = 1024;
+  private static final int GZIP_HEADER_INCOMPLETE = -1;
+  private static final int NOT_GZIP = -2;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final JsonParser parser;
+  private final ByteArrayFeeder feeder;
+  private final boolean detectLastPage;
+  private Inflater inflater;
+  private byte[] inflated;
+  private byte[] gzipHeader;
+  private int gzipHeaderCount;
+
+  private int scannedBytes;
+  private int depth;
+  private boolean idFieldSeen;
+  private boolean nextUriSeen;
+  private boolean lastPage;
+  private boolean done;
+  private String queryId;
+
+  QueryIdExtractor(boolean gzipEncoded) throws IOException {
+    this(gzipEncoded, false);
+  }
+
+  QueryIdExtractor(boolean gzipEncoded, boolean detectLastPage) throws IOException {
+    this.detectLastPage = detectLastPage;
+    parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+    feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    if (gzipEncoded) {
+      inflater = new Inflater(true);
+      inflated = new byte[INFLATE_BUFFER_SIZE];
+      gzipHeader = new byte[MAX_GZIP_HEADER_SIZE];
+    }
+  }
+
+  /**
+   * Feeds the next chunk of the response body.
+   *
+   * @param buffer response content
+   * @param offset start of the chunk in buffer
+   * @param length length of the chunk
+   * @return true once the extractor is done and needs no more input
+   */
+  boolean feed(byte[] buffer, int offset, int length) {
+    if (done || length <= 0) {
+      return done;
+    }
+    try {
+      if (inflater == null) {
+        parse(buffer, offset, length);
+      } else if (gzipHeader != null) {
+        feedGzipHeader(buffer, offset, length);
+      } else {
+        inflate(buffer, offset, length);
+      }
+    } catch (IOException | DataFormatException e) {
+      log.debug("Unable to extract query id from response", e);
+      done = true;
+    }
+    if (done) {
+      close();
+    }
+    return done;
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  String getQueryId() {
+    return queryId;
+  }
+
+  /**
+   * Only meaningful when detecting last pages and once the extractor is done.
+   *
+   * @return true if the response is known to have no nextUri
+   */
+  boolean isLastPage() {
+    return lastPage;
+  }
+
+  /**
+   * Stops the extraction and frees the parser and inflater.
+   */
+  void close() {
+    done = true;
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+    try {
+      parser.close();
+    } catch (IOException e) {
+      log.debug("Error closing response parser", e);
+    }
+  }
+
+  private void feedGzipHeader(byte[] buffer, int offset, int length)
+      throws IOException, DataFormatException {
+    int copied = Math.min(length, gzipHeader.length - gzipHeaderCount);
+    System.arraycopy(buffer, offset, gzipHeader, gzipHeaderCount, copied);
+    gzipHeaderCount += copied;
+
+    int headerLength = gzipHeaderLength(gzipHeader, gzipHeaderCount);
+    if (headerLength == NOT_GZIP) {
+      // Claimed to be gzip but is not, same fallback as ProxyHandler.plainTextFromGz
+      inflater.end();
+      inflater = null;
+      byte[] header = gzipHeader;
+      gzipHeader = null;
+      parse(header, 0, gzipHeaderCount);
+      parse(buffer, offset + copied, length - copied);
+    } else if (headerLength == GZIP_HEADER_INCOMPLETE) {
+      done = gzipHeaderCount == gzipHeader.length;
+    } else {
+      byte[] header = gzipHeader;
+      gzipHeader = null;
+      inflate(header, headerLength, gzipHeaderCount - headerLength);
+      inflate(buffer, offset + copied, length - copied);
+    }
+  }
+
+  private void inflate(byte[] buffer, int offset, int length)
+      throws IOException, DataFormatException {
+    if (done || length <= 0) {
+      return;
+    }
+    inflater.setInput(buffer, offset, length);
+    while (!done && !inflater.needsInput() && !inflater.finished()) {
+      int inflatedLength = inflater.inflate(inflated);
+      if (inflatedLength == 0 && inflater.needsDictionary()) {
+        done = true;
+        return;
+      }
+      parse(inflated, 0, inflatedLength);
+    }
+    if (inflater.finished()) {
+      done = true;
+    }
+  }
+
+  private void parse(byte[] buffer, int offset, int length) throws IOException {
+    if (done || length <= 0) {
+      return;
+    }
+    feeder.feedInput(buffer, offset, offset + length);
+    scannedBytes += length;
+
+    JsonToken token;
+    while (!done && (token = parser.nextToken()) != JsonToken.NOT_AVAILABLE) {
+      if (token == null) {
+        done = true;
+        return;
+      }
+      if (depth == 0 && token != JsonToken.START_OBJECT) {
+        // Not a statement response
+        done = true;
+        return;
+      }
+      if (idFieldSeen) {
+        idFieldSeen = false;
+        if (token == JsonToken.VALUE_STRING) {
+          queryId = parser.getText();
+          done = !detectLastPage || nextUriSeen || lastPage;
+          continue;
+        }
+      }
+      switch (token) {
+        case START_OBJECT:
+        case START_ARRAY:
+          depth++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          depth--;
+          if (depth == 0) {
+            lastPage = detectLastPage && !nextUriSeen;
+            done = true;
+          }
+          break;
+        case FIELD_NAME:
+          if (depth == 1) {
+            onTopLevelField(parser.getCurrentName());
+          }
+          break;
+        default:
+      }
+    }
+    if (scannedBytes >= MAX_SCAN_BYTES) {
+      done = true;
+    }
+  }
+
+  private void onTopLevelField(String name) {
+    idFieldSeen = ID_FIELD.equals(name);
+    if (!detectLastPage || nextUriSeen || lastPage) {
+      return;
+    }
+    if (NEXT_URI_FIELD.equals(name)) {
+      nextUriSeen = true;
+    } else if (FIELDS_AFTER_NEXT_URI.contains(name)) {
+      lastPage = true;
+    } else {
+      return;
+    }
+    // Answer known, only keep going if the id is still ahead
+    done = queryId != null;
+  }
+
+  /**
+   * Length of the gzip member header (RFC 1952) at the start of the buffer.
+   */
+  private static int gzipHeaderLength(byte[] header, int count) {
+    if (count < 2) {
+      return GZIP_HEADER_INCOMPLETE;
+    }
+    if (header[0] != (byte) 0x1f || header[1] != (byte) 0x8b) {
+      return NOT_GZIP;
+    }
+    if (count < 10) {
+      return GZIP_HEADER_INCOMPLETE;
+    }
+    int flags = header[3] & 0xff;
+    int position = 10;
+    if ((flags & FEXTRA) != 0) {
+      if (count < position + 2) {
+        return GZIP_HEADER_INCOMPLETE;
+      }
+      position += 2 + ((header[position] & 0xff) | ((header[position + 1] & 0xff) << 8));
+    }
+    if ((flags & FNAME) != 0) {
+      position = skipZeroTerminated(header, position, count);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      position = skipZeroTerminated(header, position, count);
+    }
+    if ((flags & FHCRC) != 0 && position >= 0) {
+      position += 2;
+    }
+    return position >= 0 && position <= count ? position : GZIP_HEADER_INCOMPLETE;
+  }
+
+  private static int skipZeroTerminated(byte[] header, int position, int count) {
+    if (position < 0) {
+      return position;
+    }
+    for (int i = position; i < count; i++) {
+      if (header[i] == 0) {
+        return i + 1;
+      }
+    }
+    return GZIP_HEADER_INCOMPLETE;
+  }
+}
@@ -0,0 +1,142 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the nextUri and partialCancelUri of a statement response while its content chunks go
+ * by: either a backend token is appended, so the follow-up requests of the client tell which
+ * backend they are for, or they are pointed at the backend itself, so follow-up requests bypass
+ * the gateway. Only the leading bytes of the response are held back, up to the first field
+ * Presto writes after the uris; the rest, result data included, is passed through untouched.
+ * Responses must not be compressed.
+ * Not thread safe, chunks of a response are delivered one after the other.
+ */
+class StatementUriRewriter {
+  static final String TOKEN_PARAMETER = "gatewayBackend";
+
+  // Bytes are handled as ISO-8859-1 so the body goes through byte for byte whatever its encoding
+  private static final Pattern URI_FIELD =
+      Pattern.compile("\"(nextUri|partialCancelUri)\"\\s*:\\s*\"([^\"]*)\"");
+  private static final Pattern FIELD_AFTER_URIS = Pattern.compile(
+      "\"(" + String.join("|", QueryIdExtractor.FIELDS_AFTER_NEXT_URI) + ")\"\\s*:");
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+
+  private final UnaryOperator<String> uriRewrite;
+  private byte[] held = new byte[INITIAL_BUFFER_SIZE];
+  private int heldCount;
+  private boolean passThrough;
+
+  private StatementUriRewriter(UnaryOperator<String> uriRewrite) {
+    this.uriRewrite = uriRewrite;
+  }
+
+  /**
+   * Rewriter appending the backend token to the uris.
+   */
+  static StatementUriRewriter appendingToken(String token) {
+    String tokenParameter = TOKEN_PARAMETER + "=" + token;
+    return new StatementUriRewriter(
+        uri -> uri + (uri.indexOf('?') < 0 ? '?' : '&') + tokenParameter);
+  }
+
+  /**
+   * Rewriter pointing the uris at the backend, whatever host the backend put in them.
+   *
+   * @param backend base url of the backend, as in its proxyTo
+   */
+  static StatementUriRewriter pointingAt(String backend) {
+    return new StatementUriRewriter(uri -> {
+      int scheme = uri.indexOf("://");
+      int path = scheme < 0 ? 0 : uri.indexOf('/', scheme + 3);
+      return path < 0 ? backend : backend + uri.substring(path);
+    });
+  }
+
+  /**
+   * Writes the next chunk of the response body, or holds it back until the uris are complete.
+   */
+  void write(byte[] buffer, int offset, int length, OutputStream out) throws IOException {
+    if (passThrough) {
+      out.write(buffer, offset, length);
+      return;
+    }
+    if (heldCount + length > held.length) {
+      held = Arrays.copyOf(held, Math.max(held.length * 2, heldCount + length));
+    }
+    System.arraycopy(buffer, offset, held, heldCount, length);
+    heldCount += length;
+    if (heldCount >= QueryIdExtractor.MAX_SCAN_BYTES
+        || FIELD_AFTER_URIS.matcher(heldPrefix()).find()) {
+      flush(out);
+    }
+  }
+
+  /**
+   * Writes whatever is still held back, once the response is complete.
+   */
+  void finish(OutputStream out) throws IOException {
+    if (!passThrough) {
+      flush(out);
+    }
+  }
+
+  private String heldPrefix() {
+    return new String(held, 0, heldCount, StandardCharsets.ISO_8859_1);
+  }
+
+  private void flush(OutputStream out) throws IOException {
+    Matcher matcher = URI_FIELD.matcher(heldPrefix());
+    StringBuffer rewritten = new StringBuffer(heldCount + INITIAL_BUFFER_SIZE);
+    while (matcher.find()) {
+      String uri = uriRewrite.apply(matcher.group(2));
+      matcher.appendReplacement(rewritten, Matcher.quoteReplacement(
+          matcher.group().substring(0, matcher.start(2) - matcher.start()) + uri + "\""));
+    }
+    matcher.appendTail(rewritten);
+    out.write(rewritten.toString().getBytes(StandardCharsets.ISO_8859_1));
+    passThrough = true;
+    held = null;
+  }
+
+  /**
+   * Value of the backend token in a query string.
+   *
+   * @return the token, null if the query string has none
+   */
+  static String findToken(String queryString) {
+    if (queryString == null) {
+      return null;
+    }
+    for (String parameter : queryString.split("&")) {
+      if (parameter.startsWith(TOKEN_PARAMETER + "=")) {
+        return parameter.substring(TOKEN_PARAMETER.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The query string without the backend token, null if nothing is left.
+   */
+  static String removeToken(String queryString) {
+    if (queryString == null) {
+      return null;
+    }
+    StringBuilder remaining = new StringBuilder();
+    for (String parameter : queryString.split("&")) {
+      if (!parameter.startsWith(TOKEN_PARAMETER + "=")) {
+        if (remaining.length() > 0) {
+          remaining.append('&');
+        }
+        remaining.append(parameter);
+      }
+    }
+    return remaining.length() == 0 ? null : remaining.toString();
+  }
+}
@@ -9,7 +9,9 @@ import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
 import com.lyft.data.gateway.ha.clustermonitor.PrestoQueueLengthChecker;
 import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
 import com.lyft.data.gateway.ha.config.NotifierConfiguration;
+import com.lyft.data.gateway.ha.config.RequestRouterConfiguration;
 import com.lyft.data.gateway.ha.notifier.EmailNotifier;
+import com.lyft.data.gateway.ha.router.BackendConnectionManager;
 import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
 import com.lyft.data.gateway.ha.router.RoutingManager;
 import io.dropwizard.setup.Environment;
@@ -32,7 +34,8 @@ public class ClusterStateListenerModule extends AppModule<HaGatewayConfiguration
   @Inject
   @Provides
   @Singleton
-  public List<PrestoClusterStatsObserver> getClusterStatsObservers(RoutingManager routingManager) {
+  public List<PrestoClusterStatsObserver> getClusterStatsObservers(RoutingManager routingManager,
+      BackendConnectionManager backendConnectionManager) {
     observers = new ArrayList<>();
     NotifierConfiguration notifierConfiguration = getConfiguration().getNotifier();
 
@@ -41,7 +44,18 @@ public class ClusterStateListenerModule extends AppModule<HaGatewayConfiguration
       observers.add(new HealthChecker(new EmailNotifier(notifierConfiguration)));
     }
 
-    observers.add(new PrestoQueueLengthChecker((PrestoQueueLengthRoutingTable)routingManager));
+    if (routingManager instanceof PrestoQueueLengthRoutingTable) {
+      RequestRouterConfiguration routerConfiguration = getConfiguration().getRequestRouter();
+      observers.add(routerConfiguration == null
+          ? new PrestoQueueLengthChecker((PrestoQueueLengthRoutingTable) routingManager)
+          : new PrestoQueueLengthChecker((PrestoQueueLengthRoutingTable) routingManager,
+              routerConfiguration.getLoadFormula(),
+              routerConfiguration.getRoutingGroupLoadFormulas()));
+    }
+    if (routingManager instanceof PrestoClusterStatsObserver) {
+      observers.add((PrestoClusterStatsObserver) routingManager);
+    }
+    observers.add(backendConnectionManager);
     return observers;
   }
 }
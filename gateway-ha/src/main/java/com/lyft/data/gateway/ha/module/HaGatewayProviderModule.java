@@ -1,42 +1,122 @@
 package com.lyft.data.gateway.ha.module;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.lyft.data.baseapp.AppModule;
+import com.lyft.data.gateway.ha.concurrent.BlockingExecutors;
+import com.lyft.data.gateway.ha.config.ClusterMonitorConfiguration;
 import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
+import com.lyft.data.gateway.ha.config.OutlierDetectionConfiguration;
+import com.lyft.data.gateway.ha.config.QueryHistoryWriterConfiguration;
 import com.lyft.data.gateway.ha.config.RequestRouterConfiguration;
+import com.lyft.data.gateway.ha.handler.BackendTokenCodec;
 import com.lyft.data.gateway.ha.handler.QueryIdCachingProxyHandler;
 import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+import com.lyft.data.gateway.ha.router.BackendConnectionManager;
+import com.lyft.data.gateway.ha.router.BackendOutlierDetector;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import com.lyft.data.gateway.ha.router.HaGatewayManager;
 import com.lyft.data.gateway.ha.router.HaQueryHistoryManager;
 import com.lyft.data.gateway.ha.router.HaRoutingManager;
+import com.lyft.data.gateway.ha.router.LoadAwareRoutingManager;
 import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
 import com.lyft.data.gateway.ha.router.QueryHistoryManager;
+import com.lyft.data.gateway.ha.router.QueueLengthModel;
 import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
 import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingPolicy;
+import com.lyft.data.gateway.ha.router.WriteBehindQueryHistoryManager;
 import com.lyft.data.proxyserver.ProxyHandler;
 import com.lyft.data.proxyserver.ProxyServer;
 import com.lyft.data.proxyserver.ProxyServerConfiguration;
 import io.dropwizard.setup.Environment;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+@Slf4j
 public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, Environment> {
   private final GatewayBackendManager gatewayBackendManager;
   private final QueryHistoryManager queryHistoryManager;
   private final RoutingManager routingManager;
   private final JdbcConnectionManager connectionManager;
   private final RoutingGroupsManager routingGroupsManager;
+  private final BlockingExecutors blockingExecutors;
+  private final BackendConnectionManager backendConnectionManager;
 
   public HaGatewayProviderModule(HaGatewayConfiguration configuration, Environment environment) {
     super(configuration, environment);
-    connectionManager = new JdbcConnectionManager(configuration.getDataStore());
+    blockingExecutors = BlockingExecutors.forConfiguration(configuration.isVirtualThreads());
+    connectionManager =
+        new JdbcConnectionManager(configuration.getDataStore(), environment.metrics());
+    // Managed objects stop in reverse order, the pool outlives whatever writes through it
+    environment.lifecycle().manage(connectionManager);
     gatewayBackendManager = new HaGatewayManager(connectionManager);
-    queryHistoryManager = new HaQueryHistoryManager(configuration, connectionManager);
+    queryHistoryManager = buildQueryHistoryManager(configuration, environment);
     routingGroupsManager = new RoutingGroupsManager(connectionManager);
-    routingManager = new PrestoQueueLengthRoutingTable(gatewayBackendManager,
-                               (HaQueryHistoryManager) queryHistoryManager,
-                               routingGroupsManager);
+    routingManager = buildRoutingManager(configuration);
+    routingManager.setBlockingExecutors(blockingExecutors);
+    RequestRouterConfiguration routerConfiguration = configuration.getRequestRouter();
+    if (routerConfiguration != null) {
+      routingManager.configureQueryIdCache(
+          routerConfiguration.getQueryIdCacheSize(),
+          TimeUnit.MINUTES.toMillis(routerConfiguration.getQueryIdCacheExpiryMinutes()),
+          TimeUnit.MINUTES.toMillis(routerConfiguration.getQueryIdCacheRefreshMinutes()));
+      routingManager.configureQueryIdDiscovery(
+          routerConfiguration.getQueryIdDiscoveryTimeoutMillis(),
+          TimeUnit.SECONDS.toMillis(routerConfiguration.getUnknownQueryIdTtlSeconds()));
+    }
+    routingManager.getQueryIdBackendCache().registerMetrics(environment.metrics(), "queryIdCache");
+    backendConnectionManager = new BackendConnectionManager(routingManager::getRoutingSnapshot,
+        routerConfiguration == null ? 0 : routerConfiguration.getBackendPrewarmConnections());
+    OutlierDetectionConfiguration outlierConfiguration = configuration.getOutlierDetection();
+    if (outlierConfiguration != null && outlierConfiguration.isEnabled()) {
+      BackendOutlierDetector outlierDetector = new BackendOutlierDetector(outlierConfiguration);
+      routingManager.setOutlierDetector(outlierDetector);
+      environment.metrics().gauge("outlierDetection.ejectedBackends",
+          () -> (Gauge<Integer>) outlierDetector::getEjectedBackendCount);
+    }
+  }
+
+  private RoutingManager buildRoutingManager(HaGatewayConfiguration configuration) {
+    RequestRouterConfiguration routerConfiguration = configuration.getRequestRouter();
+    String routingPolicy = routerConfiguration == null
+        ? RequestRouterConfiguration.QUEUE_LENGTH_ROUTING : routerConfiguration.getRoutingPolicy();
+    if (RequestRouterConfiguration.QUEUE_LENGTH_ROUTING.equalsIgnoreCase(routingPolicy)) {
+      QueueLengthModel queueLengthModel = routerConfiguration == null
+          ? QueueLengthModel.latestSample()
+          : new QueueLengthModel(routerConfiguration.getQueueLengthSmoothing(),
+              routerConfiguration.getQueueLengthTrendSmoothing());
+      return new PrestoQueueLengthRoutingTable(gatewayBackendManager,
+                               queryHistoryManager,
+                               routingGroupsManager,
+                               queueLengthModel);
+    }
+    return new LoadAwareRoutingManager(gatewayBackendManager,
+                               queryHistoryManager,
+                               routingGroupsManager,
+                               RoutingPolicy.forName(routingPolicy));
+  }
+
+  private QueryHistoryManager buildQueryHistoryManager(
+      HaGatewayConfiguration configuration, Environment environment) {
+    QueryHistoryManager historyManager =
+        new HaQueryHistoryManager(configuration, connectionManager);
+    QueryHistoryWriterConfiguration writerConfiguration = configuration.getQueryHistoryWriter();
+    if (writerConfiguration == null || !writerConfiguration.isAsync()) {
+      return historyManager;
+    }
+    WriteBehindQueryHistoryManager writeBehindManager =
+        new WriteBehindQueryHistoryManager(
+            historyManager, writerConfiguration, environment.metrics(), "queryHistory.writer");
+    environment.lifecycle().manage(writeBehindManager);
+    return writeBehindManager;
   }
 
   protected ProxyHandler getProxyHandler() {
@@ -44,8 +124,28 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
         getEnvironment()
             .metrics()
             .meter(getConfiguration().getRequestRouter().getName() + ".requests");
-    return new QueryIdCachingProxyHandler(
-        getQueryHistoryManager(), getRoutingManager(), getApplicationPort(), requestMeter);
+    RequestRouterConfiguration routerConfiguration = getConfiguration().getRequestRouter();
+    QueryIdCachingProxyHandler proxyHandler = new QueryIdCachingProxyHandler(
+        getQueryHistoryManager(),
+        getRoutingManager(),
+        getApplicationPort(),
+        requestMeter,
+        routerConfiguration.getMaxSubmissionRetries());
+    if (routerConfiguration.isStatelessRouting()) {
+      String secret = routerConfiguration.getStatelessRoutingSecret();
+      if (Strings.isNullOrEmpty(secret)) {
+        log.warn("Stateless routing is on without statelessRoutingSecret, backend tokens are "
+            + "signed with a random secret: they do not survive a restart and are not accepted "
+            + "by other gateway replicas, whose polls fall back on query id routing");
+      }
+      proxyHandler.setBackendTokenCodec(Strings.isNullOrEmpty(secret)
+          ? BackendTokenCodec.withRandomSecret()
+          : new BackendTokenCodec(secret.getBytes(StandardCharsets.UTF_8)));
+    }
+    proxyHandler.configureDirectCoordinatorRouting(
+        routerConfiguration.isDirectCoordinatorHeaderAllowed(),
+        routerConfiguration.getDirectCoordinatorRoutingGroups());
+    return proxyHandler;
   }
 
   @Provides
@@ -63,13 +163,55 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
       routerProxyConfig.setSsl(routerConfiguration.isSsl());
       routerProxyConfig.setKeystorePath(routerConfiguration.getKeystorePath());
       routerProxyConfig.setKeystorePass(routerConfiguration.getKeystorePass());
+      routerProxyConfig.setBufferAllRequests(routerConfiguration.isBufferAllRequests());
+      routerProxyConfig.setMaxThreads(routerConfiguration.getMaxThreads());
+      routerProxyConfig.setMinThreads(routerConfiguration.getMinThreads());
+      routerProxyConfig.setThreadIdleTimeoutMillis(
+          routerConfiguration.getThreadIdleTimeoutMillis());
+      routerProxyConfig.setReservedThreads(routerConfiguration.getReservedThreads());
+      routerProxyConfig.setAcceptors(routerConfiguration.getAcceptors());
+      routerProxyConfig.setSelectors(routerConfiguration.getSelectors());
+      routerProxyConfig.setAcceptQueueSize(routerConfiguration.getAcceptQueueSize());
+      routerProxyConfig.setIdleTimeoutMillis(routerConfiguration.getIdleTimeoutMillis());
+      routerProxyConfig.setOutputBufferSize(routerConfiguration.getOutputBufferSize());
+      routerProxyConfig.setRequestHeaderSize(routerConfiguration.getRequestHeaderSize());
+      routerProxyConfig.setResponseHeaderSize(routerConfiguration.getResponseHeaderSize());
+      routerProxyConfig.setHttp2(routerConfiguration.isHttp2());
+      routerProxyConfig.setHttp2ToBackends(routerConfiguration.isHttp2ToBackends());
+      routerProxyConfig.setBackendMaxConnections(routerConfiguration.getBackendMaxConnections());
+      routerProxyConfig.setBackendMaxQueuedRequests(
+          routerConfiguration.getBackendMaxQueuedRequests());
+      routerProxyConfig.setBackendIdleTimeoutMillis(
+          routerConfiguration.getBackendIdleTimeoutMillis());
 
       ProxyHandler proxyHandler = getProxyHandler();
       gateway = new ProxyServer(routerProxyConfig, proxyHandler);
+      registerProxyServerMetrics(gateway, routerConfiguration.getName());
+      backendConnectionManager.setConnectionPools(gateway.getBackendConnectionPools(),
+          getEnvironment().metrics(), routerConfiguration.getName());
     }
     return gateway;
   }
 
+  private void registerProxyServerMetrics(ProxyServer gateway, String name) {
+    MetricRegistry metrics = getEnvironment().metrics();
+    QueuedThreadPool threadPool = gateway.getThreadPool();
+    metrics.gauge(name + ".threads", () -> (Gauge<Integer>) threadPool::getThreads);
+    metrics.gauge(name + ".threads.busy", () -> (Gauge<Integer>) threadPool::getBusyThreads);
+    metrics.gauge(name + ".threads.idle", () -> (Gauge<Integer>) threadPool::getIdleThreads);
+    metrics.gauge(name + ".threads.max", () -> (Gauge<Integer>) threadPool::getMaxThreads);
+    metrics.gauge(name + ".threads.queued", () -> (Gauge<Integer>) threadPool::getQueueSize);
+    ConnectionStatistics connections = gateway.getConnectionStatistics();
+    metrics.gauge(name + ".connections", () -> (Gauge<Long>) connections::getConnections);
+    metrics.gauge(name + ".connections.max", () -> (Gauge<Long>) connections::getConnectionsMax);
+    metrics.gauge(name + ".connections.total",
+        () -> (Gauge<Long>) connections::getConnectionsTotal);
+    metrics.gauge(name + ".connections.durationMean",
+        () -> (Gauge<Double>) connections::getConnectionDurationMean);
+    metrics.gauge(name + ".bytes.received", () -> (Gauge<Long>) connections::getReceivedBytes);
+    metrics.gauge(name + ".bytes.sent", () -> (Gauge<Long>) connections::getSentBytes);
+  }
+
   @Provides
   @Singleton
   public GatewayBackendManager getGatewayBackendManager() {
@@ -99,4 +241,23 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
   public RoutingGroupsManager getRoutingGroupsManager() {
     return this.routingGroupsManager;
   }
+
+  @Provides
+  @Singleton
+  public BlockingExecutors getBlockingExecutors() {
+    return this.blockingExecutors;
+  }
+
+  @Provides
+  @Singleton
+  public BackendConnectionManager getBackendConnectionManager() {
+    return this.backendConnectionManager;
+  }
+
+  @Provides
+  @Singleton
+  public ClusterMonitorConfiguration getClusterMonitorConfiguration() {
+    ClusterMonitorConfiguration monitorConfiguration = getConfiguration().getClusterMonitor();
+    return monitorConfiguration == null ? new ClusterMonitorConfiguration() : monitorConfiguration;
+  }
 }
\ No newline at end of file
@@ -1,8 +1,12 @@
 package com.lyft.data.gateway.ha.persistence;
 
+import com.codahale.metrics.MetricRegistry;
 import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
 import com.lyft.data.gateway.ha.persistence.dao.QueryHistory;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
+import io.dropwizard.lifecycle.Managed;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -10,22 +14,83 @@ import lombok.extern.slf4j.Slf4j;
 import org.javalite.activejdbc.Base;
 
 @Slf4j
-public class JdbcConnectionManager {
+public class JdbcConnectionManager implements Managed {
+  private static final String POOL_NAME = "gateway-datastore";
+
   private final DataStoreConfiguration configuration;
+  private final HikariDataSource dataSource;
   private final ScheduledExecutorService executorService =
       Executors.newSingleThreadScheduledExecutor();
 
   public JdbcConnectionManager(DataStoreConfiguration configuration) {
+    this(configuration, null);
+  }
+
+  /**
+   * Manages connections to the data store. When the data store is pooled, {@link #open()} borrows
+   * a connection from the pool and {@link #close()} hands it back, instead of connecting to the
+   * database every time. Pool metrics are published to the registry under "gateway-datastore.pool".
+   *
+   * @param configuration data store to connect to
+   * @param metrics registry for the pool metrics, may be null
+   */
+  public JdbcConnectionManager(DataStoreConfiguration configuration, MetricRegistry metrics) {
     this.configuration = configuration;
+    this.dataSource = configuration.isPooled() ? createDataSource(configuration, metrics) : null;
     startCleanUps();
   }
 
+  private static HikariDataSource createDataSource(
+      DataStoreConfiguration configuration, MetricRegistry metrics) {
+    HikariConfig hikariConfig = new HikariConfig();
+    hikariConfig.setPoolName(POOL_NAME);
+    hikariConfig.setDriverClassName(configuration.getDriver());
+    hikariConfig.setJdbcUrl(configuration.getJdbcUrl());
+    hikariConfig.setUsername(configuration.getUser());
+    hikariConfig.setPassword(configuration.getPassword());
+    hikariConfig.setMaximumPoolSize(configuration.getMaxPoolSize());
+    hikariConfig.setMinimumIdle(
+        Math.min(configuration.getMinIdle(), configuration.getMaxPoolSize()));
+    hikariConfig.setIdleTimeout(configuration.getIdleTimeoutMillis());
+    hikariConfig.setMaxLifetime(configuration.getMaxLifetimeMillis());
+    hikariConfig.setConnectionTimeout(configuration.getConnectionTimeoutMillis());
+    hikariConfig.setValidationTimeout(configuration.getValidationTimeoutMillis());
+    if (configuration.getValidationQuery() != null) {
+      hikariConfig.setConnectionTestQuery(configuration.getValidationQuery());
+    }
+    // Same as the unpooled mode, an unreachable database must not keep the gateway from starting
+    hikariConfig.setInitializationFailTimeout(-1);
+    if (metrics != null) {
+      hikariConfig.setMetricRegistry(metrics);
+    }
+    return new HikariDataSource(hikariConfig);
+  }
+
+  @Override
+  public void start() {}
+
+  /**
+   * Stops the clean ups and closes the pool, if any, along with its connections.
+   */
+  @Override
+  public void stop() {
+    executorService.shutdownNow();
+    if (dataSource != null) {
+      dataSource.close();
+      log.info("Closed data store connection pool");
+    }
+  }
+
   public void open() {
-    Base.open(
-        configuration.getDriver(),
-        configuration.getJdbcUrl(),
-        configuration.getUser(),
-        configuration.getPassword());
+    if (dataSource != null) {
+      Base.open(dataSource);
+    } else {
+      Base.open(
+          configuration.getDriver(),
+          configuration.getJdbcUrl(),
+          configuration.getUser(),
+          configuration.getPassword());
+    }
     log.debug("Connection opened");
   }
 
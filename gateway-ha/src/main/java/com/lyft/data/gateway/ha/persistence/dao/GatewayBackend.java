@@ -18,15 +18,26 @@ public class GatewayBackend extends Model {
   private static final String routingGroup = "routing_group";
   private static final String backendUrl = "backend_url";
   private static final String active = "active";
+  private static final String maxConnections = "max_connections";
+  private static final String maxQueuedRequests = "max_queued_requests";
+  private static final String connectionIdleTimeoutMillis = "connection_idle_timeout_millis";
+  private static final String prewarmConnections = "prewarm_connections";
 
   public static List<ProxyBackendConfiguration> upcast(List<GatewayBackend> gatewayBackendList) {
     List<ProxyBackendConfiguration> proxyBackendConfigurations = new ArrayList<>();
+    boolean hasPoolColumns = hasPoolColumns();
     for (GatewayBackend model : gatewayBackendList) {
       ProxyBackendConfiguration backendConfig = new ProxyBackendConfiguration();
       backendConfig.setActive(model.getBoolean(active));
       backendConfig.setRoutingGroup(model.getString(routingGroup));
       backendConfig.setProxyTo(model.getString(backendUrl));
       backendConfig.setName(model.getString(name));
+      if (hasPoolColumns) {
+        backendConfig.setMaxConnections(model.getInteger(maxConnections));
+        backendConfig.setMaxQueuedRequests(model.getInteger(maxQueuedRequests));
+        backendConfig.setConnectionIdleTimeoutMillis(model.getLong(connectionIdleTimeoutMillis));
+        backendConfig.setPrewarmConnections(model.getInteger(prewarmConnections));
+      }
       proxyBackendConfigurations.add(backendConfig);
     }
     return proxyBackendConfigurations;
@@ -37,13 +48,14 @@ public class GatewayBackend extends Model {
         .set(name, backend.getName())
         .set(routingGroup, backend.getRoutingGroup())
         .set(backendUrl, backend.getProxyTo())
-        .set(active, backend.isActive())
-        .saveIt();
+        .set(active, backend.isActive());
+    setPoolColumns(model, backend);
+    model.saveIt();
   }
 
   public static void create(GatewayBackend model, ProxyBackendConfiguration backend) {
-    model
-        .create(
+    GatewayBackend created =
+        model.create(
             name,
             backend.getName(),
             routingGroup,
@@ -51,7 +63,24 @@ public class GatewayBackend extends Model {
             backendUrl,
             backend.getProxyTo(),
             active,
-            backend.isActive())
-        .insert();
+            backend.isActive());
+    setPoolColumns(created, backend);
+    created.insert();
+  }
+
+  private static void setPoolColumns(GatewayBackend model, ProxyBackendConfiguration backend) {
+    if (hasPoolColumns()) {
+      model
+          .set(maxConnections, backend.getMaxConnections())
+          .set(maxQueuedRequests, backend.getMaxQueuedRequests())
+          .set(connectionIdleTimeoutMillis, backend.getConnectionIdleTimeoutMillis())
+          .set(prewarmConnections, backend.getPrewarmConnections());
+    }
+  }
+
+  // Databases created before the pool columns were added keep working without them, see
+  // gateway-backend-connection-pools.sql
+  private static boolean hasPoolColumns() {
+    return getMetaModel().getAttributeNamesSkipId().contains(maxConnections);
   }
 }
@@ -2,14 +2,19 @@ package com.lyft.data.gateway.ha.persistence.dao;
 
 import static com.lyft.data.gateway.ha.router.QueryHistoryManager.QueryDetail;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import lombok.extern.slf4j.Slf4j;
+import org.javalite.activejdbc.Base;
 import org.javalite.activejdbc.Model;
 import org.javalite.activejdbc.annotations.Cached;
 import org.javalite.activejdbc.annotations.IdName;
 import org.javalite.activejdbc.annotations.Table;
 
+@Slf4j
 @IdName("query_id")
 @Table("query_history")
 @Cached
@@ -20,6 +25,9 @@ public class QueryHistory extends Model {
   private static final String userName = "user_name";
   private static final String source = "source";
   private static final String created = "created";
+  private static final String INSERT_SQL =
+      "INSERT INTO query_history (" + String.join(", ", queryId, queryText, backendUrl, userName,
+          source, created) + ") VALUES (?, ?, ?, ?, ?, ?)";
 
   public static List<QueryDetail> upcast(List<QueryHistory> queryHistoryList) {
     List<QueryDetail> queryDetails = new ArrayList<>();
@@ -45,4 +53,44 @@ public class QueryHistory extends Model {
     model.set(created, queryDetail.getCaptureTime());
     model.insert();
   }
+
+  /**
+   * Inserts all query details with a single JDBC batch in one transaction. Expects an open
+   * connection.
+   * @param queryDetails Queries to save
+   */
+  public static void createBatch(List<QueryDetail> queryDetails) {
+    Base.openTransaction();
+    PreparedStatement ps = null;
+    try {
+      ps = Base.startBatch(INSERT_SQL);
+      for (QueryDetail queryDetail : queryDetails) {
+        Base.addBatch(
+            ps,
+            queryDetail.getQueryId(),
+            queryDetail.getQueryText(),
+            queryDetail.getBackendUrl(),
+            queryDetail.getUser(),
+            queryDetail.getSource(),
+            queryDetail.getCaptureTime());
+      }
+      Base.executeBatch(ps);
+      Base.commitTransaction();
+    } catch (RuntimeException e) {
+      Base.rollbackTransaction();
+      throw e;
+    } finally {
+      try {
+        if (ps != null) {
+          ps.close();
+        }
+        // activejdbc leaves auto commit off once the transaction is over
+        Base.connection().setAutoCommit(true);
+      } catch (SQLException e) {
+        log.warn("Error cleaning up after query history batch", e);
+      }
+      // Rows were written behind the model's back, drop anything cached for the table.
+      purgeCache();
+    }
+  }
 }
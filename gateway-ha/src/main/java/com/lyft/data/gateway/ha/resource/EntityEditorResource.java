@@ -10,6 +10,7 @@ import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
+import com.lyft.data.gateway.ha.router.RoutingManager;
 
 import io.dropwizard.views.View;
 
@@ -36,6 +37,7 @@ import lombok.extern.slf4j.Slf4j;
 public class EntityEditorResource {
   @Inject private GatewayBackendManager gatewayBackendManager;
   @Inject private RoutingGroupsManager routingGroupsManager;
+  @Inject private RoutingManager routingManager;
   public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   @GET
@@ -82,6 +84,7 @@ public class EntityEditorResource {
           break;
         default:
       }
+      routingManager.invalidateRoutingSnapshot();
     } catch (IOException e) {
       log.error(e.getMessage(), e);
       return throwError(e);
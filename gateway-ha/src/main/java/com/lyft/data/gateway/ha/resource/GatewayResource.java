@@ -2,8 +2,10 @@ package com.lyft.data.gateway.ha.resource;
 
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
+import com.lyft.data.gateway.ha.router.BackendConnectionManager;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
+import com.lyft.data.gateway.ha.router.RoutingManager;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -22,6 +24,8 @@ import lombok.extern.slf4j.Slf4j;
 public class GatewayResource {
   @Inject private GatewayBackendManager gatewayBackendManager;
   @Inject private RoutingGroupsManager routingGroupsManager;
+  @Inject private RoutingManager routingManager;
+  @Inject private BackendConnectionManager backendConnectionManager;
 
   @GET
   public Response ok(@Context Request request) {
@@ -59,6 +63,7 @@ public class GatewayResource {
 
     try {
       this.gatewayBackendManager.deactivateBackend(name);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -79,6 +84,8 @@ public class GatewayResource {
 
     try {
       this.gatewayBackendManager.activateBackend(name);
+      routingManager.invalidateRoutingSnapshot();
+      backendConnectionManager.onBackendActivated(name);
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
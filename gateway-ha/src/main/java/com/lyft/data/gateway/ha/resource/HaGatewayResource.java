@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
+import com.lyft.data.gateway.ha.router.RoutingManager;
 
 import java.io.IOException;
 
@@ -27,6 +28,7 @@ import lombok.extern.slf4j.Slf4j;
 @Produces(MediaType.APPLICATION_JSON)
 public class HaGatewayResource {
   @Inject private GatewayBackendManager haGatewayManager;
+  @Inject private RoutingManager routingManager;
   public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   /**
@@ -43,6 +45,7 @@ public class HaGatewayResource {
       ProxyBackendConfiguration backend = 
           OBJECT_MAPPER.readValue(jsonPayload, ProxyBackendConfiguration.class);
       addedBackend = haGatewayManager.addBackend(backend);
+      routingManager.invalidateRoutingSnapshot();
     } catch (IOException e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -65,6 +68,7 @@ public class HaGatewayResource {
       ProxyBackendConfiguration backend = 
           OBJECT_MAPPER.readValue(jsonPayload, ProxyBackendConfiguration.class);
       updatedBackend = haGatewayManager.updateBackend(backend);
+      routingManager.invalidateRoutingSnapshot();
     } catch (IOException e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -82,6 +86,7 @@ public class HaGatewayResource {
   @POST
   public Response removeBackend(String name) {
     haGatewayManager.deleteBackend(name);
+    routingManager.invalidateRoutingSnapshot();
     return Response.ok().build();
   }
 }
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
 import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
+import com.lyft.data.gateway.ha.router.RoutingManager;
 
 import javax.ws.rs.DELETE;
 import javax.ws.rs.POST;
@@ -25,6 +26,7 @@ import lombok.extern.slf4j.Slf4j;
 @Path("gateway/routingGroups")
 public class RoutingGroupResource {
   @Inject private RoutingGroupsManager routingGroupsManager;
+  @Inject private RoutingManager routingManager;
   public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   /**
@@ -38,6 +40,7 @@ public class RoutingGroupResource {
       RoutingGroupConfiguration group = 
           OBJECT_MAPPER.readValue(jsonPayload, RoutingGroupConfiguration.class);
       routingGroupsManager.addRoutingGroup(group);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -63,6 +66,7 @@ public class RoutingGroupResource {
           OBJECT_MAPPER.readValue(jsonPayload, RoutingGroupConfiguration.class);
       group.setName(name);
       routingGroupsManager.updateRoutingGroup(group);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -85,6 +89,7 @@ public class RoutingGroupResource {
 
     try {
       routingGroupsManager.deleteRoutingGroups(name);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -106,6 +111,7 @@ public class RoutingGroupResource {
 
     try {
       routingGroupsManager.pauseRoutingGroup(name);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -127,6 +133,7 @@ public class RoutingGroupResource {
     
     try {
       routingGroupsManager.resumeRoutingGroup(name);
+      routingManager.invalidateRoutingSnapshot();
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       return throwError(e);
@@ -0,0 +1,194 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.proxyserver.BackendConnectionPools;
+import com.lyft.data.proxyserver.BackendConnectionPools.PoolStats;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the proxy connection pools of the backends in line with the routing snapshot: pool limits
+ * of each backend and their gauges. Connections to a backend are pre-warmed when it is activated
+ * or first reported healthy by the cluster monitor, so a new coordinator is not hit by every
+ * handshake at once the moment it becomes routable.
+ */
+@Slf4j
+public class BackendConnectionManager implements PrestoClusterStatsObserver {
+  private final Supplier<RoutingSnapshot> routingSnapshots;
+  private final int defaultPrewarmConnections;
+  // Backends last reported healthy, by name
+  private final Set<String> healthyBackends = ConcurrentHashMap.newKeySet();
+
+  private volatile BackendConnectionPools connectionPools;
+  private MetricRegistry metrics;
+  private String metricPrefix;
+  // Guarded by this
+  private long syncedVersion = -1;
+  private Map<String, String> backendUrls = new HashMap<>();
+
+  public BackendConnectionManager(
+      Supplier<RoutingSnapshot> routingSnapshots, int defaultPrewarmConnections) {
+    this.routingSnapshots = routingSnapshots;
+    this.defaultPrewarmConnections = defaultPrewarmConnections;
+  }
+
+  /**
+   * Manages the given pools, nothing is done until then.
+   *
+   * @param metrics registry of the pool gauges, none are registered if null
+   * @param metricPrefix prefix of the gauges, followed by .backends.[backend name].pool
+   */
+  public synchronized void setConnectionPools(
+      BackendConnectionPools connectionPools, MetricRegistry metrics, String metricPrefix) {
+    this.connectionPools = connectionPools;
+    this.metrics = metrics;
+    this.metricPrefix = metricPrefix;
+    this.syncedVersion = -1;
+  }
+
+  /**
+   * Called once a backend is activated through the API, after the routing snapshot is refreshed.
+   */
+  public void onBackendActivated(String backendName) {
+    RoutingSnapshot snapshot = routingSnapshots.get();
+    sync(snapshot);
+    prewarm(snapshot, backendName);
+  }
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    healthyBackends.retainAll(stats.stream()
+        .filter(ClusterStats::isHealthy)
+        .map(ClusterStats::getClusterId)
+        .collect(Collectors.toSet()));
+  }
+
+  @Override
+  public void observe(ClusterStats polled, List<ClusterStats> latestStats) {
+    if (!polled.isHealthy()) {
+      // Pre-warmed again once it recovers, its connections are likely gone by then
+      healthyBackends.remove(polled.getClusterId());
+      return;
+    }
+    RoutingSnapshot snapshot = routingSnapshots.get();
+    sync(snapshot);
+    if (healthyBackends.add(polled.getClusterId())) {
+      prewarm(snapshot, polled.getClusterId());
+    }
+  }
+
+  private void prewarm(RoutingSnapshot snapshot, String backendName) {
+    BackendConnectionPools pools = connectionPools;
+    if (pools == null) {
+      return;
+    }
+    for (ProxyBackendConfiguration backend : snapshot.getAllBackends()) {
+      if (backend.getName().equals(backendName) && backend.isActive()) {
+        int connections = backend.getPrewarmConnections() == null
+            ? defaultPrewarmConnections
+            : backend.getPrewarmConnections();
+        int opened = pools.prewarm(backend.getProxyTo(), connections);
+        if (opened > 0) {
+          log.info("Pre-warming [{}] connections to backend [{}]", opened, backendName);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Applies the pool limits of the backends of the snapshot, unless already done, and registers
+   * the gauges of new backends.
+   */
+  synchronized void sync(RoutingSnapshot snapshot) {
+    if (connectionPools == null || snapshot.getVersion() == syncedVersion) {
+      return;
+    }
+    syncedVersion = snapshot.getVersion();
+    Map<String, String> urls = new HashMap<>();
+    for (ProxyBackendConfiguration backend : snapshot.getAllBackends()) {
+      if (backend.getProxyTo() == null) {
+        continue;
+      }
+      urls.put(backend.getName(), backend.getProxyTo());
+      if (backend.getMaxConnections() == null
+          && backend.getMaxQueuedRequests() == null
+          && backend.getConnectionIdleTimeoutMillis() == null) {
+        connectionPools.removeLimits(backend.getProxyTo());
+      } else {
+        connectionPools.setLimits(backend.getProxyTo(),
+            orZero(backend.getMaxConnections()),
+            orZero(backend.getMaxQueuedRequests()),
+            backend.getConnectionIdleTimeoutMillis() == null
+                ? 0 : backend.getConnectionIdleTimeoutMillis());
+      }
+    }
+    for (Map.Entry<String, String> registered : backendUrls.entrySet()) {
+      String url = urls.get(registered.getKey());
+      if (!Objects.equals(url, registered.getValue())) {
+        if (!urls.containsValue(registered.getValue())) {
+          connectionPools.removeLimits(registered.getValue());
+        }
+        removeGauges(registered.getKey());
+      }
+    }
+    for (Map.Entry<String, String> backend : urls.entrySet()) {
+      if (!backend.getValue().equals(backendUrls.get(backend.getKey()))) {
+        registerGauges(backend.getKey(), backend.getValue());
+      }
+    }
+    backendUrls = urls;
+  }
+
+  private static int orZero(Integer value) {
+    return value == null ? 0 : value;
+  }
+
+  private String gaugePrefix(String backendName) {
+    return MetricRegistry.name(metricPrefix, "backends", backendName, "pool");
+  }
+
+  private void registerGauges(String backendName, String backendUrl) {
+    if (metrics == null) {
+      return;
+    }
+    BackendConnectionPools pools = connectionPools;
+    String prefix = gaugePrefix(backendName);
+    registerGauge(prefix + ".connections", pools, backendUrl, PoolStats::getConnections);
+    registerGauge(prefix + ".connections.active", pools, backendUrl,
+        PoolStats::getActiveConnections);
+    registerGauge(prefix + ".connections.idle", pools, backendUrl,
+        PoolStats::getIdleConnections);
+    registerGauge(prefix + ".connections.pending", pools, backendUrl,
+        PoolStats::getPendingConnections);
+    registerGauge(prefix + ".connections.max", pools, backendUrl, PoolStats::getMaxConnections);
+    registerGauge(prefix + ".requests.queued", pools, backendUrl, PoolStats::getQueuedRequests);
+  }
+
+  private void registerGauge(String name, BackendConnectionPools pools, String backendUrl,
+      Function<PoolStats, Integer> value) {
+    metrics.gauge(name, () -> (Gauge<Integer>) () -> value.apply(pools.getStats(backendUrl)));
+  }
+
+  private void removeGauges(String backendName) {
+    if (metrics == null) {
+      return;
+    }
+    String prefix = gaugePrefix(backendName) + ".";
+    metrics.removeMatching((name, metric) -> name.startsWith(prefix));
+  }
+}
@@ -0,0 +1,28 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+
+/**
+ * What the gateway knows about the load of its backends, keyed by backend address.
+ */
+public interface BackendLoads {
+  /**
+   * Stats of the last poll of the backend, null if it was not polled yet.
+   */
+  ClusterStats getClusterStats(String backend);
+
+  /**
+   * Queries dispatched to the backend by this gateway that have not finished yet.
+   */
+  int getInFlightQueryCount(String backend);
+
+  /**
+   * Queued and running queries of the last poll, plus the queries dispatched since then.
+   */
+  int getEstimatedLoad(String backend);
+
+  /**
+   * Backends that were not polled yet are considered healthy, ejected backends are not.
+   */
+  boolean isHealthy(String backend);
+}
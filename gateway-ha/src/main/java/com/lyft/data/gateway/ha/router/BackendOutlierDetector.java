@@ -0,0 +1,305 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.OutlierDetectionConfiguration;
+import com.lyft.data.proxyserver.ProxyHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Learns the health of backends from the traffic proxied to them, between two polls of the
+ * {@link com.lyft.data.gateway.ha.clustermonitor.ActiveClusterMonitor}. Per backend it keeps
+ * the requests, 5xx responses, connect failures and response latencies of a sliding window, in
+ * a ring of time buckets updated without locks. Counts are approximate: a few updates racing
+ * with the rotation of a bucket may be lost.
+ *
+ * <p>A backend that fails too many connects in a row, or too many requests of the window, is
+ * ejected from routing for a while. Each ejection that closely follows the previous one lasts
+ * twice as long, up to a maximum.
+ */
+@Slf4j
+public class BackendOutlierDetector {
+  private static final int BUCKETS = 10;
+  // Bin i counts latencies in [2^(i-1), 2^i) ms, bin 0 those under 1 ms
+  private static final int LATENCY_BINS = 24;
+
+  private final long bucketNanos;
+  private final int minRequests;
+  private final double maxErrorRate;
+  private final int consecutiveConnectFailures;
+  private final long baseEjectionNanos;
+  private final long maxEjectionNanos;
+  private final LongSupplier clock;
+  // Bucket indexes count from here, System.nanoTime() may be negative
+  private final long origin;
+  private final ConcurrentHashMap<String, BackendHealth> backends = new ConcurrentHashMap<>();
+  private volatile Runnable ejectionListener = () -> { };
+
+  public BackendOutlierDetector(OutlierDetectionConfiguration configuration) {
+    this(configuration, System::nanoTime);
+  }
+
+  BackendOutlierDetector(OutlierDetectionConfiguration configuration, LongSupplier clock) {
+    this.bucketNanos =
+        Math.max(1, TimeUnit.MILLISECONDS.toNanos(configuration.getWindowMillis()) / BUCKETS);
+    this.minRequests = configuration.getMinRequests();
+    this.maxErrorRate = configuration.getMaxErrorRate();
+    this.consecutiveConnectFailures = configuration.getConsecutiveConnectFailures();
+    this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getBaseEjectionMillis());
+    this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getMaxEjectionMillis());
+    this.clock = clock;
+    this.origin = clock.getAsLong();
+  }
+
+  private static final class Bucket {
+    private final AtomicLong index = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger serverErrors = new AtomicInteger();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicIntegerArray latencies = new AtomicIntegerArray(LATENCY_BINS);
+
+    void reset() {
+      requests.set(0);
+      serverErrors.set(0);
+      connectFailures.set(0);
+      for (int i = 0; i < LATENCY_BINS; i++) {
+        latencies.set(i, 0);
+      }
+    }
+  }
+
+  private static final class BackendHealth {
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+    private final AtomicInteger consecutiveConnectFailures = new AtomicInteger();
+    private volatile boolean ejected;
+    private volatile long ejectedUntil;
+    // Guarded by this
+    private int ejections;
+
+    BackendHealth() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new Bucket();
+      }
+    }
+
+    Bucket bucket(long index) {
+      Bucket bucket = buckets[(int) (index % BUCKETS)];
+      long current = bucket.index.get();
+      if (current < index && bucket.index.compareAndSet(current, index)) {
+        bucket.reset();
+      }
+      return bucket;
+    }
+
+    Stats stats(long index) {
+      int requests = 0;
+      int serverErrors = 0;
+      int connectFailures = 0;
+      int[] latencies = new int[LATENCY_BINS];
+      for (Bucket bucket : buckets) {
+        long bucketIndex = bucket.index.get();
+        if (bucketIndex > index - BUCKETS && bucketIndex <= index) {
+          requests += bucket.requests.get();
+          serverErrors += bucket.serverErrors.get();
+          connectFailures += bucket.connectFailures.get();
+          for (int i = 0; i < LATENCY_BINS; i++) {
+            latencies[i] += bucket.latencies.get(i);
+          }
+        }
+      }
+      return new Stats(requests, serverErrors, connectFailures, latencies);
+    }
+
+    void clear() {
+      for (Bucket bucket : buckets) {
+        bucket.index.set(Long.MIN_VALUE);
+      }
+      consecutiveConnectFailures.set(0);
+    }
+  }
+
+  /**
+   * Traffic of a backend over the sliding window.
+   */
+  public static final class Stats {
+    private final int requests;
+    private final int serverErrors;
+    private final int connectFailures;
+    private final int[] latencies;
+
+    Stats(int requests, int serverErrors, int connectFailures, int[] latencies) {
+      this.requests = requests;
+      this.serverErrors = serverErrors;
+      this.connectFailures = connectFailures;
+      this.latencies = latencies;
+    }
+
+    public int getRequests() {
+      return requests;
+    }
+
+    public int getServerErrors() {
+      return serverErrors;
+    }
+
+    public int getConnectFailures() {
+      return connectFailures;
+    }
+
+    public double getErrorRate() {
+      return requests == 0 ? 0 : (serverErrors + connectFailures) / (double) requests;
+    }
+
+    /**
+     * Upper bound of the given latency quantile, in milliseconds, rounded up to a power of 2.
+     * 0 if no response was received in the window.
+     */
+    public long getLatencyMillis(double quantile) {
+      int total = 0;
+      for (int count : latencies) {
+        total += count;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(quantile * total);
+      int seen = 0;
+      for (int i = 0; i < LATENCY_BINS; i++) {
+        seen += latencies[i];
+        if (seen >= rank) {
+          return 1L << i;
+        }
+      }
+      return 1L << (LATENCY_BINS - 1);
+    }
+  }
+
+  /**
+   * Called, outside of any lock, whenever a backend gets ejected.
+   */
+  public void setEjectionListener(Runnable ejectionListener) {
+    this.ejectionListener = ejectionListener;
+  }
+
+  /**
+   * Records the outcome of a request proxied to the backend.
+   *
+   * @param backend backend the request was proxied to
+   * @param status status of the backend response, 0 if none was received
+   * @param failure why the exchange failed, null if it did not
+   * @param latencyNanos time to the response headers, negative if unknown
+   */
+  public void recordResponse(String backend, int status, Throwable failure, long latencyNanos) {
+    if (backend == null) {
+      return;
+    }
+    long now = clock.getAsLong();
+    BackendHealth health = backends.computeIfAbsent(backend, b -> new BackendHealth());
+    Bucket bucket = health.bucket(bucketIndex(now));
+    if (status > 0) {
+      bucket.requests.incrementAndGet();
+      if (latencyNanos >= 0) {
+        bucket.latencies.incrementAndGet(latencyBin(latencyNanos));
+      }
+      if (health.consecutiveConnectFailures.get() != 0) {
+        health.consecutiveConnectFailures.set(0);
+      }
+      if (status < 500) {
+        return;
+      }
+      bucket.serverErrors.incrementAndGet();
+    } else if (ProxyHandler.isConnectFailure(failure)) {
+      bucket.requests.incrementAndGet();
+      bucket.connectFailures.incrementAndGet();
+      if (health.consecutiveConnectFailures.incrementAndGet() >= consecutiveConnectFailures) {
+        eject(backend, health, now, "consecutive connect failures");
+        return;
+      }
+    } else {
+      // Failed after connecting and before any response, the client may as well be at fault
+      return;
+    }
+
+    Stats stats = health.stats(bucketIndex(now));
+    if (stats.getRequests() >= minRequests && stats.getErrorRate() >= maxErrorRate) {
+      eject(backend, health, now, String.format("error rate %.2f over %d requests",
+          stats.getErrorRate(), stats.getRequests()));
+    }
+  }
+
+  private void eject(String backend, BackendHealth health, long now, String reason) {
+    long ejectionNanos;
+    synchronized (health) {
+      if (health.ejected && now - health.ejectedUntil < 0) {
+        return;
+      }
+      if (health.ejected && now - health.ejectedUntil > maxEjectionNanos) {
+        // Healthy long enough since the last ejection, start over from the base duration
+        health.ejections = 0;
+      }
+      health.ejections++;
+      ejectionNanos = Math.min(maxEjectionNanos,
+          baseEjectionNanos << Math.min(health.ejections - 1, 20));
+      health.ejectedUntil = now + ejectionNanos;
+      health.ejected = true;
+      health.clear();
+    }
+    log.warn("Ejecting backend [{}] from routing for [{}] ms: {}", backend,
+        TimeUnit.NANOSECONDS.toMillis(ejectionNanos), reason);
+    ejectionListener.run();
+  }
+
+  /**
+   * Time left until the ejection of the backend ends, 0 if the backend is not ejected.
+   */
+  public long getEjectionRemainingNanos(String backend) {
+    BackendHealth health = backend == null ? null : backends.get(backend);
+    if (health == null || !health.ejected) {
+      return 0;
+    }
+    return Math.max(0, health.ejectedUntil - clock.getAsLong());
+  }
+
+  public boolean isEjected(String backend) {
+    return getEjectionRemainingNanos(backend) > 0;
+  }
+
+  /**
+   * Number of backends currently ejected.
+   */
+  public int getEjectedBackendCount() {
+    int count = 0;
+    for (String backend : backends.keySet()) {
+      if (isEjected(backend)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Traffic of the backend over the sliding window.
+   */
+  public Stats getStats(String backend) {
+    BackendHealth health = backends.get(backend);
+    if (health == null) {
+      return new Stats(0, 0, 0, new int[LATENCY_BINS]);
+    }
+    return health.stats(bucketIndex(clock.getAsLong()));
+  }
+
+  private long bucketIndex(long now) {
+    return (now - origin) / bucketNanos;
+  }
+
+  private static int latencyBin(long latencyNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+    int bin = 64 - Long.numberOfLeadingZeros(millis);
+    return Math.min(bin, LATENCY_BINS - 1);
+  }
+}
@@ -28,6 +28,35 @@ public class HaQueryHistoryManager implements QueryHistoryManager {
     }
   }
 
+  /**
+   * Saves the queries with one JDBC batch. If the batch fails (e.g. a duplicate query id) the
+   * queries are saved one by one so a single bad row does not lose the rest.
+   */
+  @Override
+  public void submitQueryDetails(List<QueryDetail> queryDetails) {
+    if (queryDetails.isEmpty()) {
+      return;
+    }
+    try {
+      connectionManager.open();
+      try {
+        QueryHistory.createBatch(queryDetails);
+      } catch (Exception e) {
+        log.warn("Batch insert of [{}] queries failed, saving them one by one",
+            queryDetails.size(), e);
+        for (QueryDetail queryDetail : queryDetails) {
+          try {
+            QueryHistory.create(new QueryHistory(), queryDetail);
+          } catch (Exception ex) {
+            log.error("Error saving query [{}] to history", queryDetail.getQueryId(), ex);
+          }
+        }
+      }
+    } finally {
+      connectionManager.close();
+    }
+  }
+
   @Override
   public List<QueryDetail> fetchQueryHistory() {
     int limit = this.configuration.getRequestRouter().getHistorySize();
@@ -0,0 +1,104 @@
+package com.lyft.data.gateway.ha.router;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counts, per backend, the queries the gateway has dispatched and not yet seen finish. A query
+ * starts when its id is assigned and finishes when its last page goes through the proxy or it is
+ * cancelled. Clients may walk away from a query without either, so queries that are not polled
+ * for a while are dropped.
+ */
+@Slf4j
+public class InFlightQueryTracker {
+  // Comfortably above the default query.client.timeout of Presto, which is 5 minutes
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final long idleTimeoutNanos;
+  private final long sweepIntervalNanos;
+  private final ConcurrentHashMap<String, InFlightQuery> queries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicInteger> backendCounts = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  public InFlightQueryTracker() {
+    this(DEFAULT_IDLE_TIMEOUT_MILLIS);
+  }
+
+  public InFlightQueryTracker(long idleTimeoutMillis) {
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.sweepIntervalNanos = Math.max(1, idleTimeoutNanos / 10);
+  }
+
+  private static final class InFlightQuery {
+    private final String backend;
+    private volatile long lastSeen;
+
+    InFlightQuery(String backend, long lastSeen) {
+      this.backend = backend;
+      this.lastSeen = lastSeen;
+    }
+  }
+
+  /**
+   * Records a query dispatched to the backend. Recording the same query twice has no effect.
+   */
+  public void queryStarted(String queryId, String backend) {
+    if (queryId == null || backend == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (queries.putIfAbsent(queryId, new InFlightQuery(backend, now)) == null) {
+      backendCounts.computeIfAbsent(backend, b -> new AtomicInteger()).incrementAndGet();
+    }
+    long last = lastSweep.get();
+    if (now - last > sweepIntervalNanos && lastSweep.compareAndSet(last, now)) {
+      expireIdleQueries(now);
+    }
+  }
+
+  /**
+   * Marks a query as still being polled by its client.
+   */
+  public void queryPolled(String queryId) {
+    InFlightQuery query = queryId == null ? null : queries.get(queryId);
+    if (query != null) {
+      query.lastSeen = System.nanoTime();
+    }
+  }
+
+  /**
+   * Records the end of a query. Finishing an unknown or already finished query has no effect.
+   */
+  public void queryFinished(String queryId) {
+    InFlightQuery query = queryId == null ? null : queries.remove(queryId);
+    if (query != null) {
+      backendCounts.get(query.backend).decrementAndGet();
+    }
+  }
+
+  /**
+   * Number of queries in flight on the backend.
+   */
+  public int getInFlightCount(String backend) {
+    AtomicInteger count = backend == null ? null : backendCounts.get(backend);
+    return count == null ? 0 : count.get();
+  }
+
+  private void expireIdleQueries(long now) {
+    Iterator<Map.Entry<String, InFlightQuery>> iterator = queries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, InFlightQuery> entry = iterator.next();
+      if (now - entry.getValue().lastSeen > idleTimeoutNanos
+          && queries.remove(entry.getKey(), entry.getValue())) {
+        backendCounts.get(entry.getValue().backend).decrementAndGet();
+        log.debug("Query [{}] was not polled in time, no longer counted as in flight",
+            entry.getKey());
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the healthy backend with the lowest estimated load. Since the estimate includes the
+ * queries dispatched since the last poll, a burst of submissions is spread out instead of piling
+ * onto the backend that looked emptiest at the last poll. Ties are broken at random.
+ */
+public class LeastOutstandingQueriesPolicy implements RoutingPolicy {
+  @Override
+  public String selectBackend(List<ProxyBackendConfiguration> backends, BackendLoads loads) {
+    String selected = null;
+    boolean selectedHealthy = false;
+    int selectedLoad = Integer.MAX_VALUE;
+    int ties = 0;
+    for (ProxyBackendConfiguration backend : backends) {
+      boolean healthy = loads.isHealthy(backend.getProxyTo());
+      int load = loads.getEstimatedLoad(backend.getProxyTo());
+      if (selected == null || (healthy && !selectedHealthy)
+          || (healthy == selectedHealthy && load < selectedLoad)) {
+        selected = backend.getProxyTo();
+        selectedHealthy = healthy;
+        selectedLoad = load;
+        ties = 1;
+      } else if (healthy == selectedHealthy && load == selectedLoad
+          && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+        selected = backend.getProxyTo();
+      }
+    }
+    return selected;
+  }
+}
@@ -0,0 +1,148 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.google.common.collect.ImmutableMap;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A Routing Manager that leaves the choice of backend to a {@link RoutingPolicy}. It keeps track
+ * of the stats of every backend as polled by
+ * {@link com.lyft.data.gateway.ha.clustermonitor.ActiveClusterMonitor}, and of the queries this
+ * gateway dispatched to it since. Unlike the polled numbers the dispatched count is live, so the
+ * load estimate stays current between two polls.
+ */
+@Slf4j
+public class LoadAwareRoutingManager extends HaRoutingManager
+    implements PrestoClusterStatsObserver, BackendLoads {
+  private final RoutingPolicy routingPolicy;
+  private volatile Map<String, PolledLoad> polledLoads = ImmutableMap.of();
+
+  public LoadAwareRoutingManager(GatewayBackendManager gatewayBackendManager,
+                                 QueryHistoryManager queryHistoryManager,
+                                 RoutingGroupsManager routingGroupsManager,
+                                 RoutingPolicy routingPolicy) {
+    super(gatewayBackendManager, queryHistoryManager, routingGroupsManager);
+    this.routingPolicy = routingPolicy;
+  }
+
+  private static final class PolledLoad {
+    private final ClusterStats stats;
+    private final int inFlightAtPoll;
+
+    PolledLoad(ClusterStats stats, int inFlightAtPoll) {
+      this.stats = stats;
+      this.inFlightAtPoll = inFlightAtPoll;
+    }
+  }
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    observe(null, stats);
+  }
+
+  /**
+   * Records the polled stats. The loads of the other clusters are kept as they were polled, along
+   * with the number of queries in flight at the time.
+   */
+  @Override
+  public synchronized void observe(ClusterStats polled, List<ClusterStats> latestStats) {
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    Map<String, PolledLoad> previousLoads = polledLoads;
+    Map<String, PolledLoad> loads = new HashMap<>();
+    for (ClusterStats stat : latestStats) {
+      // Stats of unreachable clusters carry no address
+      String backend = stat.getProxyTo() != null
+          ? stat.getProxyTo() : snapshot.getProxyTo(stat.getClusterId());
+      if (backend == null) {
+        continue;
+      }
+      PolledLoad previous = previousLoads.get(backend);
+      if (polled != null && stat != polled && previous != null && previous.stats == stat) {
+        loads.put(backend, previous);
+      } else {
+        loads.put(backend, new PolledLoad(stat, getInFlightQueryCount(backend)));
+      }
+    }
+    polledLoads = ImmutableMap.copyOf(loads);
+  }
+
+  public RoutingPolicy getRoutingPolicy() {
+    return routingPolicy;
+  }
+
+  @Override
+  public boolean tracksInFlightQueries() {
+    return routingPolicy.usesInFlightQueries();
+  }
+
+  @Override
+  public ClusterStats getClusterStats(String backend) {
+    PolledLoad polled = polledLoads.get(backend);
+    return polled == null ? null : polled.stats;
+  }
+
+  @Override
+  public int getEstimatedLoad(String backend) {
+    int inFlight = getInFlightQueryCount(backend);
+    PolledLoad polled = polledLoads.get(backend);
+    if (polled == null) {
+      return inFlight;
+    }
+    // Queries in flight at poll time are already part of the polled load
+    return polled.stats.getQueuedQueryCount() + polled.stats.getRunningQueryCount()
+        + Math.max(0, inFlight - polled.inFlightAtPoll);
+  }
+
+  @Override
+  public boolean isHealthy(String backend) {
+    if (isEjected(backend)) {
+      return false;
+    }
+    PolledLoad polled = polledLoads.get(backend);
+    return polled == null || (polled.stats.isHealthy() && polled.stats.getNumWorkerNodes() > 0);
+  }
+
+  private String selectBackend(List<ProxyBackendConfiguration> backends) {
+    String backend = routingPolicy.selectBackend(backends, this);
+    log.debug("Selected backend [{}] with estimated load [{}]", backend,
+        getEstimatedLoad(backend));
+    return backend;
+  }
+
+  @Override
+  public String provideAdhocBackend() {
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    List<ProxyBackendConfiguration> backends = snapshot.getActiveBackends(ADHOC);
+
+    if (backends.isEmpty()) {
+      throw new IllegalStateException("No adhoc backends are currently available");
+    }
+
+    if (!snapshot.isRoutingGroupActive(ADHOC)) {
+      throw new IllegalStateException(
+          "All available backends are currently undergoing maintainence");
+    }
+
+    return selectBackend(backends);
+  }
+
+  @Override
+  public String provideBackendForRoutingGroup(String routingGroup) {
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    List<ProxyBackendConfiguration> backends = snapshot.getActiveBackends(routingGroup);
+
+    if (backends.isEmpty() || !snapshot.isRoutingGroupActive(routingGroup)) {
+      log.warn("Routing group {} is currently paused or has no active backends, "
+          + "routing to adhoc", routingGroup);
+      return provideAdhocBackend();
+    }
+
+    return selectBackend(backends);
+  }
+}
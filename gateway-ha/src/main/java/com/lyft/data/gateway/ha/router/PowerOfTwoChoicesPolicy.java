@@ -0,0 +1,45 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples two distinct backends at random and picks the one with the lower estimated load.
+ * Always sending queries to the single least loaded backend makes gateways that share the same
+ * stale stats herd onto it, while two random choices already keep the load close to even.
+ */
+public class PowerOfTwoChoicesPolicy implements RoutingPolicy {
+  @Override
+  public String selectBackend(List<ProxyBackendConfiguration> backends, BackendLoads loads) {
+    int size = backends.size();
+    if (size == 1) {
+      return backends.get(0).getProxyTo();
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    String firstBackend = backends.get(first).getProxyTo();
+    String secondBackend = backends.get(second).getProxyTo();
+
+    boolean firstHealthy = loads.isHealthy(firstBackend);
+    boolean secondHealthy = loads.isHealthy(secondBackend);
+    if (firstHealthy != secondHealthy) {
+      return firstHealthy ? firstBackend : secondBackend;
+    }
+    if (!firstHealthy) {
+      // Unlucky draw, look for any healthy backend before giving up
+      for (ProxyBackendConfiguration backend : backends) {
+        if (loads.isHealthy(backend.getProxyTo())) {
+          return backend.getProxyTo();
+        }
+      }
+    }
+    return loads.getEstimatedLoad(secondBackend) < loads.getEstimatedLoad(firstBackend)
+        ? secondBackend : firstBackend;
+  }
+}
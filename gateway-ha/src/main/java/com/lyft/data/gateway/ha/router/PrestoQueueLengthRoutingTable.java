@@ -1,16 +1,15 @@
 package com.lyft.data.gateway.ha.router;
 
+import com.google.common.collect.ImmutableMap;
+
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 
@@ -25,12 +24,18 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
-  private static final Random RANDOM = new Random();
   private static final int MIN_WT = 1;
   private static final int MAX_WT = 100;
-  private ConcurrentHashMap<String, Integer> routingGroupWeightSum;
-  private ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> clusterQueueLengthMap;
-  private Map<String, TreeMap<Integer, String>> weightedDistributionRouting;
+  // Both are replaced as a whole, never modified in place, so readers need no locking
+  private volatile Map<String, Map<String, Integer>> clusterQueueLengthMap;
+  private volatile Map<String, WeightedTable> weightedDistributionRouting;
+  // Guarded by lockObject
+  private final QueueLengthModel queueLengthModel;
+  // Whether clusters are left out of the weights for being ejected, and when the first of these
+  // ejections ends. The routing thread clearing the flag once the ejection ended recomputes the
+  // weights, the others keep routing with the published ones.
+  private final AtomicBoolean ejectionsPending = new AtomicBoolean();
+  private volatile long ejectionRecheckNanos;
 
   /**
    * A Routing Manager that distributes queries according to assigned weights based on
@@ -39,10 +44,65 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
   public PrestoQueueLengthRoutingTable(GatewayBackendManager gatewayBackendManager,
                                        QueryHistoryManager queryHistoryManager,
                                        RoutingGroupsManager routingGroupsManager) {
+    this(gatewayBackendManager, queryHistoryManager, routingGroupsManager,
+        QueueLengthModel.latestSample());
+  }
+
+  /**
+   * A Routing Manager that distributes queries according to weights based on the queue lengths
+   * predicted by the given model.
+   */
+  public PrestoQueueLengthRoutingTable(GatewayBackendManager gatewayBackendManager,
+                                       QueryHistoryManager queryHistoryManager,
+                                       RoutingGroupsManager routingGroupsManager,
+                                       QueueLengthModel queueLengthModel) {
     super(gatewayBackendManager, queryHistoryManager, routingGroupsManager);
-    routingGroupWeightSum = new ConcurrentHashMap<String, Integer>();
-    clusterQueueLengthMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
-    weightedDistributionRouting = new HashMap<String, TreeMap<Integer, String>>();
+    this.queueLengthModel = queueLengthModel;
+    clusterQueueLengthMap = ImmutableMap.of();
+    weightedDistributionRouting = ImmutableMap.of();
+  }
+
+  /**
+   * Immutable weight table of a routing group. Cluster i is picked for random numbers in
+   * [cumulativeWeights[i - 1], cumulativeWeights[i]).
+   */
+  private static final class WeightedTable {
+    private final String[] clusterIds;
+    private final int[] cumulativeWeights;
+
+    WeightedTable(String[] clusterIds, int[] cumulativeWeights) {
+      this.clusterIds = clusterIds;
+      this.cumulativeWeights = cumulativeWeights;
+    }
+
+    int totalWeight() {
+      return cumulativeWeights[cumulativeWeights.length - 1];
+    }
+
+    String pick(int rnd) {
+      // First cumulative weight above rnd
+      int low = 0;
+      int high = cumulativeWeights.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (cumulativeWeights[mid] > rnd) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return clusterIds[low];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("{");
+      for (int i = 0; i < clusterIds.length; i++) {
+        sb.append(i == 0 ? "" : ", ").append(cumulativeWeights[i]).append('=')
+            .append(clusterIds[i]);
+      }
+      return sb.append('}').toString();
+    }
   }
 
   /**
@@ -97,27 +157,23 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * The weights assigned ensure a fair distribution of routing for queries such that clusters with
    * the least queue length get assigned more queries.
    */
-  private void computeWeightsBasedOnQueueLength(ConcurrentHashMap<String,
-      ConcurrentHashMap<String, Integer>> queueLengthMap) {
+  private void computeWeightsBasedOnQueueLength(
+      Map<String, Map<String, Integer>> clusterQueueLengthMap) {
     synchronized (lockObject) {
+      Map<String, Map<String, Integer>> queueLengthMap =
+          withoutEjectedClusters(clusterQueueLengthMap);
       int sum = 0;
-      int queueSum = 0;
       int weight;
       int numBuckets = 1;
-      int equalDistribution = 0;
-      int smallestQueueLn = 0;
-      int lastButOneQueueLn = 0;
       int maxQueueLn = 0;
       int calculatedWtMaxQueue = 0;
 
-      weightedDistributionRouting.clear();
-      routingGroupWeightSum.clear();
+      Map<String, WeightedTable> weightTables = new HashMap<>();
 
       log.debug("Computing Weights for Queue Map :[{}] ", queueLengthMap.toString());
 
       for (String routingGroup : queueLengthMap.keySet()) {
         sum = 0;
-        TreeMap<Integer, String> weightsMap = new TreeMap<>();
 
         if (queueLengthMap.get(routingGroup).size() == 0) {
           log.warn("No active clusters in routingGroup : [{}]. Continue to "
@@ -125,13 +181,9 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
           continue;
         } else if (queueLengthMap.get(routingGroup).size() == 1) {
           log.debug("Routing Group: [{}] has only 1 active backend.", routingGroup);
-          weightedDistributionRouting.put(routingGroup, new TreeMap<Integer, String>() {
-                {
-                  put(MAX_WT, queueLengthMap.get(routingGroup).keys().nextElement());
-                }
-              }
-          );
-          routingGroupWeightSum.put(routingGroup, MAX_WT);
+          weightTables.put(routingGroup, new WeightedTable(
+              new String[] {queueLengthMap.get(routingGroup).keySet().iterator().next()},
+              new int[] {MAX_WT}));
           continue;
         }
 
@@ -142,10 +194,11 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
                 (e1, e2) -> e1, LinkedHashMap::new));
 
         numBuckets = sortedByQueueLength.size();
-        queueSum = sortedByQueueLength.values().stream().mapToInt(Integer::intValue).sum();
 
         Object[] queueLengths = sortedByQueueLength.values().toArray();
         Object[] clusterNames = sortedByQueueLength.keySet().toArray();
+        String[] clusterIds = new String[numBuckets];
+        int[] cumulativeWeights = new int[numBuckets];
 
         maxQueueLn = (Integer) queueLengths[queueLengths.length - 1];
         calculatedWtMaxQueue = getWeightForMaxQueueCluster(sortedByQueueLength);
@@ -156,25 +209,72 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
               (int) Math.ceil(MAX_WT
                   - (((Integer) queueLengths[i] * MAX_WT) / (double) maxQueueLn));
           sum += weight;
-          weightsMap.put(sum, (String) clusterNames[i]);
+          clusterIds[i] = (String) clusterNames[i];
+          cumulativeWeights[i] = sum;
         }
 
         sum += calculatedWtMaxQueue;
-        weightsMap.put(sum, (String) clusterNames[numBuckets - 1]);
+        clusterIds[numBuckets - 1] = (String) clusterNames[numBuckets - 1];
+        cumulativeWeights[numBuckets - 1] = sum;
 
-        weightedDistributionRouting.put(routingGroup, weightsMap);
-        routingGroupWeightSum.put(routingGroup, sum);
+        weightTables.put(routingGroup, new WeightedTable(clusterIds, cumulativeWeights));
       }
 
+      weightedDistributionRouting = ImmutableMap.copyOf(weightTables);
+
       if (log.isDebugEnabled()) {
-        for (String rg : weightedDistributionRouting.keySet()) {
-          log.debug("Routing Table for : [{}] is [{}]", rg,
-              weightedDistributionRouting.get(rg).toString());
+        for (Map.Entry<String, WeightedTable> entry : weightTables.entrySet()) {
+          log.debug("Routing Table for : [{}] is [{}]", entry.getKey(), entry.getValue());
         }
       }
     }
   }
 
+  /**
+   * Leaves out the clusters ejected by the outlier detector, unless that leaves a routing group
+   * without clusters: routing to struggling clusters beats not routing at all.
+   */
+  private Map<String, Map<String, Integer>> withoutEjectedClusters(
+      Map<String, Map<String, Integer>> queueLengthMap) {
+    BackendOutlierDetector detector = getOutlierDetector();
+    if (detector == null) {
+      return queueLengthMap;
+    }
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    long recheckInNanos = Long.MAX_VALUE;
+    Map<String, Map<String, Integer>> routableQueueLengths = new HashMap<>();
+    for (Map.Entry<String, Map<String, Integer>> group : queueLengthMap.entrySet()) {
+      Map<String, Integer> routable = new HashMap<>();
+      for (Map.Entry<String, Integer> cluster : group.getValue().entrySet()) {
+        long remainingNanos =
+            detector.getEjectionRemainingNanos(snapshot.getProxyTo(cluster.getKey()));
+        if (remainingNanos > 0) {
+          recheckInNanos = Math.min(recheckInNanos, remainingNanos);
+          log.debug("Cluster [{}] is ejected, left out of routing group [{}]",
+              cluster.getKey(), group.getKey());
+        } else {
+          routable.put(cluster.getKey(), cluster.getValue());
+        }
+      }
+      routableQueueLengths.put(group.getKey(), routable.isEmpty() ? group.getValue() : routable);
+    }
+    boolean pending = recheckInNanos != Long.MAX_VALUE;
+    ejectionRecheckNanos = System.nanoTime() + (pending ? recheckInNanos : 0);
+    ejectionsPending.set(pending);
+    return routableQueueLengths;
+  }
+
+  @Override
+  protected void onBackendEjected() {
+    recomputeWeights();
+  }
+
+  private void recomputeWeights() {
+    synchronized (lockObject) {
+      computeWeightsBasedOnQueueLength(clusterQueueLengthMap);
+    }
+  }
+
   /**
    * Update the Routing Table only if a previously known backend has been deactivated.
    * Newly added backends are handled through
@@ -183,21 +283,18 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    */
   public void updateRoutingTable(String routingGroup, Set<String> backends) {
     synchronized (lockObject) {
-      if (clusterQueueLengthMap.containsKey(routingGroup)) {
+      Map<String, Integer> knownQueueLengths = clusterQueueLengthMap.get(routingGroup);
+      if (knownQueueLengths != null) {
         log.debug("Update routing table for routing group : [{}]"
             + " with active backends : [{}]", routingGroup, backends.toString());
-        Collection<String> knownBackends = new HashSet<String>();
-        knownBackends.addAll(clusterQueueLengthMap.get(routingGroup).keySet());
-
-        if (backends.containsAll(knownBackends)) {
+        if (backends.containsAll(knownQueueLengths.keySet())) {
           return;
-        } else {
-          if (knownBackends.removeAll(backends)) {
-            for (String inactiveBackend : knownBackends) {
-              clusterQueueLengthMap.get(routingGroup).remove(inactiveBackend);
-            }
-          }
         }
+        Map<String, Integer> activeQueueLengths = new HashMap<>(knownQueueLengths);
+        activeQueueLengths.keySet().retainAll(backends);
+        Map<String, Map<String, Integer>> queueLengthMap = new HashMap<>(clusterQueueLengthMap);
+        queueLengthMap.put(routingGroup, ImmutableMap.copyOf(activeQueueLengths));
+        clusterQueueLengthMap = ImmutableMap.copyOf(queueLengthMap);
       }
 
       computeWeightsBasedOnQueueLength(clusterQueueLengthMap);
@@ -205,19 +302,34 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
   }
 
   /**
-   * Update routing Table with new Queue Lengths.
+   * Update routing Table with new Queue Lengths. Weights are computed from the queue lengths the
+   * {@link QueueLengthModel} predicts for the next poll.
    */
   public void updateRoutingTable(Map<String, Map<String, Integer>> updatedQueueLengthMap) {
+    updateRoutingTable(updatedQueueLengthMap, null, System.nanoTime());
+  }
+
+  /**
+   * Update routing Table with the latest Queue Lengths, of which only those of the given clusters
+   * were polled since the previous update.
+   */
+  public void updateRoutingTable(Map<String, Map<String, Integer>> updatedQueueLengthMap,
+      Set<String> polledClusters) {
+    updateRoutingTable(updatedQueueLengthMap, polledClusters, System.nanoTime());
+  }
+
+  void updateRoutingTable(Map<String, Map<String, Integer>> updatedQueueLengthMap,
+      Set<String> polledClusters, long nowNanos) {
     synchronized (lockObject) {
       log.debug("Update Routing table with new cluster queue lengths : [{}]",
           updatedQueueLengthMap.toString());
-      clusterQueueLengthMap.clear();
-
-      for (String grp : updatedQueueLengthMap.keySet()) {
-        ConcurrentHashMap<String, Integer> queueMap = new ConcurrentHashMap<>();
-        queueMap.putAll(updatedQueueLengthMap.get(grp));
-        clusterQueueLengthMap.put(grp, queueMap);
+      Map<String, Map<String, Integer>> predictedQueueLengthMap =
+          queueLengthModel.update(updatedQueueLengthMap, polledClusters, nowNanos);
+      ImmutableMap.Builder<String, Map<String, Integer>> queueLengthMap = ImmutableMap.builder();
+      for (String grp : predictedQueueLengthMap.keySet()) {
+        queueLengthMap.put(grp, ImmutableMap.copyOf(predictedQueueLengthMap.get(grp)));
       }
+      clusterQueueLengthMap = queueLengthMap.build();
 
       computeWeightsBasedOnQueueLength(clusterQueueLengthMap);
     }
@@ -227,25 +339,23 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * A convenience method to peak into the weights used by the routing Manager.
    */
   public Map<String, Integer> getInternalWeightedRoutingTable(String routingGroup) {
-    if (!weightedDistributionRouting.containsKey(routingGroup)) {
+    WeightedTable weightedTable = weightedDistributionRouting.get(routingGroup);
+    if (weightedTable == null) {
       return null;
     }
     Map<String, Integer> routingTable = new HashMap<>();
 
-    for (Integer wt : weightedDistributionRouting.get(routingGroup).keySet()) {
-      routingTable.put(weightedDistributionRouting.get(routingGroup).get(wt), wt);
+    for (int i = 0; i < weightedTable.clusterIds.length; i++) {
+      routingTable.put(weightedTable.clusterIds[i], weightedTable.cumulativeWeights[i]);
     }
     return routingTable;
   }
 
   /**
-   * A convienience method to get a peak into the state of the routing manager.
+   * A convienience method to get a peak into the state of the routing manager. These are the
+   * predicted queue lengths the weights are computed from.
    */
   public Map<String, Integer> getInternalClusterQueueLength(String routingGroup) {
-    if (!clusterQueueLengthMap.containsKey(routingGroup)) {
-      return null;
-    }
-
     return clusterQueueLengthMap.get(routingGroup);
   }
 
@@ -253,13 +363,16 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * Looks up the closest weight to random number generated for a given routing group.
    */
   public String getEligibleBackEnd(String routingGroup) {
-    if (routingGroupWeightSum.containsKey(routingGroup)
-        && weightedDistributionRouting.containsKey(routingGroup)) {
-      int rnd = RANDOM.nextInt(routingGroupWeightSum.get(routingGroup));
-      return weightedDistributionRouting.get(routingGroup).higherEntry(rnd).getValue();
-    } else {
+    if (ejectionsPending.get() && System.nanoTime() - ejectionRecheckNanos >= 0
+        && ejectionsPending.compareAndSet(true, false)) {
+      // An ejection ended, the cluster is back in
+      recomputeWeights();
+    }
+    WeightedTable weightedTable = weightedDistributionRouting.get(routingGroup);
+    if (weightedTable == null) {
       return null;
     }
+    return weightedTable.pick(ThreadLocalRandom.current().nextInt(weightedTable.totalWeight()));
   }
 
   /**
@@ -268,10 +381,11 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    */
   @Override
   public String provideBackendForRoutingGroup(String routingGroup) {
+    RoutingSnapshot snapshot = getRoutingSnapshot();
     Map<String, Integer> backends = clusterQueueLengthMap.get(routingGroup);
 
     if (backends == null || backends.isEmpty()
-        || !routingGroups.get(routingGroup)) {
+        || !snapshot.isRoutingGroupActive(routingGroup)) {
       log.warn("Routing group {} is currently paused or has no active backends, "
           + "routing {} to adhoc", routingGroup);
       return provideAdhocBackend();
@@ -282,12 +396,12 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
         clusterId, routingGroup);
 
     if (clusterId != null) {
-      return backendProxyMap.get(clusterId);
+      return snapshot.getProxyTo(clusterId);
     } else {
       log.debug("Falling back to random distribution");
       String randomClusterId = new ArrayList<String>(backends.keySet())
-          .get(RANDOM.nextInt(backends.size()));
-      return backendProxyMap.get(randomClusterId);
+          .get(ThreadLocalRandom.current().nextInt(backends.size()));
+      return snapshot.getProxyTo(randomClusterId);
     }
   }
 
@@ -298,13 +412,14 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    */
   @Override
   public String provideAdhocBackend() {
+    RoutingSnapshot snapshot = getRoutingSnapshot();
     Map<String, Integer> backends = clusterQueueLengthMap.get(ADHOC);
-    
+
     if (backends == null || backends.size() == 0) {
       throw new IllegalStateException("No adhoc backends are currently available");
     }
 
-    if (!routingGroups.get(ADHOC)) {
+    if (!snapshot.isRoutingGroupActive(ADHOC)) {
       throw new IllegalStateException(
           "All available backends are currently undergoing maintainence");
     }
@@ -312,12 +427,12 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
     String clusterId = getEligibleBackEnd(ADHOC);
     log.debug("Routing to eligible backend : " + clusterId + " for routing group: adhoc");
     if (clusterId != null) {
-      return backendProxyMap.get(clusterId);
+      return snapshot.getProxyTo(clusterId);
     } else {
       log.debug("Falling back to random distribution");
       String randomClusterId = new ArrayList<String>(backends.keySet())
-          .get(RANDOM.nextInt(backends.size()));
-      return backendProxyMap.get(randomClusterId);
+          .get(ThreadLocalRandom.current().nextInt(backends.size()));
+      return snapshot.getProxyTo(randomClusterId);
     }
   }
 }
@@ -8,6 +8,12 @@ import lombok.ToString;
 public interface QueryHistoryManager {
   void submitQueryDetail(QueryDetail queryDetail);
 
+  default void submitQueryDetails(List<QueryDetail> queryDetails) {
+    for (QueryDetail queryDetail : queryDetails) {
+      submitQueryDetail(queryDetail);
+    }
+  }
+
   List<QueryDetail> fetchQueryHistory();
 
   String getBackendForQueryId(String queryId);
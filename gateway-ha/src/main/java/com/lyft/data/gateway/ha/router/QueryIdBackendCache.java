@@ -0,0 +1,118 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Maps query ids to the backend running them. A miss is loaded once however many requests ask for
+ * the same query id at the same time, the others wait for that load. With refresh-ahead, entries
+ * older than the refresh interval are reloaded in the background on their next read while the
+ * current backend keeps being served.
+ */
+@Slf4j
+public class QueryIdBackendCache {
+  private final LoadingCache<String, String> cache;
+
+  /**
+   * Creates a cache loading misses with the given function.
+   *
+   * @param maximumSize entries kept, the least recently used ones are evicted beyond that
+   * @param expireAfterAccessMillis entries not read or written for that long are dropped
+   * @param refreshAfterWriteMillis entries are reloaded once that old, 0 to never reload
+   * @param loader finds the backend of a query id that is not cached, null if there is none
+   */
+  public QueryIdBackendCache(
+      long maximumSize,
+      long expireAfterAccessMillis,
+      long refreshAfterWriteMillis,
+      Function<String, String> loader) {
+    this(maximumSize, expireAfterAccessMillis, refreshAfterWriteMillis, loader,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("query-id-cache-refresh")
+                .setDaemon(true)
+                .build()));
+  }
+
+  /**
+   * Creates a cache reloading entries on the given executor.
+   *
+   * @param refreshExecutor runs the background reloads of refresh-ahead
+   */
+  public QueryIdBackendCache(
+      long maximumSize,
+      long expireAfterAccessMillis,
+      long refreshAfterWriteMillis,
+      Function<String, String> loader,
+      Executor refreshExecutor) {
+    CacheBuilder<Object, Object> builder =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterAccess(expireAfterAccessMillis, TimeUnit.MILLISECONDS)
+            .recordStats();
+    CacheLoader<String, String> cacheLoader =
+        new CacheLoader<String, String>() {
+          @Override
+          public String load(String queryId) {
+            return loader.apply(queryId);
+          }
+        };
+    if (refreshAfterWriteMillis > 0) {
+      builder.refreshAfterWrite(refreshAfterWriteMillis, TimeUnit.MILLISECONDS);
+      // Reloads run apart from request threads, and from the pool probing backends for ids
+      cacheLoader = CacheLoader.asyncReloading(cacheLoader, refreshExecutor);
+    }
+    this.cache = builder.build(cacheLoader);
+  }
+
+  /**
+   * Backend of the query, loaded if it is not cached. A query the loader finds no backend for is
+   * not cached.
+   *
+   * @return the backend, null if it could not be loaded
+   */
+  public String get(String queryId) {
+    try {
+      return cache.get(queryId);
+    } catch (InvalidCacheLoadException e) {
+      return null;
+    } catch (ExecutionException e) {
+      log.error("Exception while loading queryId from cache {}", e.getLocalizedMessage());
+      return null;
+    }
+  }
+
+  public void put(String queryId, String backend) {
+    cache.put(queryId, backend);
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Publishes the hits, misses, evictions and size of the cache under the given prefix.
+   */
+  public void registerMetrics(MetricRegistry metrics, String metricPrefix) {
+    metrics.gauge(metricPrefix + ".hits", () -> (Gauge<Long>) () -> cache.stats().hitCount());
+    metrics.gauge(metricPrefix + ".misses", () -> (Gauge<Long>) () -> cache.stats().missCount());
+    metrics.gauge(metricPrefix + ".hitRate", () -> (Gauge<Double>) () -> cache.stats().hitRate());
+    metrics.gauge(metricPrefix + ".evictions",
+        () -> (Gauge<Long>) () -> cache.stats().evictionCount());
+    metrics.gauge(metricPrefix + ".loadFailures",
+        () -> (Gauge<Long>) () -> cache.stats().loadExceptionCount());
+    metrics.gauge(metricPrefix + ".size", () -> (Gauge<Long>) cache::size);
+  }
+}
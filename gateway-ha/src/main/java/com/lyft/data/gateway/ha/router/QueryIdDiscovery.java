@@ -0,0 +1,117 @@
+package com.lyft.data.gateway.ha.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Finds which backend runs a query the gateway has no record of. All backends are asked at once,
+ * the first one that knows the query wins and the probes still running are cancelled.
+ */
+@Slf4j
+public class QueryIdDiscovery {
+  private static final String QUERY_PATH = "/v1/query/";
+
+  private final OkHttpClient httpClient;
+  private final long timeoutMillis;
+
+  /**
+   * Creates a discovery giving up after the given time.
+   *
+   * @param timeoutMillis time to wait for a backend knowing the query, also the connect and read
+   *     timeout of each probe
+   */
+  public QueryIdDiscovery(long timeoutMillis) {
+    this(timeoutMillis, null);
+  }
+
+  /**
+   * Creates a discovery running its probes on the given executor.
+   *
+   * @param timeoutMillis time to wait for a backend knowing the query, also the connect and read
+   *     timeout of each probe
+   * @param executor runs the probes, null for the OkHttp default
+   */
+  public QueryIdDiscovery(long timeoutMillis, ExecutorService executor) {
+    this.timeoutMillis = timeoutMillis;
+    Dispatcher dispatcher = executor == null ? new Dispatcher() : new Dispatcher(executor);
+    // Backends may share a host, they must not wait on each other
+    dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+    this.httpClient = new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+        .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Probes the backends for the query.
+   *
+   * @param queryId query to look for
+   * @param backends base urls of the backends to probe
+   * @return the first backend answering that it knows the query, null if none did in time
+   */
+  public String discover(String queryId, List<String> backends) {
+    if (backends.isEmpty()) {
+      return null;
+    }
+    CompletableFuture<String> found = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(backends.size());
+    List<Call> calls = new ArrayList<>(backends.size());
+    for (String backend : backends) {
+      Call call = httpClient.newCall(
+          new Request.Builder().url(backend + QUERY_PATH + queryId).head().build());
+      calls.add(call);
+      call.enqueue(new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          if (!call.isCanceled()) {
+            log.debug("Could not probe backend [{}] for query [{}]", backend, queryId, e);
+          }
+          probeDone();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+          response.close();
+          if (response.code() == 200) {
+            found.complete(backend);
+          }
+          probeDone();
+        }
+
+        private void probeDone() {
+          if (pending.decrementAndGet() == 0) {
+            found.complete(null);
+          }
+        }
+      });
+    }
+
+    try {
+      return found.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | TimeoutException e) {
+      return null;
+    } finally {
+      for (Call call : calls) {
+        call.cancel();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.lyft.data.gateway.ha.router;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per cluster model of the queue length, fed with one sample per poll. It keeps an exponentially
+ * weighted moving average of the queue length and of its slope (Holt's linear smoothing), and
+ * predicts the queue length one poll interval ahead, when the next sample is due. Routing on the
+ * prediction stops a cluster whose queue is building up from getting a full interval of queries
+ * before the next poll shows it.
+ *
+ * <p>With a smoothing of 1 and a trend smoothing of 0 the prediction is the latest sample. Not
+ * thread safe.
+ */
+public class QueueLengthModel {
+  private final double smoothing;
+  private final double trendSmoothing;
+  private Map<String, ClusterModel> clusterModels = new HashMap<>();
+
+  /**
+   * Creates a model with the given smoothing factors.
+   *
+   * @param smoothing weight of a new sample in the average, in (0, 1]
+   * @param trendSmoothing weight of a new slope in the average slope, in [0, 1]
+   */
+  public QueueLengthModel(double smoothing, double trendSmoothing) {
+    if (!(smoothing > 0 && smoothing <= 1)) {
+      throw new IllegalArgumentException("Queue length smoothing must be in (0, 1]: " + smoothing);
+    }
+    if (!(trendSmoothing >= 0 && trendSmoothing <= 1)) {
+      throw new IllegalArgumentException(
+          "Queue length trend smoothing must be in [0, 1]: " + trendSmoothing);
+    }
+    this.smoothing = smoothing;
+    this.trendSmoothing = trendSmoothing;
+  }
+
+  /**
+   * A model predicting the latest sample.
+   */
+  public static QueueLengthModel latestSample() {
+    return new QueueLengthModel(1, 0);
+  }
+
+  private static final class ClusterModel {
+    private double level;
+    // Queue length change per millisecond
+    private double trend;
+    private long lastSampleNanos;
+    private long intervalMillis;
+
+    ClusterModel(int queueLength, long nowNanos) {
+      this.level = queueLength;
+      this.lastSampleNanos = nowNanos;
+    }
+
+    void update(int queueLength, long nowNanos, double smoothing, double trendSmoothing) {
+      intervalMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nowNanos - lastSampleNanos));
+      lastSampleNanos = nowNanos;
+      double previousLevel = level;
+      level = smoothing * queueLength
+          + (1 - smoothing) * (previousLevel + trend * intervalMillis);
+      trend = trendSmoothing * (level - previousLevel) / intervalMillis
+          + (1 - trendSmoothing) * trend;
+    }
+
+    int predict() {
+      return (int) Math.max(0, Math.round(level + trend * intervalMillis));
+    }
+  }
+
+  /**
+   * Feeds the queue lengths of one poll into the model. Clusters missing from the poll are
+   * forgotten, they start over from their next sample.
+   *
+   * @param queueLengths polled queue lengths by routing group and cluster
+   * @param nowNanos {@link System#nanoTime()} of the poll
+   * @return predicted queue lengths by routing group and cluster
+   */
+  public Map<String, Map<String, Integer>> update(
+      Map<String, Map<String, Integer>> queueLengths, long nowNanos) {
+    return update(queueLengths, null, nowNanos);
+  }
+
+  /**
+   * Feeds the queue lengths of the sampled clusters into the model. The queue lengths of the other
+   * clusters were sampled before, their models are left as they are. Clusters missing from
+   * queueLengths are forgotten.
+   *
+   * @param queueLengths latest queue lengths by routing group and cluster
+   * @param sampledClusters clusters polled just now, null if all were
+   * @param nowNanos {@link System#nanoTime()} of the poll
+   * @return predicted queue lengths by routing group and cluster
+   */
+  public Map<String, Map<String, Integer>> update(Map<String, Map<String, Integer>> queueLengths,
+      Set<String> sampledClusters, long nowNanos) {
+    Map<String, ClusterModel> updatedModels = new HashMap<>();
+    Map<String, Map<String, Integer>> predicted = new HashMap<>();
+    for (Map.Entry<String, Map<String, Integer>> group : queueLengths.entrySet()) {
+      Map<String, Integer> groupPredicted = new HashMap<>();
+      for (Map.Entry<String, Integer> cluster : group.getValue().entrySet()) {
+        ClusterModel model = clusterModels.get(cluster.getKey());
+        if (model == null) {
+          model = new ClusterModel(cluster.getValue(), nowNanos);
+        } else if (sampledClusters == null || sampledClusters.contains(cluster.getKey())) {
+          model.update(cluster.getValue(), nowNanos, smoothing, trendSmoothing);
+        }
+        updatedModels.put(cluster.getKey(), model);
+        groupPredicted.put(cluster.getKey(), model.predict());
+      }
+      predicted.put(group.getKey(), groupPredicted);
+    }
+    clusterModels = updatedModels;
+    return predicted;
+  }
+}
@@ -0,0 +1,21 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks any of the backends, load is not looked at.
+ */
+public class RandomPolicy implements RoutingPolicy {
+  @Override
+  public String selectBackend(List<ProxyBackendConfiguration> backends, BackendLoads loads) {
+    return backends.get(ThreadLocalRandom.current().nextInt(backends.size())).getProxyTo();
+  }
+
+  @Override
+  public boolean usesInFlightQueries() {
+    return false;
+  }
+}
@@ -1,26 +1,18 @@
 package com.lyft.data.gateway.ha.router;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.inject.Inject;
+import com.lyft.data.gateway.ha.concurrent.BlockingExecutors;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
-import com.lyft.data.proxyserver.ProxyServerConfiguration;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import javax.ws.rs.HttpMethod;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -30,32 +22,75 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public abstract class RoutingManager {
   public static final String ADHOC = "adhoc";
-  
-  private static final Random RANDOM = new Random();
-  private final LoadingCache<String, String> queryIdBackendCache;
-  private ExecutorService executorService = Executors.newFixedThreadPool(5);
+  public static final long DEFAULT_QUERY_ID_CACHE_SIZE = 10000;
+  public static final long DEFAULT_QUERY_ID_CACHE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  public static final long DEFAULT_DISCOVERY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  public static final long DEFAULT_UNKNOWN_QUERY_ID_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private BlockingExecutors blockingExecutors = BlockingExecutors.PLATFORM;
+  private volatile QueryIdBackendCache queryIdBackendCache;
+  private volatile QueryIdDiscovery queryIdDiscovery;
+  private volatile Cache<String, Boolean> unknownQueryIds;
   private GatewayBackendManager gatewayBackendManager;
   protected RoutingGroupsManager routingGroupsManager;
 
   protected final Object lockObject = new Object();
-  public ConcurrentHashMap<String, Boolean> routingGroups = new ConcurrentHashMap<>();
-  public ConcurrentHashMap<String, String> backendProxyMap = new ConcurrentHashMap<>();
+  private final Object snapshotLock = new Object();
+  private final AtomicLong snapshotVersion = new AtomicLong();
+  private volatile RoutingSnapshot routingSnapshot;
+  protected final InFlightQueryTracker inFlightQueries = new InFlightQueryTracker();
+  private volatile BackendOutlierDetector outlierDetector;
 
   public RoutingManager(GatewayBackendManager gatewayBackendManager,
       RoutingGroupsManager routingGroupsManager) {
     this.gatewayBackendManager = gatewayBackendManager;
     this.routingGroupsManager = routingGroupsManager;
-    queryIdBackendCache =
-        CacheBuilder.newBuilder()
-            .maximumSize(10000)
-            .expireAfterAccess(30, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, String>() {
-                  @Override
-                  public String load(String queryId) {
-                    return findBackendForUnknownQueryId(queryId);
-                  }
-                });
+    configureQueryIdCache(DEFAULT_QUERY_ID_CACHE_SIZE, DEFAULT_QUERY_ID_CACHE_EXPIRY_MILLIS, 0);
+    configureQueryIdDiscovery(
+        DEFAULT_DISCOVERY_TIMEOUT_MILLIS, DEFAULT_UNKNOWN_QUERY_ID_TTL_MILLIS);
+  }
+
+  /**
+   * Sets the executors of the query id cache reloads and query id probes, for the cache and
+   * discovery configured afterwards.
+   */
+  public void setBlockingExecutors(BlockingExecutors blockingExecutors) {
+    this.blockingExecutors = blockingExecutors;
+  }
+
+  /**
+   * Replaces the query id to backend cache with an empty one of the given settings. Meant to be
+   * called once, before any traffic is routed.
+   *
+   * @param maximumSize query ids kept
+   * @param expireAfterAccessMillis query ids not looked up for that long are dropped
+   * @param refreshAfterWriteMillis cached backends are looked up again in the background once that
+   *     old, 0 to never look them up again
+   */
+  public void configureQueryIdCache(
+      long maximumSize, long expireAfterAccessMillis, long refreshAfterWriteMillis) {
+    queryIdBackendCache = new QueryIdBackendCache(maximumSize, expireAfterAccessMillis,
+        refreshAfterWriteMillis, this::findBackendForUnknownQueryId,
+        blockingExecutors.newFixedExecutor("query-id-cache-refresh", 1));
+  }
+
+  /**
+   * Sets how query ids the gateway has no record of are looked for on the backends.
+   *
+   * @param timeoutMillis time to wait for a backend to claim the query
+   * @param unknownQueryIdTtlMillis how long a query id no backend claimed is not looked for again
+   */
+  public void configureQueryIdDiscovery(long timeoutMillis, long unknownQueryIdTtlMillis) {
+    queryIdDiscovery = new QueryIdDiscovery(
+        timeoutMillis, blockingExecutors.newCachedExecutor("query-id-discovery"));
+    unknownQueryIds = CacheBuilder.newBuilder()
+        .maximumSize(DEFAULT_QUERY_ID_CACHE_SIZE)
+        .expireAfterWrite(unknownQueryIdTtlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  public QueryIdBackendCache getQueryIdBackendCache() {
+    return queryIdBackendCache;
   }
 
   protected GatewayBackendManager getGatewayBackendManager() {
@@ -67,28 +102,127 @@ public abstract class RoutingManager {
   }
 
   /**
-   * Updates the internal routing groups.
-   * @param groups Routing groups
+   * Whether routing looks at the queries in flight. The proxy only reports the start, polls and
+   * end of queries when it does.
    */
-  public void updateRoutingGroups(List<RoutingGroupConfiguration> groups) {
-    synchronized (lockObject) {
-      routingGroups.clear();
-      for (RoutingGroupConfiguration group : groups) {
-        routingGroups.put(group.getName(), group.isActive());
-      }
+  public boolean tracksInFlightQueries() {
+    return false;
+  }
+
+  /**
+   * Called when the backend assigned an id to a query submitted through the gateway.
+   */
+  public void queryStarted(String queryId, String backend) {
+    inFlightQueries.queryStarted(queryId, backend);
+  }
+
+  /**
+   * Called for every result page of a query that passes through the gateway.
+   */
+  public void queryPolled(String queryId) {
+    inFlightQueries.queryPolled(queryId);
+  }
+
+  /**
+   * Called when the last page of a query passed through the gateway, or the query was cancelled.
+   */
+  public void queryFinished(String queryId) {
+    inFlightQueries.queryFinished(queryId);
+  }
+
+  /**
+   * Queries dispatched to the backend by this gateway that have not finished yet.
+   */
+  public int getInFlightQueryCount(String backend) {
+    return inFlightQueries.getInFlightCount(backend);
+  }
+
+  /**
+   * Enables passive health checks: backends failing the requests proxied to them get ejected from
+   * routing for a while.
+   */
+  public void setOutlierDetector(BackendOutlierDetector outlierDetector) {
+    this.outlierDetector = outlierDetector;
+    outlierDetector.setEjectionListener(this::onBackendEjected);
+  }
+
+  public BackendOutlierDetector getOutlierDetector() {
+    return outlierDetector;
+  }
+
+  /**
+   * Called with the outcome of every request proxied to a backend.
+   *
+   * @param backend backend the request was proxied to
+   * @param status status of the backend response, 0 if none was received
+   * @param failure why the exchange failed, null if it did not
+   * @param latencyNanos time to the response headers, negative if unknown
+   */
+  public void recordBackendResponse(
+      String backend, int status, Throwable failure, long latencyNanos) {
+    BackendOutlierDetector detector = outlierDetector;
+    if (detector != null) {
+      detector.recordResponse(backend, status, failure, latencyNanos);
     }
   }
 
   /**
-   * Updates the backend map.
-   * @param map Updated map of backends.
+   * Whether the backend is currently ejected from routing by the outlier detector.
    */
-  public void updateBackendProxyMap(List<ProxyBackendConfiguration> clusters) {
-    synchronized (lockObject) {
-      backendProxyMap.clear();
-      for (ProxyBackendConfiguration cluster : clusters) {
-        backendProxyMap.put(cluster.getName(), cluster.getProxyTo());
-      }
+  public boolean isEjected(String backend) {
+    BackendOutlierDetector detector = outlierDetector;
+    return detector != null && detector.isEjected(backend);
+  }
+
+  /**
+   * Called when the outlier detector ejects a backend.
+   */
+  protected void onBackendEjected() {
+    // Routing managers caching their choices override this
+  }
+
+  /**
+   * Current view of the backends and routing groups. Only the very first call, if it happens
+   * before the cluster monitor published a snapshot, reads the database.
+   *
+   * @return latest published routing snapshot
+   */
+  public RoutingSnapshot getRoutingSnapshot() {
+    RoutingSnapshot snapshot = routingSnapshot;
+    if (snapshot == null) {
+      snapshot = refreshRoutingSnapshot();
+    }
+    return snapshot;
+  }
+
+  /**
+   * Reads the backends and routing groups from the database and publishes them as a new snapshot.
+   *
+   * @return the published snapshot
+   */
+  public RoutingSnapshot refreshRoutingSnapshot() {
+    // Reading under the lock keeps a slow refresh from publishing older state over a newer one
+    synchronized (snapshotLock) {
+      List<ProxyBackendConfiguration> backends = gatewayBackendManager.getAllBackends();
+      List<RoutingGroupConfiguration> groups = routingGroupsManager.getAllRoutingGroups(backends);
+      RoutingSnapshot snapshot =
+          new RoutingSnapshot(snapshotVersion.incrementAndGet(), backends, groups);
+      routingSnapshot = snapshot;
+      log.debug("Published {}", snapshot);
+      return snapshot;
+    }
+  }
+
+  /**
+   * Called after backends or routing groups are modified, so routing sees the change right away
+   * instead of on the next cluster monitor run.
+   */
+  public void invalidateRoutingSnapshot() {
+    try {
+      refreshRoutingSnapshot();
+    } catch (Exception e) {
+      log.warn("Unable to refresh routing snapshot, keeping version [{}]",
+          routingSnapshot == null ? 0 : routingSnapshot.getVersion(), e);
     }
   }
 
@@ -100,18 +234,19 @@ public abstract class RoutingManager {
    * @return
    */
   public String provideAdhocBackend() {
-    List<ProxyBackendConfiguration> backends = this.gatewayBackendManager.getActiveAdhocBackends();
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    List<ProxyBackendConfiguration> backends = snapshot.getActiveBackends(ADHOC);
 
     if (backends.size() == 0) {
       throw new IllegalStateException("No adhoc backends are currently available");
     }
 
-    if (!routingGroups.get("adhoc")) {
+    if (!snapshot.isRoutingGroupActive(ADHOC)) {
       throw new IllegalStateException(
           "All available backends are currently undergoing maintainence");
     }
 
-    int backendId = Math.abs(RANDOM.nextInt()) % backends.size();
+    int backendId = ThreadLocalRandom.current().nextInt(backends.size());
     return backends.get(backendId).getProxyTo();
   }
 
@@ -122,78 +257,92 @@ public abstract class RoutingManager {
    * @return
    */
   public String provideBackendForRoutingGroup(String routingGroup) {
-    List<ProxyBackendConfiguration> backends =
-        gatewayBackendManager.getActiveBackends(routingGroup);
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    List<ProxyBackendConfiguration> backends = snapshot.getActiveBackends(routingGroup);
 
     if (backends.isEmpty()
-        || !routingGroups.get(routingGroup)) {
+        || !snapshot.isRoutingGroupActive(routingGroup)) {
       log.warn("Routing group {} is currently paused or has no active backends, "
           + "routing {} to adhoc", routingGroup);
       return provideAdhocBackend();
     }
 
-    int backendId = Math.abs(RANDOM.nextInt()) % backends.size();
+    int backendId = ThreadLocalRandom.current().nextInt(backends.size());
     return backends.get(backendId).getProxyTo();
   }
 
+  /**
+   * Picks another backend for a statement submission after the backends already tried could not
+   * be connected to. The routing policy of the group is asked first, if it insists on a backend
+   * already tried a random other active backend of the group is picked.
+   *
+   * @param routingGroup routing group the submission was routed to
+   * @param triedBackends backends the submission was already sent to
+   * @return a backend not tried yet, null if there is none left
+   */
+  public String provideFailoverBackend(String routingGroup, Set<String> triedBackends) {
+    String backend = provideBackendForRoutingGroup(routingGroup);
+    if (backend != null && !triedBackends.contains(backend)) {
+      return backend;
+    }
+    RoutingSnapshot snapshot = getRoutingSnapshot();
+    String group = snapshot.isRoutingGroupActive(routingGroup)
+        && !snapshot.getActiveBackends(routingGroup).isEmpty() ? routingGroup : ADHOC;
+    List<String> candidates = snapshot.getActiveBackends(group).stream()
+        .map(ProxyBackendConfiguration::getProxyTo)
+        .filter(proxyTo -> !triedBackends.contains(proxyTo) && !isEjected(proxyTo))
+        .collect(Collectors.toList());
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+  }
+
   /**
    * Performs cache look up, if a backend not found, it checks with all backends and tries to find
-   * out which backend has info about given query id.
+   * out which backend has info about given query id. Query ids found nowhere go to the first
+   * active adhoc backend, and are not looked for again for a while.
    *
    * @param queryId
-   * @return
+   * @return the backend of the query, null if it was found nowhere and there is no active adhoc
+   *     backend either
    */
   public String findBackendForQueryId(String queryId) {
     String backendAddress = null;
-    try {
+    if (unknownQueryIds.getIfPresent(queryId) == null) {
       backendAddress = queryIdBackendCache.get(queryId);
-    } catch (ExecutionException e) {
-      log.error("Exception while loading queryId from cache {}", e.getLocalizedMessage());
+      if (backendAddress == null) {
+        log.warn("Query id [{}] not found", queryId);
+        unknownQueryIds.put(queryId, Boolean.TRUE);
+      }
+    }
+    if (backendAddress == null) {
+      // Fallback on first active backend if queryId mapping not found.
+      List<ProxyBackendConfiguration> adhocBackends = getRoutingSnapshot().getActiveBackends(ADHOC);
+      if (adhocBackends.isEmpty()) {
+        log.warn("No active adhoc backend to send query id [{}] to", queryId);
+        return null;
+      }
+      backendAddress = adhocBackends.get(0).getProxyTo();
     }
     return backendAddress;
   }
 
   /**
-   * This tries to find out which backend may have info about given query id. If not found returns
-   * the first healthy backend.
+   * This tries to find out which backend may have info about given query id, probing all
+   * backends at once.
    *
    * @param queryId
-   * @return
+   * @return the backend that knows the query, null if none does
    */
   protected String findBackendForUnknownQueryId(String queryId) {
-    List<ProxyBackendConfiguration> backends = gatewayBackendManager.getAllBackends();
-
-    Map<String, Future<Integer>> responseCodes = new HashMap<>();
-    try {
-      for (ProxyServerConfiguration backend : backends) {
-        String target = backend.getProxyTo() + "/v1/query/" + queryId;
-
-        Future<Integer> call =
-            executorService.submit(
-                () -> {
-                  URL url = new URL(target);
-                  HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                  conn.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(5));
-                  conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(5));
-                  conn.setRequestMethod(HttpMethod.HEAD);
-                  return conn.getResponseCode();
-                });
-        responseCodes.put(backend.getProxyTo(), call);
-      }
-      for (Map.Entry<String, Future<Integer>> entry : responseCodes.entrySet()) {
-        if (entry.getValue().isDone()) {
-          int responseCode = entry.getValue().get();
-          if (responseCode == 200) {
-            log.info("Found query [{}] on backend [{}]", queryId, entry.getKey());
-            setBackendForQueryId(queryId, entry.getKey());
-            return entry.getKey();
-          }
-        }
-      }
-    } catch (Exception e) {
-      log.warn("Query id [{}] not found", queryId);
+    List<String> backends = getRoutingSnapshot().getAllBackends().stream()
+        .map(ProxyBackendConfiguration::getProxyTo)
+        .collect(Collectors.toList());
+    String backend = queryIdDiscovery.discover(queryId, backends);
+    if (backend != null) {
+      log.info("Found query [{}] on backend [{}]", queryId, backend);
     }
-    // Fallback on first active backend if queryId mapping not found.
-    return gatewayBackendManager.getActiveAdhocBackends().get(0).getProxyTo();
+    return backend;
   }
 }
@@ -0,0 +1,56 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.List;
+
+/**
+ * Chooses the backend a new query is sent to, out of the active backends of a routing group.
+ * Implementations are called concurrently for every submitted query and must not block. Custom
+ * policies are configured by class name and need a public no-arg constructor.
+ */
+public interface RoutingPolicy {
+  String LEAST_OUTSTANDING_QUERIES = "LEAST_OUTSTANDING_QUERIES";
+  String POWER_OF_TWO_CHOICES = "POWER_OF_TWO_CHOICES";
+  String RANDOM = "RANDOM";
+
+  /**
+   * Picks a backend.
+   *
+   * @param backends active backends of the routing group, never empty
+   * @param loads current load of the backends
+   * @return address of the chosen backend
+   */
+  String selectBackend(List<ProxyBackendConfiguration> backends, BackendLoads loads);
+
+  /**
+   * Whether the policy looks at the queries in flight, directly or through the estimated load.
+   * The gateway only tracks them for policies that do, which takes scanning every result page.
+   */
+  default boolean usesInFlightQueries() {
+    return true;
+  }
+
+  /**
+   * Creates a built-in policy by name, or a custom one by class name.
+   *
+   * @param name policy name or class name
+   * @return a new policy
+   */
+  static RoutingPolicy forName(String name) {
+    switch (name.toUpperCase()) {
+      case LEAST_OUTSTANDING_QUERIES:
+        return new LeastOutstandingQueriesPolicy();
+      case POWER_OF_TWO_CHOICES:
+        return new PowerOfTwoChoicesPolicy();
+      case RANDOM:
+        return new RandomPolicy();
+      default:
+    }
+    try {
+      return Class.forName(name).asSubclass(RoutingPolicy.class).newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("Unknown routing policy [" + name + "]", e);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable view of the backends and routing groups known to the gateway, as of one read of the
+ * database. Routing decisions are made against a snapshot so they never touch the database. A new
+ * snapshot, with a higher version, is published whenever the backends or routing groups change.
+ */
+public final class RoutingSnapshot {
+  static final RoutingSnapshot EMPTY =
+      new RoutingSnapshot(0, ImmutableList.of(), ImmutableList.of());
+
+  private final long version;
+  private final List<ProxyBackendConfiguration> allBackends;
+  private final Map<String, List<ProxyBackendConfiguration>> activeBackendsByGroup;
+  private final Map<String, Boolean> routingGroups;
+  private final Map<String, String> backendProxyMap;
+  private final Set<String> backendAddresses;
+
+  /**
+   * Creates a snapshot of the given backends and routing groups.
+   *
+   * @param version version of the snapshot, increases with every published snapshot
+   * @param backends all backends, active or not
+   * @param groups all routing groups
+   */
+  public RoutingSnapshot(long version, List<ProxyBackendConfiguration> backends,
+      List<RoutingGroupConfiguration> groups) {
+    this.version = version;
+    this.allBackends = ImmutableList.copyOf(backends);
+
+    Map<String, List<ProxyBackendConfiguration>> activeBackends = new HashMap<>();
+    Map<String, String> proxyMap = new HashMap<>();
+    for (ProxyBackendConfiguration backend : backends) {
+      proxyMap.put(backend.getName(), backend.getProxyTo());
+      if (backend.isActive()) {
+        activeBackends.computeIfAbsent(backend.getRoutingGroup(), group -> new ArrayList<>())
+            .add(backend);
+      }
+    }
+    ImmutableMap.Builder<String, List<ProxyBackendConfiguration>> activeBackendsBuilder =
+        ImmutableMap.builder();
+    activeBackends.forEach((group, list) -> activeBackendsBuilder.put(group,
+        ImmutableList.copyOf(list)));
+    this.activeBackendsByGroup = activeBackendsBuilder.build();
+    this.backendProxyMap = ImmutableMap.copyOf(proxyMap);
+    this.backendAddresses = proxyMap.values().stream()
+        .filter(Objects::nonNull)
+        .collect(ImmutableSet.toImmutableSet());
+
+    Map<String, Boolean> groupStates = new HashMap<>();
+    for (RoutingGroupConfiguration group : groups) {
+      groupStates.put(group.getName(), group.isActive());
+    }
+    this.routingGroups = ImmutableMap.copyOf(groupStates);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public List<ProxyBackendConfiguration> getAllBackends() {
+    return allBackends;
+  }
+
+  /**
+   * Active backends of a routing group, whether or not the group itself is paused.
+   */
+  public List<ProxyBackendConfiguration> getActiveBackends(String routingGroup) {
+    List<ProxyBackendConfiguration> backends = activeBackendsByGroup.get(routingGroup);
+    return backends == null ? ImmutableList.of() : backends;
+  }
+
+  /**
+   * A routing group is active if it exists and is not paused.
+   */
+  public boolean isRoutingGroupActive(String routingGroup) {
+    return Boolean.TRUE.equals(routingGroups.get(routingGroup));
+  }
+
+  /**
+   * Address of the backend with the given name, null if the backend is unknown.
+   */
+  public String getProxyTo(String backendName) {
+    return backendProxyMap.get(backendName);
+  }
+
+  /**
+   * Whether one of the backends, active or not, has the given address.
+   */
+  public boolean hasBackendAddress(String proxyTo) {
+    return backendAddresses.contains(proxyTo);
+  }
+
+  @Override
+  public String toString() {
+    return "RoutingSnapshot{version=" + version + ", backends=" + backendProxyMap.keySet()
+        + ", routingGroups=" + routingGroups + "}";
+  }
+}
@@ -0,0 +1,180 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.lyft.data.gateway.ha.config.QueryHistoryWriterConfiguration;
+import com.lyft.data.gateway.ha.config.QueryHistoryWriterConfiguration.OverflowPolicy;
+
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Queues submitted queries and writes them to the underlying {@link QueryHistoryManager} in
+ * batches from a background thread, so saving history never blocks the proxy. A batch is written
+ * when batchSize queries are waiting or flushIntervalMillis after the previous write. Until the
+ * writer is started, and after it is stopped, queries are written synchronously.
+ */
+@Slf4j
+public class WriteBehindQueryHistoryManager implements QueryHistoryManager, Managed {
+  private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final QueryHistoryManager delegate;
+  private final int queueCapacity;
+  private final int batchSize;
+  private final long flushIntervalNanos;
+  private final OverflowPolicy overflowPolicy;
+
+  private final ConcurrentLinkedQueue<QueryDetail> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final Meter droppedMeter;
+  private final Timer flushTimer;
+
+  private volatile boolean running;
+  private volatile Thread writerThread;
+
+  public WriteBehindQueryHistoryManager(
+      QueryHistoryManager delegate,
+      QueryHistoryWriterConfiguration configuration,
+      MetricRegistry metrics,
+      String metricPrefix) {
+    this.delegate = delegate;
+    this.queueCapacity = configuration.getQueueCapacity();
+    this.batchSize = Math.max(1, configuration.getBatchSize());
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getFlushIntervalMillis());
+    this.overflowPolicy = configuration.getOverflowPolicy();
+
+    metrics.gauge(metricPrefix + ".queueDepth", () -> (Gauge<Integer>) queueDepth::get);
+    this.droppedMeter = metrics.meter(metricPrefix + ".dropped");
+    this.flushTimer = metrics.timer(metricPrefix + ".flush");
+  }
+
+  @Override
+  public void start() {
+    running = true;
+    writerThread = new Thread(this::runWriter, "query-history-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Stops accepting queries into the queue and writes out whatever is still waiting.
+   */
+  @Override
+  public void stop() throws InterruptedException {
+    running = false;
+    Thread writer = writerThread;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+      writer.join(STOP_TIMEOUT_MILLIS);
+      if (writer.isAlive()) {
+        log.warn("Query history writer still busy after [{}] ms, [{}] queries left unwritten",
+            STOP_TIMEOUT_MILLIS, queueDepth.get());
+      }
+    }
+  }
+
+  @Override
+  public void submitQueryDetail(QueryDetail queryDetail) {
+    if (!running) {
+      delegate.submitQueryDetail(queryDetail);
+      return;
+    }
+
+    if (queueDepth.incrementAndGet() > queueCapacity) {
+      switch (overflowPolicy) {
+        case CALLER_RUNS:
+          queueDepth.decrementAndGet();
+          delegate.submitQueryDetail(queryDetail);
+          return;
+        case DISCARD_OLDEST:
+          QueryDetail oldest = queue.poll();
+          if (oldest != null) {
+            queueDepth.decrementAndGet();
+            droppedMeter.mark();
+            log.debug("Query history queue full, dropped query [{}]", oldest.getQueryId());
+          }
+          break;
+        default:
+          queueDepth.decrementAndGet();
+          droppedMeter.mark();
+          log.debug("Query history queue full, dropped query [{}]", queryDetail.getQueryId());
+          return;
+      }
+    }
+
+    queue.offer(queryDetail);
+    if (!running) {
+      // Stopped since the check above, the writer may be done draining: write it out here
+      drain();
+      return;
+    }
+    if (queueDepth.get() >= batchSize) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  @Override
+  public List<QueryDetail> fetchQueryHistory() {
+    return delegate.fetchQueryHistory();
+  }
+
+  @Override
+  public String getBackendForQueryId(String queryId) {
+    return delegate.getBackendForQueryId(queryId);
+  }
+
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  private void runWriter() {
+    long nextFlush = System.nanoTime() + flushIntervalNanos;
+    while (running) {
+      long now = System.nanoTime();
+      if (queueDepth.get() < batchSize && now - nextFlush < 0) {
+        LockSupport.parkNanos(this, nextFlush - now);
+        continue;
+      }
+      flush();
+      nextFlush = System.nanoTime() + flushIntervalNanos;
+    }
+    // Drain what was queued before stop
+    drain();
+  }
+
+  private void drain() {
+    while (flush() > 0) {
+      log.debug("Flushed pending query history on shutdown");
+    }
+  }
+
+  private int flush() {
+    List<QueryDetail> batch = new ArrayList<>(Math.min(batchSize, queueDepth.get()));
+    QueryDetail queryDetail;
+    while (batch.size() < batchSize && (queryDetail = queue.poll()) != null) {
+      queueDepth.decrementAndGet();
+      batch.add(queryDetail);
+    }
+    if (batch.isEmpty()) {
+      return 0;
+    }
+
+    Timer.Context context = flushTimer.time();
+    try {
+      delegate.submitQueryDetails(batch);
+    } catch (Exception e) {
+      log.error("Error writing [{}] queries to history", batch.size(), e);
+    } finally {
+      context.stop();
+    }
+    return batch.size();
+  }
+}
@@ -7,7 +7,11 @@ CREATE TABLE IF NOT EXISTS gateway_backend (
 name VARCHAR(256) PRIMARY KEY,
 routing_group VARCHAR (256),
 backend_url VARCHAR (256),
-active BOOLEAN
+active BOOLEAN,
+max_connections INT,
+max_queued_requests INT,
+connection_idle_timeout_millis BIGINT,
+prewarm_connections INT
 );
 
 CREATE TABLE IF NOT EXISTS query_history (
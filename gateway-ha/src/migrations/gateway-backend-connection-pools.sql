@@ -0,0 +1,5 @@
+-- Connection pool settings of the backends, for databases created before they were added
+ALTER TABLE gateway_backend ADD COLUMN max_connections INT;
+ALTER TABLE gateway_backend ADD COLUMN max_queued_requests INT;
+ALTER TABLE gateway_backend ADD COLUMN connection_idle_timeout_millis BIGINT;
+ALTER TABLE gateway_backend ADD COLUMN prewarm_connections INT;
@@ -0,0 +1,132 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.lyft.data.gateway.ha.HaGatewayTestUtils;
+import com.lyft.data.gateway.ha.config.ClusterMonitorConfiguration;
+import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
+import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+import com.lyft.data.gateway.ha.router.GatewayBackendManager;
+import com.lyft.data.gateway.ha.router.HaGatewayManager;
+import com.lyft.data.gateway.ha.router.HaRoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingGroupsManager;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test
+public class TestActiveClusterMonitor {
+  private final int fastBackendPort = 21000 + (int) (Math.random() * 900);
+  private final int slowBackendPort = fastBackendPort + 1;
+
+  private final WireMockServer fastBackend =
+      new WireMockServer(WireMockConfiguration.options().port(fastBackendPort));
+  private final WireMockServer slowBackend =
+      new WireMockServer(WireMockConfiguration.options().port(slowBackendPort));
+  private HaRoutingManager routingManager;
+
+  @BeforeClass(alwaysRun = true)
+  public void setUp() {
+    stubClusterStats(fastBackend, 0);
+    stubClusterStats(slowBackend, 10000);
+
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File tempH2DbDir = new File(baseDir, "h2db-" + System.currentTimeMillis());
+    tempH2DbDir.deleteOnExit();
+    String jdbcUrl = "jdbc:h2:" + tempH2DbDir.getAbsolutePath();
+    HaGatewayTestUtils.seedRequiredData(
+        new HaGatewayTestUtils.TestConfig("", tempH2DbDir.getAbsolutePath()));
+    DataStoreConfiguration db = new DataStoreConfiguration(jdbcUrl, "sa", "sa", "org.h2.Driver");
+    JdbcConnectionManager connectionManager = new JdbcConnectionManager(db);
+    GatewayBackendManager backendManager = new HaGatewayManager(connectionManager);
+    RoutingGroupsManager routingGroupsManager = new RoutingGroupsManager(connectionManager);
+    routingGroupsManager.addRoutingGroup(new RoutingGroupConfiguration("adhoc"));
+    addBackend(backendManager, "fast", fastBackendPort);
+    addBackend(backendManager, "slow", slowBackendPort);
+    routingManager = new HaRoutingManager(backendManager, null, routingGroupsManager);
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void cleanUp() {
+    fastBackend.stop();
+    slowBackend.stop();
+  }
+
+  private static void stubClusterStats(WireMockServer backend, int delayMillis) {
+    backend.start();
+    backend.stubFor(
+        WireMock.get(WireMock.urlPathEqualTo(HaGatewayTestUtils.CLUSTER_STATS_ENDPOINT))
+            .willReturn(
+                WireMock.aResponse()
+                    .withBody(HaGatewayTestUtils.WIREMOCK_CLUSTER_STATS_RESPONE)
+                    .withFixedDelay(delayMillis)
+                    .withStatus(200)));
+  }
+
+  private static void addBackend(GatewayBackendManager backendManager, String name, int port) {
+    ProxyBackendConfiguration backend = new ProxyBackendConfiguration();
+    backend.setActive(true);
+    backend.setRoutingGroup("adhoc");
+    backend.setName(name);
+    backend.setProxyTo("http://localhost:" + port);
+    backendManager.addBackend(backend);
+  }
+
+  @Test
+  public void testStatsArePublishedPerCluster() throws Exception {
+    BlockingQueue<ClusterStats> polled = new LinkedBlockingQueue<>();
+    BlockingQueue<List<ClusterStats>> published = new LinkedBlockingQueue<>();
+    AtomicInteger fullRounds = new AtomicInteger();
+    PrestoClusterStatsObserver observer = new PrestoClusterStatsObserver() {
+      @Override
+      public void observe(List<ClusterStats> stats) {
+        fullRounds.incrementAndGet();
+      }
+
+      @Override
+      public void observe(ClusterStats stats, List<ClusterStats> latestStats) {
+        // Published first, it is there once the test sees the polled stats
+        published.add(latestStats);
+        polled.add(stats);
+      }
+    };
+
+    ClusterMonitorConfiguration configuration = new ClusterMonitorConfiguration();
+    configuration.setMinPollIntervalMillis(200);
+    configuration.setPollIntervalMillis(60000);
+    configuration.setMaxPollIntervalMillis(60000);
+    ActiveClusterMonitor monitor = new ActiveClusterMonitor(
+        routingManager, Collections.singletonList(observer), configuration);
+    monitor.start();
+    try {
+      // The slow backend must not hold back the stats of the fast one
+      ClusterStats stats = polled.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(stats);
+      Assert.assertEquals(stats.getClusterId(), "fast");
+      Assert.assertTrue(stats.isHealthy());
+      Assert.assertEquals(stats.getProxyTo(), "http://localhost:" + fastBackendPort);
+      Assert.assertEquals(published.poll(), Collections.singletonList(stats));
+      Assert.assertEquals(fullRounds.get(), 0);
+
+      // A newly monitored cluster is polled again soon, well before the regular interval
+      stats = polled.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(stats);
+      Assert.assertEquals(stats.getClusterId(), "fast");
+    } finally {
+      monitor.stop();
+    }
+  }
+}
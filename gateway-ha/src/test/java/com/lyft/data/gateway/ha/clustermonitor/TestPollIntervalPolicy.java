@@ -0,0 +1,56 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestPollIntervalPolicy {
+  private final PollIntervalPolicy policy = new PollIntervalPolicy(500, 5000, 30000);
+
+  private static ClusterStats clusterStats(boolean healthy, int queued, int running) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId("adhoc0");
+    stats.setHealthy(healthy);
+    stats.setNumWorkerNodes(healthy ? 10 : 0);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(running);
+    return stats;
+  }
+
+  @Test
+  public void testGrowingQueueIsPolledFast() {
+    ClusterStats busy = clusterStats(true, 10, 20);
+    // Just activated
+    Assert.assertEquals(policy.nextIntervalMillis(0, null, busy), 500);
+    Assert.assertEquals(
+        policy.nextIntervalMillis(5000, busy, clusterStats(true, 11, 20)), 500);
+    // Back to health
+    Assert.assertEquals(
+        policy.nextIntervalMillis(30000, clusterStats(false, 0, 0), busy), 500);
+
+    // Stable again, easing back to the regular interval
+    long interval = 500;
+    for (int i = 0; i < 3; i++) {
+      interval = policy.nextIntervalMillis(interval, busy, busy);
+    }
+    Assert.assertEquals(interval, 4000);
+    Assert.assertEquals(policy.nextIntervalMillis(interval, busy, busy), 5000);
+  }
+
+  @Test
+  public void testIdleAndUnhealthyBackOff() {
+    ClusterStats idle = clusterStats(true, 0, 0);
+    Assert.assertEquals(policy.nextIntervalMillis(500, idle, idle), 5000);
+    Assert.assertEquals(policy.nextIntervalMillis(5000, idle, idle), 10000);
+    Assert.assertEquals(policy.nextIntervalMillis(20000, idle, idle), 30000);
+
+    ClusterStats unhealthy = clusterStats(false, 0, 0);
+    Assert.assertEquals(policy.nextIntervalMillis(0, null, unhealthy), 5000);
+    Assert.assertEquals(policy.nextIntervalMillis(30000, unhealthy, unhealthy), 30000);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidBounds() {
+    new PollIntervalPolicy(5000, 500, 30000);
+  }
+}
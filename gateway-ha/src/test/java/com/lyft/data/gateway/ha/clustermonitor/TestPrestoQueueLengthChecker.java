@@ -0,0 +1,51 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import com.google.common.collect.ImmutableMap;
+import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestPrestoQueueLengthChecker {
+
+  private static ClusterStats clusterStats(
+      String name, String routingGroup, int workers, int queued, int running) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId(name);
+    stats.setRoutingGroup(routingGroup);
+    stats.setHealthy(true);
+    stats.setNumWorkerNodes(workers);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(running);
+    return stats;
+  }
+
+  @Test
+  public void testLoadFormulaByRoutingGroup() {
+    PrestoQueueLengthRoutingTable routingTable =
+        new PrestoQueueLengthRoutingTable(null, null, null);
+    PrestoQueueLengthChecker checker = new PrestoQueueLengthChecker(routingTable,
+        LoadFormula.QUEUED, ImmutableMap.of("etl", LoadFormula.PER_100_WORKERS));
+
+    List<ClusterStats> stats = Arrays.asList(
+        clusterStats("adhoc0", "adhoc", 20, 4, 10),
+        clusterStats("adhoc1", "adhoc", 300, 4, 60),
+        clusterStats("etl0", "etl", 20, 4, 10),
+        clusterStats("etl1", "etl", 300, 4, 60));
+    checker.observe(stats);
+
+    Assert.assertEquals(routingTable.getInternalClusterQueueLength("adhoc"),
+        ImmutableMap.of("adhoc0", 4, "adhoc1", 4));
+    Map<String, Integer> etlLoads = routingTable.getInternalClusterQueueLength("etl");
+    Assert.assertEquals(etlLoads, ImmutableMap.of("etl0", 70, "etl1", 22));
+
+    // The bigger cluster has more headroom and gets the larger share, weights are cumulative
+    Map<String, Integer> weights = routingTable.getInternalWeightedRoutingTable("etl");
+    Assert.assertTrue(weights.get("etl1") > weights.get("etl0") - weights.get("etl1"));
+  }
+}
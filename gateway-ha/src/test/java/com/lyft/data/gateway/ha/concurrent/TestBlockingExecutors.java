@@ -0,0 +1,70 @@
+package com.lyft.data.gateway.ha.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestBlockingExecutors {
+
+  @Test
+  public void testPlatformThreads() throws Exception {
+    BlockingExecutors executors = BlockingExecutors.forConfiguration(false);
+    Assert.assertFalse(executors.isVirtual());
+    ExecutorService executor = executors.newFixedExecutor("test-fixed", 2);
+    try {
+      Thread thread = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(thread.getName().startsWith("test-fixed-"));
+      Assert.assertTrue(thread.isDaemon());
+      Assert.assertFalse(isVirtual(thread));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVirtualThreadsWhereSupported() throws Exception {
+    BlockingExecutors executors = BlockingExecutors.forConfiguration(true);
+    // Older JVMs fall back to platform threads
+    Assert.assertEquals(executors.isVirtual(), BlockingExecutors.isVirtualThreadSupported());
+
+    // Blocked tasks beyond the platform thread count still all run at once on virtual threads
+    int tasks = executors.isVirtual() ? 1000 : 4;
+    CountDownLatch started = new CountDownLatch(tasks);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = executors.newFixedExecutor("test-blocking", 4);
+    try {
+      List<Future<Thread>> threads = new ArrayList<>();
+      for (int i = 0; i < tasks; i++) {
+        threads.add(executor.submit(() -> {
+          started.countDown();
+          release.await();
+          return Thread.currentThread();
+        }));
+      }
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      release.countDown();
+      Thread thread = threads.get(0).get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(thread.getName().startsWith("test-blocking-"));
+      Assert.assertEquals(isVirtual(thread), executors.isVirtual());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    if (!BlockingExecutors.isVirtualThreadSupported()) {
+      return false;
+    }
+    Method isVirtual = Thread.class.getMethod("isVirtual");
+    return (boolean) isVirtual.invoke(thread);
+  }
+}
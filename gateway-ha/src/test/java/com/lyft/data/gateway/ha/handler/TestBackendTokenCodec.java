@@ -0,0 +1,34 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestBackendTokenCodec {
+  private final BackendTokenCodec codec =
+      new BackendTokenCodec("secret".getBytes(StandardCharsets.UTF_8));
+
+  @Test
+  public void testRoundTrip() {
+    String token = codec.encode("http://adhoc0.presto.lyft.com:8080");
+    Assert.assertEquals(codec.decode(token), "http://adhoc0.presto.lyft.com:8080");
+    // Gateways sharing the secret understand each other's tokens
+    Assert.assertEquals(
+        new BackendTokenCodec("secret".getBytes(StandardCharsets.UTF_8)).decode(token),
+        "http://adhoc0.presto.lyft.com:8080");
+  }
+
+  @Test
+  public void testInvalidTokens() {
+    String token = codec.encode("http://adhoc0.presto.lyft.com:8080");
+    String forged = codec.encode("http://evil.com").split("\\.")[0] + token.substring(
+        token.indexOf('.'));
+    Assert.assertNull(codec.decode(forged));
+    Assert.assertNull(BackendTokenCodec.withRandomSecret().decode(token));
+    Assert.assertNull(codec.decode(null));
+    Assert.assertNull(codec.decode("garbage"));
+    Assert.assertNull(codec.decode("not base64!.not base64!"));
+  }
+}
@@ -0,0 +1,55 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestKillQueryScanner {
+  private static final String QUERY_ID = "20201221_000000_00000_abcde";
+
+  private static String scan(String statement) {
+    ByteBuffer buffer = ByteBuffer.wrap(statement.getBytes(StandardCharsets.UTF_8));
+    String queryId = KillQueryScanner.findKilledQueryId(buffer.asReadOnlyBuffer());
+    Assert.assertEquals(buffer.position(), 0);
+    return queryId;
+  }
+
+  @Test
+  public void testNamedArgument() {
+    Assert.assertEquals(
+        scan("CALL system.runtime.kill_query(query_id => '" + QUERY_ID + "', message => 'x')"),
+        QUERY_ID);
+    Assert.assertEquals(
+        scan("call SYSTEM.RUNTIME.KILL_QUERY (\n  message => 'a b', QUERY_ID=>'" + QUERY_ID
+            + "')"),
+        QUERY_ID);
+  }
+
+  @Test
+  public void testPositionalArgument() {
+    Assert.assertEquals(
+        scan("CALL system.runtime.kill_query( '" + QUERY_ID + "', 'too slow')"), QUERY_ID);
+  }
+
+  @Test
+  public void testNotAKillCall() {
+    Assert.assertNull(scan("SELECT 1"));
+    Assert.assertNull(scan("SELECT 'system.runtime.kill'"));
+    Assert.assertNull(scan("SELECT * FROM system.runtime.kill_query_log"));
+    Assert.assertNull(scan("CALL system.runtime.kill_query(query_id => 'not an id')"));
+    Assert.assertNull(scan("CALL system.runtime.kill_query(query_id => '" + QUERY_ID));
+    Assert.assertNull(scan("CALL system.runtime.kill_query(query_id => '')"));
+    Assert.assertNull(KillQueryScanner.findKilledQueryId(null));
+  }
+
+  @Test
+  public void testOnlyRemainingBytesAreScanned() {
+    ByteBuffer buffer = ByteBuffer.wrap(
+        ("CALL system.runtime.kill_query('" + QUERY_ID + "')").getBytes(StandardCharsets.UTF_8));
+    buffer.position(10);
+    Assert.assertNull(KillQueryScanner.findKilledQueryId(buffer));
+  }
+}
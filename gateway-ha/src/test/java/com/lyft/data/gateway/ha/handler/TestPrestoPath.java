@@ -0,0 +1,62 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.lyft.data.gateway.ha.handler.PrestoPath.Kind;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestPrestoPath {
+  private static final String QUERY_ID = "20201221_000000_00000_abcde";
+
+  @Test
+  public void testClassify() {
+    Assert.assertEquals(PrestoPath.classify("/v1/statement"), Kind.STATEMENT);
+    Assert.assertEquals(PrestoPath.classify("/v1/statement/queued/q/1"), Kind.STATEMENT);
+    Assert.assertEquals(PrestoPath.classify("/v1/query/q"), Kind.QUERY);
+    Assert.assertEquals(PrestoPath.classify("/v1/info"), Kind.INFO);
+    Assert.assertEquals(PrestoPath.classify("/v1/stage/q.0"), Kind.STAGE);
+    Assert.assertEquals(PrestoPath.classify("/ui/query.html"), Kind.UI);
+    Assert.assertEquals(PrestoPath.classify("/ui/api/stats"), Kind.UI);
+    Assert.assertEquals(PrestoPath.classify("/v1/node"), Kind.OTHER);
+    Assert.assertEquals(PrestoPath.classify("/v1/s"), Kind.OTHER);
+    Assert.assertEquals(PrestoPath.classify("/v1/"), Kind.OTHER);
+    Assert.assertEquals(PrestoPath.classify("/entity"), Kind.OTHER);
+    Assert.assertEquals(PrestoPath.classify(null), Kind.OTHER);
+
+    Assert.assertTrue(Kind.STATEMENT.isLoadBalanced());
+    Assert.assertTrue(Kind.UI.isLoadBalanced());
+    Assert.assertFalse(Kind.STAGE.isLoadBalanced());
+    Assert.assertFalse(Kind.OTHER.isLoadBalanced());
+  }
+
+  @Test
+  public void testQueryIdInPath() {
+    Assert.assertEquals(PrestoPath.queryId("/v1/statement/queued/" + QUERY_ID + "/y/1", null),
+        QUERY_ID);
+    Assert.assertEquals(PrestoPath.queryId("/v1/statement/executing/" + QUERY_ID + "/y/2", null),
+        QUERY_ID);
+    Assert.assertEquals(PrestoPath.queryId("/v1/statement/scheduled/" + QUERY_ID, null),
+        QUERY_ID);
+    Assert.assertEquals(
+        PrestoPath.queryId("/v1/statement/executing/partialCancel/" + QUERY_ID + "/0/y/1", null),
+        QUERY_ID);
+    Assert.assertEquals(PrestoPath.queryId("/v1/statement/" + QUERY_ID + "/1", null), QUERY_ID);
+    Assert.assertEquals(PrestoPath.queryId("/v1/query/" + QUERY_ID, null), QUERY_ID);
+    Assert.assertEquals(PrestoPath.queryId("/ui/query.html", QUERY_ID), QUERY_ID);
+  }
+
+  @Test
+  public void testNoQueryId() {
+    Assert.assertNull(PrestoPath.queryId("/v1/statement", null));
+    Assert.assertNull(PrestoPath.queryId("/v1/statement/", null));
+    Assert.assertNull(PrestoPath.queryId("/v1/statement/queued", null));
+    Assert.assertNull(PrestoPath.queryId("/v1/statement/queued/", null));
+    Assert.assertNull(PrestoPath.queryId("/v1/query", null));
+    Assert.assertNull(PrestoPath.queryId("/v1/info", "x"));
+    Assert.assertNull(PrestoPath.queryId("/ui/query.html", null));
+    Assert.assertNull(PrestoPath.queryId(null, null));
+    Assert.assertEquals(PrestoPath.locateQueryId("/v1/stage/q.0", Kind.STAGE),
+        PrestoPath.NO_QUERY_ID);
+  }
+}
@@ -0,0 +1,413 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HttpHeaders;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.router.QueryHistoryManager;
+import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingSnapshot;
+import com.lyft.data.proxyserver.wrapper.MultiReadHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.HttpMethod;
+import org.eclipse.jetty.util.Callback;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestQueryIdCachingProxyHandler {
+  private static final String QUERY_ID = "20201221_000000_00000_abcde";
+  private static final String OTHER_QUERY_ID = "20201221_000000_00001_abcde";
+  private static final String ADHOC_BACKEND = "http://adhoc0:8080";
+  private static final String ETL_BACKEND = "http://etl0:8080";
+  private static final String POLL_PATH = "/v1/statement/executing/" + QUERY_ID + "/y/2";
+
+  private static String statementResponse(String queryId) {
+    return "{\"id\":\"" + queryId + "\","
+        + "\"infoUri\":\"http://presto1:8080/ui/query.html?" + queryId + "\","
+        + "\"nextUri\":\"http://presto1:8080/v1/statement/queued/" + queryId + "/y/1\","
+        + "\"stats\":{\"state\":\"QUEUED\",\"queued\":true}}";
+  }
+
+  private static ProxyBackendConfiguration backend(String name, String proxyTo, String group) {
+    ProxyBackendConfiguration backend = new ProxyBackendConfiguration();
+    backend.setName(name);
+    backend.setProxyTo(proxyTo);
+    backend.setRoutingGroup(group);
+    backend.setActive(true);
+    return backend;
+  }
+
+  /**
+   * Routes the etl routing group to its own backend, everything else to the adhoc backend.
+   */
+  private static class StubRoutingManager extends RoutingManager {
+    private final RoutingSnapshot snapshot = new RoutingSnapshot(1,
+        ImmutableList.of(backend("adhoc0", ADHOC_BACKEND, "adhoc"),
+            backend("etl0", ETL_BACKEND, "etl")),
+        ImmutableList.of());
+    private final boolean tracksInFlightQueries;
+
+    StubRoutingManager(boolean tracksInFlightQueries) {
+      super(null, null);
+      this.tracksInFlightQueries = tracksInFlightQueries;
+    }
+
+    @Override
+    public RoutingSnapshot getRoutingSnapshot() {
+      return snapshot;
+    }
+
+    @Override
+    public boolean tracksInFlightQueries() {
+      return tracksInFlightQueries;
+    }
+
+    @Override
+    public String provideAdhocBackend() {
+      return ADHOC_BACKEND;
+    }
+
+    @Override
+    public String provideBackendForRoutingGroup(String routingGroup) {
+      return "etl".equals(routingGroup) ? ETL_BACKEND : ADHOC_BACKEND;
+    }
+  }
+
+  private static class RecordingHistory implements QueryHistoryManager {
+    private final List<QueryDetail> submitted = new ArrayList<>();
+
+    @Override
+    public void submitQueryDetail(QueryDetail queryDetail) {
+      submitted.add(queryDetail);
+    }
+
+    @Override
+    public List<QueryDetail> fetchQueryHistory() {
+      return submitted;
+    }
+
+    @Override
+    public String getBackendForQueryId(String queryId) {
+      return null;
+    }
+  }
+
+  private static QueryIdCachingProxyHandler handler(
+      RoutingManager routingManager, QueryHistoryManager history) {
+    return new QueryIdCachingProxyHandler(history, routingManager, 8080, new Meter());
+  }
+
+  private static MultiReadHttpServletRequest request(
+      String method, String uri, String queryString, Map<String, String> headers)
+      throws IOException {
+    byte[] content = "select 1".getBytes(StandardCharsets.UTF_8);
+    ByteArrayInputStream in = new ByteArrayInputStream(content);
+    ServletInputStream servletIn = new ServletInputStream() {
+      @Override
+      public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {}
+
+      @Override
+      public int read() {
+        return in.read();
+      }
+    };
+    Map<String, Object> attributes = new HashMap<>();
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        TestQueryIdCachingProxyHandler.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class},
+        (proxy, m, args) -> {
+          switch (m.getName()) {
+            case "getMethod":
+              return method;
+            case "getRequestURI":
+              return uri;
+            case "getQueryString":
+              return queryString;
+            case "getHeader":
+              return headers.get(args[0]);
+            case "getHeaderNames":
+              return Collections.enumeration(headers.keySet());
+            case "getHeaders":
+              return Collections.enumeration(headers.containsKey(args[0])
+                  ? Collections.singletonList(headers.get(args[0]))
+                  : Collections.emptyList());
+            case "getAttribute":
+              return attributes.get(args[0]);
+            case "setAttribute":
+              attributes.put((String) args[0], args[1]);
+              return null;
+            case "getContentLength":
+              return content.length;
+            case "getInputStream":
+              return servletIn;
+            case "getScheme":
+              return "http";
+            case "getRemoteHost":
+              return "localhost";
+            case "getServerPort":
+              return 8080;
+            default:
+              throw new UnsupportedOperationException(m.getName());
+          }
+        });
+    return new MultiReadHttpServletRequest(request, HttpMethod.POST.equals(method));
+  }
+
+  private static MultiReadHttpServletRequest submission(Map<String, String> headers)
+      throws IOException {
+    return request(HttpMethod.POST, "/v1/statement", null, headers);
+  }
+
+  /**
+   * Passes a backend response through the handler, in chunks as the proxy would, and returns
+   * what the client gets.
+   */
+  private static String respond(
+      QueryIdCachingProxyHandler handler, HttpServletRequest request, int status, String body)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServletOutputStream servletOut = new ServletOutputStream() {
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {}
+
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+    };
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        TestQueryIdCachingProxyHandler.class.getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class},
+        (proxy, m, args) -> {
+          switch (m.getName()) {
+            case "getStatus":
+              return status;
+            case "getHeader":
+              return null;
+            case "getOutputStream":
+              return servletOut;
+            default:
+              throw new UnsupportedOperationException(m.getName());
+          }
+        });
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    for (int offset = 0; offset < bytes.length; offset += 16) {
+      handler.postConnectionHook(request, response, bytes, offset,
+          Math.min(16, bytes.length - offset), Callback.NOOP);
+    }
+    handler.postConnectionCompleteHook(request, response);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String pointedAt(String backend, String body) {
+    return body.replace("\"http://presto1:8080/v1/", "\"" + backend + "/v1/");
+  }
+
+  private static boolean keepsContentLength(
+      QueryIdCachingProxyHandler handler, HttpServletRequest request) {
+    return handler.filterResponseHeader(request, HttpHeaders.CONTENT_LENGTH, "100") != null;
+  }
+
+  @Test
+  public void testRoutingGroupIsPolledDirectly() throws IOException {
+    QueryIdCachingProxyHandler handler =
+        handler(new StubRoutingManager(false), new RecordingHistory());
+    handler.configureDirectCoordinatorRouting(false, ImmutableSet.of("etl"));
+
+    MultiReadHttpServletRequest etl = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.ROUTING_GROUP_HEADER, "etl"));
+    Assert.assertEquals(handler.rewriteTarget(etl), ETL_BACKEND + "/v1/statement");
+    Assert.assertFalse(keepsContentLength(handler, etl));
+    Assert.assertEquals(respond(handler, etl, 200, statementResponse(QUERY_ID)),
+        pointedAt(ETL_BACKEND, statementResponse(QUERY_ID)));
+
+    // The header is not trusted unless allowed
+    MultiReadHttpServletRequest adhoc = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.DIRECT_COORDINATOR_HEADER, "true"));
+    Assert.assertEquals(handler.rewriteTarget(adhoc), ADHOC_BACKEND + "/v1/statement");
+    Assert.assertTrue(keepsContentLength(handler, adhoc));
+    Assert.assertEquals(respond(handler, adhoc, 200, statementResponse(OTHER_QUERY_ID)),
+        statementResponse(OTHER_QUERY_ID));
+  }
+
+  @Test
+  public void testHeaderAsksForDirectPolling() throws IOException {
+    QueryIdCachingProxyHandler handler =
+        handler(new StubRoutingManager(false), new RecordingHistory());
+    handler.configureDirectCoordinatorRouting(true, ImmutableSet.of());
+
+    MultiReadHttpServletRequest direct = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.DIRECT_COORDINATOR_HEADER, "true"));
+    handler.rewriteTarget(direct);
+    Assert.assertEquals(respond(handler, direct, 200, statementResponse(QUERY_ID)),
+        pointedAt(ADHOC_BACKEND, statementResponse(QUERY_ID)));
+
+    MultiReadHttpServletRequest proxied = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.DIRECT_COORDINATOR_HEADER, "false"));
+    handler.rewriteTarget(proxied);
+    Assert.assertEquals(respond(handler, proxied, 200, statementResponse(OTHER_QUERY_ID)),
+        statementResponse(OTHER_QUERY_ID));
+  }
+
+  @Test
+  public void testOnlySubmissionsArePolledDirectly() throws IOException {
+    QueryIdCachingProxyHandler handler =
+        handler(new StubRoutingManager(false), new RecordingHistory());
+    handler.configureDirectCoordinatorRouting(true, ImmutableSet.of("etl"));
+
+    MultiReadHttpServletRequest get = request(HttpMethod.GET, "/v1/statement", null,
+        ImmutableMap.of(QueryIdCachingProxyHandler.ROUTING_GROUP_HEADER, "etl",
+            QueryIdCachingProxyHandler.DIRECT_COORDINATOR_HEADER, "true"));
+    Assert.assertEquals(handler.rewriteTarget(get), ETL_BACKEND + "/v1/statement");
+    Assert.assertTrue(keepsContentLength(handler, get));
+    Assert.assertEquals(respond(handler, get, 200, statementResponse(QUERY_ID)),
+        statementResponse(QUERY_ID));
+  }
+
+  @Test
+  public void testPollsAndErrorsAreNotRewritten() throws IOException {
+    for (boolean tracksInFlightQueries : new boolean[] {false, true}) {
+      StubRoutingManager routingManager = new StubRoutingManager(tracksInFlightQueries);
+      QueryIdCachingProxyHandler handler = handler(routingManager, new RecordingHistory());
+      handler.configureDirectCoordinatorRouting(true, ImmutableSet.of("etl"));
+      Map<String, String> headers =
+          ImmutableMap.of(QueryIdCachingProxyHandler.ROUTING_GROUP_HEADER, "etl",
+              QueryIdCachingProxyHandler.DIRECT_COORDINATOR_HEADER, "true");
+
+      // Polls are routed on their query id, whatever they ask for
+      routingManager.setBackendForQueryId(QUERY_ID, ETL_BACKEND);
+      MultiReadHttpServletRequest poll = request(HttpMethod.GET, POLL_PATH, null, headers);
+      Assert.assertEquals(handler.rewriteTarget(poll), ETL_BACKEND + POLL_PATH);
+      Assert.assertTrue(keepsContentLength(handler, poll));
+      Assert.assertEquals(respond(handler, poll, 200, statementResponse(QUERY_ID)),
+          statementResponse(QUERY_ID));
+
+      String notFound = "{\"error\":\"Query not found\",\"nextUri\":\"http://presto1:8080/x\"}";
+      MultiReadHttpServletRequest rejected = submission(headers);
+      handler.rewriteTarget(rejected);
+      Assert.assertEquals(respond(handler, rejected, 404, notFound), notFound);
+    }
+  }
+
+  @Test
+  public void testDirectQueriesAreNotTrackedInFlight() throws IOException {
+    StubRoutingManager routingManager = new StubRoutingManager(true);
+    RecordingHistory history = new RecordingHistory();
+    QueryIdCachingProxyHandler handler = handler(routingManager, history);
+    handler.configureDirectCoordinatorRouting(false, ImmutableSet.of("etl"));
+
+    MultiReadHttpServletRequest direct = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.ROUTING_GROUP_HEADER, "etl"));
+    handler.rewriteTarget(direct);
+    respond(handler, direct, 200, statementResponse(QUERY_ID));
+
+    MultiReadHttpServletRequest proxied = submission(ImmutableMap.of());
+    handler.rewriteTarget(proxied);
+    respond(handler, proxied, 200, statementResponse(OTHER_QUERY_ID));
+
+    // Both are mapped and recorded, only the proxied one is counted
+    Assert.assertEquals(routingManager.findBackendForQueryId(QUERY_ID), ETL_BACKEND);
+    Assert.assertEquals(routingManager.findBackendForQueryId(OTHER_QUERY_ID), ADHOC_BACKEND);
+    Assert.assertEquals(history.submitted.size(), 2);
+    Assert.assertEquals(routingManager.getInFlightQueryCount(ETL_BACKEND), 0);
+    Assert.assertEquals(routingManager.getInFlightQueryCount(ADHOC_BACKEND), 1);
+  }
+
+  @Test
+  public void testBackendTokenIsStrippedBeforeForwarding() throws IOException {
+    StubRoutingManager routingManager = new StubRoutingManager(false);
+    QueryIdCachingProxyHandler handler = handler(routingManager, new RecordingHistory());
+    BackendTokenCodec backendTokens = BackendTokenCodec.withRandomSecret();
+    handler.setBackendTokenCodec(backendTokens);
+
+    // Submissions hand out uris carrying the token of their backend
+    MultiReadHttpServletRequest submission = submission(
+        ImmutableMap.of(QueryIdCachingProxyHandler.ROUTING_GROUP_HEADER, "etl"));
+    handler.rewriteTarget(submission);
+    String token = StatementUriRewriter.TOKEN_PARAMETER + "=" + backendTokens.encode(ETL_BACKEND);
+    Assert.assertEquals(respond(handler, submission, 200, statementResponse(QUERY_ID)),
+        statementResponse(QUERY_ID).replace("/y/1\"", "/y/1?" + token + "\""));
+
+    // The token wins over the query id mapping, and does not reach the backend
+    routingManager.setBackendForQueryId(QUERY_ID, ADHOC_BACKEND);
+    MultiReadHttpServletRequest poll =
+        request(HttpMethod.GET, POLL_PATH, "slug=x&" + token, ImmutableMap.of());
+    Assert.assertEquals(handler.rewriteTarget(poll), ETL_BACKEND + POLL_PATH + "?slug=x");
+    Assert.assertEquals(
+        poll.getHeader(QueryIdCachingProxyHandler.PROXY_TARGET_HEADER), ETL_BACKEND);
+
+    MultiReadHttpServletRequest tokenOnly =
+        request(HttpMethod.GET, POLL_PATH, token, ImmutableMap.of());
+    Assert.assertEquals(handler.rewriteTarget(tokenOnly), ETL_BACKEND + POLL_PATH);
+  }
+
+  @Test
+  public void testInvalidBackendTokenFallsBackToQueryIdRouting() throws IOException {
+    StubRoutingManager routingManager = new StubRoutingManager(false);
+    QueryIdCachingProxyHandler handler = handler(routingManager, new RecordingHistory());
+    BackendTokenCodec backendTokens = BackendTokenCodec.withRandomSecret();
+    handler.setBackendTokenCodec(backendTokens);
+    routingManager.setBackendForQueryId(QUERY_ID, ADHOC_BACKEND);
+
+    String forged = BackendTokenCodec.withRandomSecret().encode(ETL_BACKEND);
+    String removed = backendTokens.encode("http://removed0:8080");
+    for (String token : new String[] {forged, removed, "garbage"}) {
+      MultiReadHttpServletRequest poll = request(HttpMethod.GET, POLL_PATH,
+          StatementUriRewriter.TOKEN_PARAMETER + "=" + token, ImmutableMap.of());
+      Assert.assertTrue(handler.rewriteTarget(poll).startsWith(ADHOC_BACKEND + POLL_PATH));
+      Assert.assertEquals(
+          poll.getHeader(QueryIdCachingProxyHandler.PROXY_TARGET_HEADER), ADHOC_BACKEND);
+    }
+  }
+
+  @Test
+  public void testStageCancellationFollowsBackendToken() throws IOException {
+    QueryIdCachingProxyHandler handler =
+        handler(new StubRoutingManager(false), new RecordingHistory());
+    BackendTokenCodec backendTokens = BackendTokenCodec.withRandomSecret();
+    handler.setBackendTokenCodec(backendTokens);
+
+    String stagePath = "/v1/stage/" + QUERY_ID + ".0";
+    MultiReadHttpServletRequest cancel = request(HttpMethod.DELETE, stagePath,
+        StatementUriRewriter.TOKEN_PARAMETER + "=" + backendTokens.encode(ETL_BACKEND),
+        ImmutableMap.of());
+    Assert.assertEquals(handler.rewriteTarget(cancel), ETL_BACKEND + stagePath);
+    Assert.assertEquals(
+        cancel.getHeader(QueryIdCachingProxyHandler.PROXY_TARGET_HEADER), ETL_BACKEND);
+  }
+}
@@ -0,0 +1,98 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestQueryIdExtractor {
+  private static final String STATEMENT_RESPONSE =
+      "{\"id\":\"20201221_000000_00000_abcde\","
+          + "\"infoUri\":\"http://presto1:8080/ui/query.html?20201221_000000_00000_abcde\","
+          + "\"nextUri\":\"http://presto1:8080/v1/statement/queued/20201221_000000_00000_abcde/1\","
+          + "\"stats\":{\"state\":\"QUEUED\",\"queued\":true}}";
+
+  private static String extract(byte[] body, boolean gzip, int chunkSize) throws IOException {
+    QueryIdExtractor extractor = new QueryIdExtractor(gzip);
+    for (int offset = 0; offset < body.length && !extractor.isDone(); offset += chunkSize) {
+      extractor.feed(body, offset, Math.min(chunkSize, body.length - offset));
+    }
+    return extractor.getQueryId();
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+      gzipOut.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testPlainResponse() throws IOException {
+    byte[] body = STATEMENT_RESPONSE.getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(extract(body, false, body.length), "20201221_000000_00000_abcde");
+    Assert.assertEquals(extract(body, false, 3), "20201221_000000_00000_abcde");
+  }
+
+  @Test
+  public void testGzipResponse() throws IOException {
+    byte[] body = gzip(STATEMENT_RESPONSE.getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(extract(body, true, body.length), "20201221_000000_00000_abcde");
+    Assert.assertEquals(extract(body, true, 1), "20201221_000000_00000_abcde");
+  }
+
+  @Test
+  public void testNotActuallyGzipped() throws IOException {
+    byte[] body = STATEMENT_RESPONSE.getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(extract(body, true, 5), "20201221_000000_00000_abcde");
+  }
+
+  @Test
+  public void testOnlyTopLevelIdIsUsed() throws IOException {
+    byte[] body =
+        "{\"stats\":{\"id\":\"nested\"},\"columns\":[{\"id\":1}],\"id\":\"top\"}"
+            .getBytes(StandardCharsets.UTF_8);
+    Assert.assertEquals(extract(body, false, 7), "top");
+  }
+
+  @Test
+  public void testResponseWithoutId() throws IOException {
+    Assert.assertNull(extract("[1,2,3]".getBytes(StandardCharsets.UTF_8), false, 2));
+    Assert.assertNull(extract("{\"error\":\"x\"}".getBytes(StandardCharsets.UTF_8), false, 2));
+    Assert.assertNull(extract("not json".getBytes(StandardCharsets.UTF_8), false, 2));
+  }
+
+  private static QueryIdExtractor scan(String body, int chunkSize) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    QueryIdExtractor extractor = new QueryIdExtractor(false, true);
+    for (int offset = 0; offset < bytes.length && !extractor.isDone(); offset += chunkSize) {
+      extractor.feed(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+    }
+    return extractor;
+  }
+
+  @Test
+  public void testLastPageDetection() throws IOException {
+    QueryIdExtractor extractor = scan(STATEMENT_RESPONSE, 4);
+    Assert.assertTrue(extractor.isDone());
+    Assert.assertFalse(extractor.isLastPage());
+    Assert.assertEquals(extractor.getQueryId(), "20201221_000000_00000_abcde");
+
+    extractor = scan("{\"id\":\"q1\",\"infoUri\":\"http://presto1:8080/ui/query.html?q1\","
+        + "\"columns\":[{\"name\":\"_col0\"}],\"data\":[[1]],"
+        + "\"stats\":{\"state\":\"FINISHED\"}}", 4);
+    Assert.assertTrue(extractor.isDone());
+    Assert.assertTrue(extractor.isLastPage());
+    Assert.assertEquals(extractor.getQueryId(), "q1");
+
+    // Nothing after the id, still no nextUri
+    extractor = scan("{\"id\":\"q2\",\"infoUri\":\"x\"}", 100);
+    Assert.assertTrue(extractor.isLastPage());
+    Assert.assertEquals(extractor.getQueryId(), "q2");
+  }
+}
@@ -0,0 +1,69 @@
+package com.lyft.data.gateway.ha.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestStatementUriRewriter {
+  private static final String STATEMENT_RESPONSE =
+      "{\"id\":\"20201221_000000_00000_abcde\","
+          + "\"infoUri\":\"http://presto1:8080/ui/query.html?20201221_000000_00000_abcde\","
+          + "\"partialCancelUri\":\"http://presto1:8080/v1/stage/20201221_000000_00000_abcde.0\","
+          + "\"nextUri\":\"http://presto1:8080/v1/statement/executing/20201221_000000_00000_abcde"
+          + "/2?slug=x\","
+          + "\"data\":[[\"\\\"nextUri\\\":\\\"not a uri\\\"\"]],"
+          + "\"stats\":{\"state\":\"RUNNING\"}}";
+
+  private static String rewrite(String body, int chunkSize) throws IOException {
+    return rewrite(StatementUriRewriter.appendingToken("tok"), body, chunkSize);
+  }
+
+  private static String rewrite(StatementUriRewriter rewriter, String body, int chunkSize)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+      rewriter.write(bytes, offset, Math.min(chunkSize, bytes.length - offset), out);
+    }
+    rewriter.finish(out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testUrisCarryToken() throws IOException {
+    String expected = STATEMENT_RESPONSE
+        .replace("abcde.0\"", "abcde.0?gatewayBackend=tok\"")
+        .replace("/2?slug=x\"", "/2?slug=x&gatewayBackend=tok\"");
+    Assert.assertEquals(rewrite(STATEMENT_RESPONSE, STATEMENT_RESPONSE.length()), expected);
+    Assert.assertEquals(rewrite(STATEMENT_RESPONSE, 7), expected);
+    Assert.assertEquals(rewrite(STATEMENT_RESPONSE, 1), expected);
+  }
+
+  @Test
+  public void testUrisPointAtBackend() throws IOException {
+    String expected = STATEMENT_RESPONSE.replace("\"http://presto1:8080/v1/",
+        "\"https://coordinator0.presto.lyft.com/v1/");
+    Assert.assertEquals(rewrite(StatementUriRewriter.pointingAt(
+        "https://coordinator0.presto.lyft.com"), STATEMENT_RESPONSE, 5), expected);
+  }
+
+  @Test
+  public void testLastPageIsUntouched() throws IOException {
+    String lastPage = "{\"id\":\"q1\",\"infoUri\":\"http://presto1:8080/ui/query.html?q1\","
+        + "\"stats\":{\"state\":\"FINISHED\"}}";
+    Assert.assertEquals(rewrite(lastPage, 4), lastPage);
+  }
+
+  @Test
+  public void testTokenInQueryString() {
+    Assert.assertEquals(StatementUriRewriter.findToken("slug=x&gatewayBackend=tok"), "tok");
+    Assert.assertNull(StatementUriRewriter.findToken("slug=x"));
+    Assert.assertNull(StatementUriRewriter.findToken(null));
+    Assert.assertEquals(StatementUriRewriter.removeToken("slug=x&gatewayBackend=tok"), "slug=x");
+    Assert.assertNull(StatementUriRewriter.removeToken("gatewayBackend=tok"));
+  }
+}
@@ -0,0 +1,52 @@
+package com.lyft.data.gateway.ha.persistence;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
+
+import java.io.File;
+import org.javalite.activejdbc.Base;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestJdbcConnectionManager {
+
+  @Test
+  public void testPooledConnectionsAreReturned() {
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File tempH2DbDir = new File(baseDir, "h2db-pool-" + System.currentTimeMillis());
+    tempH2DbDir.deleteOnExit();
+    DataStoreConfiguration db =
+        new DataStoreConfiguration(
+            "jdbc:h2:" + tempH2DbDir.getAbsolutePath(), "sa", "sa", "org.h2.Driver");
+    db.setMaxPoolSize(2);
+    MetricRegistry metrics = new MetricRegistry();
+    JdbcConnectionManager connectionManager = new JdbcConnectionManager(db, metrics);
+
+    // More round trips than the pool has connections, each must hand its connection back
+    for (int i = 0; i < 5; i++) {
+      connectionManager.open();
+      try {
+        Assert.assertEquals(Base.firstCell("select 1").toString(), "1");
+      } finally {
+        connectionManager.close();
+      }
+    }
+
+    Gauge<?> active = metrics.getGauges().get("gateway-datastore.pool.ActiveConnections");
+    Gauge<?> total = metrics.getGauges().get("gateway-datastore.pool.TotalConnections");
+    Assert.assertNotNull(active);
+    Assert.assertEquals(active.getValue(), 0);
+    Assert.assertTrue((Integer) total.getValue() <= 2);
+
+    // Closed along with the gateway, the pool lends no more connections
+    connectionManager.stop();
+    try {
+      connectionManager.open();
+      Assert.fail("Borrowed a connection from a stopped pool");
+    } catch (RuntimeException expected) {
+      Assert.assertFalse(Base.hasConnection());
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.proxyserver.BackendConnectionPools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class TestBackendConnectionManager {
+  private static final String URL1 = "http://presto1.lyft.com:8080";
+  private static final String URL2 = "http://presto2.lyft.com:8080";
+
+  private final AtomicReference<RoutingSnapshot> snapshot = new AtomicReference<>();
+  private RecordingPools pools;
+  private MetricRegistry metrics;
+  private BackendConnectionManager manager;
+
+  @BeforeMethod
+  public void setUp() {
+    ProxyBackendConfiguration limited = backend("presto1", URL1, true);
+    limited.setMaxConnections(16);
+    limited.setConnectionIdleTimeoutMillis(5000L);
+    limited.setPrewarmConnections(2);
+    publish(limited, backend("presto2", URL2, true), backend("presto3", URL2, false));
+
+    pools = new RecordingPools();
+    metrics = new MetricRegistry();
+    manager = new BackendConnectionManager(snapshot::get, 4);
+    manager.setConnectionPools(pools, metrics, "router");
+  }
+
+  @Test
+  public void testLimitsAndGauges() {
+    manager.observe(stats("presto1", true), ImmutableList.of());
+    Assert.assertEquals(pools.limits.get(URL1), "16/0/5000");
+    // No limits of its own
+    Assert.assertFalse(pools.limits.containsKey(URL2));
+    Assert.assertTrue(metrics.getGauges().containsKey("router.backends.presto1.pool.connections"));
+    Assert.assertTrue(
+        metrics.getGauges().containsKey("router.backends.presto2.pool.requests.queued"));
+    Assert.assertEquals(
+        metrics.getGauges().get("router.backends.presto1.pool.connections.max").getValue(), 0);
+
+    // presto1 removed from the gateway
+    publish(backend("presto2", URL2, true));
+    manager.observe(stats("presto2", true), ImmutableList.of());
+    Assert.assertFalse(pools.limits.containsKey(URL1));
+    Assert.assertFalse(metrics.getGauges().containsKey("router.backends.presto1.pool.connections"));
+    Assert.assertTrue(metrics.getGauges().containsKey("router.backends.presto2.pool.connections"));
+  }
+
+  @Test
+  public void testPrewarmWhenFirstHealthy() {
+    manager.observe(stats("presto1", true), ImmutableList.of());
+    manager.observe(stats("presto2", true), ImmutableList.of());
+    Assert.assertEquals(pools.prewarmed, ImmutableList.of(URL1 + "=2", URL2 + "=4"));
+
+    // Still healthy
+    manager.observe(stats("presto1", true), ImmutableList.of());
+    Assert.assertEquals(pools.prewarmed.size(), 2);
+
+    // Healthy again
+    manager.observe(stats("presto1", false), ImmutableList.of());
+    manager.observe(stats("presto1", true), ImmutableList.of());
+    Assert.assertEquals(pools.prewarmed.get(2), URL1 + "=2");
+
+    // No longer monitored, then monitored again
+    manager.observe(ImmutableList.of(stats("presto1", true)));
+    manager.observe(stats("presto2", true), ImmutableList.of());
+    Assert.assertEquals(pools.prewarmed.get(3), URL2 + "=4");
+
+    // Inactive backends are not routed to
+    manager.observe(stats("presto3", true), ImmutableList.of());
+    Assert.assertEquals(pools.prewarmed.size(), 4);
+  }
+
+  @Test
+  public void testPrewarmWhenActivated() {
+    manager.onBackendActivated("presto3");
+    Assert.assertTrue(pools.prewarmed.isEmpty());
+
+    publish(backend("presto3", URL2, true));
+    manager.onBackendActivated("presto3");
+    Assert.assertEquals(pools.prewarmed, ImmutableList.of(URL2 + "=4"));
+  }
+
+  private void publish(ProxyBackendConfiguration... backends) {
+    long version = snapshot.get() == null ? 1 : snapshot.get().getVersion() + 1;
+    snapshot.set(new RoutingSnapshot(version, ImmutableList.copyOf(backends), ImmutableList.of()));
+  }
+
+  private static ProxyBackendConfiguration backend(String name, String url, boolean active) {
+    ProxyBackendConfiguration backend = new ProxyBackendConfiguration();
+    backend.setName(name);
+    backend.setProxyTo(url);
+    backend.setActive(active);
+    return backend;
+  }
+
+  private static ClusterStats stats(String name, boolean healthy) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId(name);
+    stats.setHealthy(healthy);
+    return stats;
+  }
+
+  private static class RecordingPools extends BackendConnectionPools {
+    private final Map<String, String> limits = new HashMap<>();
+    private final List<String> prewarmed = new ArrayList<>();
+
+    @Override
+    public void setLimits(
+        String backendUrl, int maxConnections, int maxQueuedRequests, long idleTimeoutMillis) {
+      limits.put(backendUrl, maxConnections + "/" + maxQueuedRequests + "/" + idleTimeoutMillis);
+    }
+
+    @Override
+    public void removeLimits(String backendUrl) {
+      limits.remove(backendUrl);
+    }
+
+    @Override
+    public int prewarm(String backendUrl, int connections) {
+      prewarmed.add(backendUrl + "=" + connections);
+      return connections;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.OutlierDetectionConfiguration;
+
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestBackendOutlierDetector {
+  private static final String BACKEND = "http://adhoc0.presto.lyft.com";
+
+  private final AtomicLong clock = new AtomicLong(-TimeUnit.HOURS.toNanos(1));
+
+  private BackendOutlierDetector newDetector() {
+    OutlierDetectionConfiguration configuration = new OutlierDetectionConfiguration();
+    configuration.setWindowMillis(10000);
+    configuration.setMinRequests(10);
+    configuration.setMaxErrorRate(0.5);
+    configuration.setConsecutiveConnectFailures(3);
+    configuration.setBaseEjectionMillis(1000);
+    configuration.setMaxEjectionMillis(4000);
+    return new BackendOutlierDetector(configuration, clock::get);
+  }
+
+  private void advanceMillis(long millis) {
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  private static void connectFailures(BackendOutlierDetector detector, int count) {
+    for (int i = 0; i < count; i++) {
+      detector.recordResponse(BACKEND, 0, new ConnectException("Connection refused"), -1);
+    }
+  }
+
+  @Test
+  public void testConsecutiveConnectFailuresEjectWithBackoff() {
+    BackendOutlierDetector detector = newDetector();
+    AtomicInteger ejections = new AtomicInteger();
+    detector.setEjectionListener(ejections::incrementAndGet);
+
+    connectFailures(detector, 2);
+    detector.recordResponse(BACKEND, 200, null, TimeUnit.MILLISECONDS.toNanos(5));
+    connectFailures(detector, 2);
+    Assert.assertFalse(detector.isEjected(BACKEND));
+    // Failures after connecting are not held against the backend
+    detector.recordResponse(BACKEND, 0, new TimeoutException(), -1);
+    Assert.assertFalse(detector.isEjected(BACKEND));
+
+    connectFailures(detector, 1);
+    Assert.assertTrue(detector.isEjected(BACKEND));
+    Assert.assertEquals(ejections.get(), 1);
+    Assert.assertEquals(detector.getEjectedBackendCount(), 1);
+
+    // Back after the first ejection, twice as long the next time
+    advanceMillis(1000);
+    Assert.assertFalse(detector.isEjected(BACKEND));
+    connectFailures(detector, 3);
+    Assert.assertEquals(detector.getEjectionRemainingNanos(BACKEND),
+        TimeUnit.MILLISECONDS.toNanos(2000));
+    advanceMillis(2000);
+    connectFailures(detector, 3);
+    Assert.assertEquals(detector.getEjectionRemainingNanos(BACKEND),
+        TimeUnit.MILLISECONDS.toNanos(4000));
+    advanceMillis(4000);
+    connectFailures(detector, 3);
+    Assert.assertEquals(detector.getEjectionRemainingNanos(BACKEND),
+        TimeUnit.MILLISECONDS.toNanos(4000));
+
+    // Healthy long enough, the doubling starts over
+    advanceMillis(10000);
+    connectFailures(detector, 3);
+    Assert.assertEquals(detector.getEjectionRemainingNanos(BACKEND),
+        TimeUnit.MILLISECONDS.toNanos(1000));
+  }
+
+  @Test
+  public void testErrorRateOverSlidingWindow() {
+    BackendOutlierDetector detector = newDetector();
+    for (int i = 0; i < 6; i++) {
+      detector.recordResponse(BACKEND, 200, null, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+    for (int i = 0; i < 3; i++) {
+      detector.recordResponse(BACKEND, 503, null, TimeUnit.MILLISECONDS.toNanos(3));
+    }
+    BackendOutlierDetector.Stats stats = detector.getStats(BACKEND);
+    Assert.assertEquals(stats.getRequests(), 9);
+    Assert.assertEquals(stats.getServerErrors(), 3);
+    Assert.assertEquals(stats.getLatencyMillis(0.5), 128);
+    Assert.assertEquals(stats.getLatencyMillis(0.2), 4);
+
+    // Errors that slid out of the window no longer count
+    advanceMillis(10000);
+    Assert.assertEquals(detector.getStats(BACKEND).getRequests(), 0);
+    for (int i = 0; i < 5; i++) {
+      detector.recordResponse(BACKEND, 200, null, 0);
+    }
+    for (int i = 0; i < 4; i++) {
+      detector.recordResponse(BACKEND, 500, null, 0);
+    }
+    Assert.assertFalse(detector.isEjected(BACKEND));
+    detector.recordResponse(BACKEND, 502, null, 0);
+    Assert.assertTrue(detector.isEjected(BACKEND));
+    // The window starts over once the backend is back
+    Assert.assertEquals(detector.getStats(BACKEND).getRequests(), 0);
+  }
+}
@@ -77,12 +77,18 @@ public class TestHaGatewayManager {
     backend.setRoutingGroup("etl");
     backend.setName("adhoc1");
     backend.setProxyTo("adhoc1.presto.lyft.com");
+    backend.setMaxConnections(32);
+    backend.setConnectionIdleTimeoutMillis(10000L);
     haGatewayManager.updateBackend(backend);
     backends = haGatewayManager.getActiveBackends("adhoc");
     Assert.assertEquals(backends.size(), 0);
     backends = haGatewayManager.getAllBackends();
     Assert.assertEquals(backends.size(), 2);
     Assert.assertEquals(backends.get(1).getRoutingGroup(), "etl");
+    Assert.assertEquals(backends.get(1).getMaxConnections(), Integer.valueOf(32));
+    Assert.assertEquals(backends.get(1).getConnectionIdleTimeoutMillis(), Long.valueOf(10000));
+    Assert.assertNull(backends.get(1).getMaxQueuedRequests());
+    Assert.assertNull(backends.get(0).getMaxConnections());
   }
 
   @Test(dependsOnMethods = {"testUpdateBackend"})
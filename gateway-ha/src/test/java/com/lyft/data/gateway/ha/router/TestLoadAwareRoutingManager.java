@@ -0,0 +1,153 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.HaGatewayTestUtils;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
+import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test
+public class TestLoadAwareRoutingManager {
+  private static final String BACKEND_0 = "http://adhoc0.presto.lyft.com";
+  private static final String BACKEND_1 = "http://adhoc1.presto.lyft.com";
+
+  private GatewayBackendManager backendManager;
+  private RoutingGroupsManager routingGroupsManager;
+  private QueryHistoryManager historyManager;
+  private LoadAwareRoutingManager routingManager;
+
+  @BeforeClass(alwaysRun = true)
+  public void setUp() {
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File tempH2DbDir = new File(baseDir, "h2db-" + System.currentTimeMillis());
+    tempH2DbDir.deleteOnExit();
+    String jdbcUrl = "jdbc:h2:" + tempH2DbDir.getAbsolutePath();
+    HaGatewayTestUtils.seedRequiredData(
+        new HaGatewayTestUtils.TestConfig("", tempH2DbDir.getAbsolutePath()));
+    DataStoreConfiguration db = new DataStoreConfiguration(jdbcUrl, "sa", "sa", "org.h2.Driver");
+    JdbcConnectionManager connectionManager = new JdbcConnectionManager(db);
+    backendManager = new HaGatewayManager(connectionManager);
+    routingGroupsManager = new RoutingGroupsManager(connectionManager);
+    historyManager = new HaQueryHistoryManager(null, connectionManager);
+    routingGroupsManager.addRoutingGroup(new RoutingGroupConfiguration("adhoc"));
+    for (int i = 0; i < 2; i++) {
+      ProxyBackendConfiguration backend = new ProxyBackendConfiguration();
+      backend.setActive(true);
+      backend.setRoutingGroup("adhoc");
+      backend.setName("adhoc" + i);
+      backend.setProxyTo("http://adhoc" + i + ".presto.lyft.com");
+      backendManager.addBackend(backend);
+    }
+    routingManager = newRoutingManager(RoutingPolicy.LEAST_OUTSTANDING_QUERIES);
+  }
+
+  private LoadAwareRoutingManager newRoutingManager(String routingPolicy) {
+    LoadAwareRoutingManager manager = new LoadAwareRoutingManager(backendManager, historyManager,
+        routingGroupsManager, RoutingPolicy.forName(routingPolicy));
+    manager.refreshRoutingSnapshot();
+    return manager;
+  }
+
+  private static ClusterStats clusterStats(String name, int queued, int running, boolean healthy) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId(name);
+    stats.setHealthy(healthy);
+    stats.setNumWorkerNodes(healthy ? 10 : 0);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(running);
+    stats.setRoutingGroup("adhoc");
+    return stats;
+  }
+
+  @Test
+  public void testDispatchedQueriesCountUntilFinished() {
+    routingManager.observe(Arrays.asList(
+        clusterStats("adhoc0", 1, 2, true), clusterStats("adhoc1", 0, 0, true)));
+
+    // A burst between two polls must not all land on the backend that was emptiest
+    for (int i = 0; i < 6; i++) {
+      String backend = routingManager.provideAdhocBackend();
+      routingManager.queryStarted("burst" + i, backend);
+    }
+    int load0 = routingManager.getEstimatedLoad(BACKEND_0);
+    int load1 = routingManager.getEstimatedLoad(BACKEND_1);
+    Assert.assertEquals(load0 + load1, 9);
+    Assert.assertTrue(Math.abs(load0 - load1) <= 1, load0 + " vs " + load1);
+
+    // Queries dispatched before a poll are part of the polled numbers, not counted twice
+    routingManager.observe(Arrays.asList(
+        clusterStats("adhoc0", 0, load0, true), clusterStats("adhoc1", 0, load1, true)));
+    Assert.assertEquals(routingManager.getEstimatedLoad(BACKEND_0), load0);
+    Assert.assertEquals(routingManager.getEstimatedLoad(BACKEND_1), load1);
+
+    for (int i = 0; i < 6; i++) {
+      routingManager.queryFinished("burst" + i);
+      routingManager.queryFinished("burst" + i);
+    }
+    Assert.assertEquals(routingManager.getInFlightQueryCount(BACKEND_0), 0);
+    Assert.assertEquals(routingManager.getInFlightQueryCount(BACKEND_1), 0);
+  }
+
+  @Test
+  public void testUnhealthyBackendsAreAvoided() {
+    routingManager.observe(Arrays.asList(
+        clusterStats("adhoc0", 50, 50, true), clusterStats("adhoc1", 0, 0, false)));
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(routingManager.provideAdhocBackend(), BACKEND_0);
+    }
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() {
+    LoadAwareRoutingManager p2c = newRoutingManager(RoutingPolicy.POWER_OF_TWO_CHOICES);
+    Assert.assertTrue(p2c.getRoutingPolicy() instanceof PowerOfTwoChoicesPolicy);
+    p2c.observe(Arrays.asList(
+        clusterStats("adhoc0", 5, 5, true), clusterStats("adhoc1", 0, 0, true)));
+
+    // With two backends both are always sampled, so the lighter one wins until loads even out
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(p2c.provideAdhocBackend(), BACKEND_1);
+      p2c.queryStarted("p2c" + i, BACKEND_1);
+    }
+    Assert.assertEquals(p2c.getEstimatedLoad(BACKEND_1), 10);
+  }
+
+  @Test
+  public void testFailoverBackendIsNotTriedTwice() {
+    LoadAwareRoutingManager failover = newRoutingManager(RoutingPolicy.LEAST_OUTSTANDING_QUERIES);
+    // The policy prefers the backend that just failed, another one is picked anyway
+    failover.observe(Arrays.asList(
+        clusterStats("adhoc0", 0, 0, true), clusterStats("adhoc1", 50, 50, true)));
+    Set<String> triedBackends = new HashSet<>();
+    triedBackends.add(BACKEND_0);
+    Assert.assertEquals(failover.provideFailoverBackend("adhoc", triedBackends), BACKEND_1);
+
+    triedBackends.add(BACKEND_1);
+    Assert.assertNull(failover.provideFailoverBackend("adhoc", triedBackends));
+  }
+
+  @Test
+  public void testInFlightQueriesTrackedOnlyWhenUsed() {
+    Assert.assertTrue(routingManager.tracksInFlightQueries());
+    Assert.assertTrue(newRoutingManager(RoutingPolicy.POWER_OF_TWO_CHOICES)
+        .tracksInFlightQueries());
+    Assert.assertFalse(newRoutingManager(RoutingPolicy.RANDOM).tracksInFlightQueries());
+    Assert.assertFalse(new PrestoQueueLengthRoutingTable(
+        backendManager, historyManager, routingGroupsManager).tracksInFlightQueries());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnknownRoutingPolicy() {
+    RoutingPolicy.forName("com.example.NoSuchPolicy");
+  }
+}
@@ -2,20 +2,31 @@ package com.lyft.data.gateway.ha.router;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.lyft.data.gateway.ha.HaGatewayTestUtils;
 import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
 import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
+import com.lyft.data.gateway.ha.config.OutlierDetectionConfiguration;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.config.RequestRouterConfiguration;
 import com.lyft.data.gateway.ha.config.RoutingGroupConfiguration;
 import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
 import java.io.File;
+import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -67,7 +78,6 @@ public class TestPrestoQueueLengthRoutingTable {
                                int queueLengthDistributiveFactor) {
     String backend = null;
     routingGroupsManager.addRoutingGroup(new RoutingGroupConfiguration(groupName));
-    routingTable.routingGroups.put(groupName, true);
 
     for (int i = 0; i < numBackends; i++) {
       backend = groupName + i;
@@ -77,8 +87,8 @@ public class TestPrestoQueueLengthRoutingTable {
       proxyBackend.setName(backend);
       proxyBackend.setProxyTo(backend + ".presto.lyft.com");
       backendManager.addBackend(proxyBackend);
-      routingTable.backendProxyMap.put(backend, backend + ".presto.lyft.com");
     }
+    routingTable.refreshRoutingSnapshot();
   }
 
   private void registerBackEndsWithRandomQueueLength(String groupName, int numBackends) {
@@ -277,6 +287,165 @@ public class TestPrestoQueueLengthRoutingTable {
     }
   }
 
+  @Test
+  public void testRoutingWhileWeightsAreRecomputed() throws Exception {
+    Map<String, Map<String, Integer>> first = new HashMap<>();
+    first.put("scheduled", ImmutableMap.of("scheduled0", 0, "scheduled1", 50, "scheduled2", 90));
+    Map<String, Map<String, Integer>> second = new HashMap<>();
+    second.put("scheduled", ImmutableMap.of("scheduled1", 10, "scheduled2", 0));
+    routingTable.updateRoutingTable(first);
+
+    AtomicBoolean done = new AtomicBoolean();
+    Thread updater = new Thread(() -> {
+      for (int i = 0; i < 2000; i++) {
+        routingTable.updateRoutingTable(i % 2 == 0 ? second : first);
+      }
+      done.set(true);
+    });
+    updater.start();
+    // Readers must always see a complete table, never a cleared one
+    while (!done.get()) {
+      Assert.assertNotNull(routingTable.getEligibleBackEnd("scheduled"));
+    }
+    updater.join();
+  }
+
+  @Test
+  public void testWeightsFollowPredictedQueueLength() {
+    PrestoQueueLengthRoutingTable smoothedTable =
+        new PrestoQueueLengthRoutingTable(null, null, null, new QueueLengthModel(0.5, 0.5));
+    long now = System.nanoTime();
+    Map<String, Map<String, Integer>> queueLengths = new HashMap<>();
+
+    queueLengths.put("adhoc", ImmutableMap.of("adhoc0", 10, "adhoc1", 10));
+    smoothedTable.updateRoutingTable(queueLengths, null, now);
+    Assert.assertEquals(smoothedTable.getInternalClusterQueueLength("adhoc"),
+        ImmutableMap.of("adhoc0", 10, "adhoc1", 10));
+
+    // Smoothed to 20 and rising by 5 per poll interval
+    queueLengths.put("adhoc", ImmutableMap.of("adhoc0", 30, "adhoc1", 10));
+    smoothedTable.updateRoutingTable(queueLengths, null, now + SECONDS.toNanos(5));
+    Assert.assertEquals(smoothedTable.getInternalClusterQueueLength("adhoc"),
+        ImmutableMap.of("adhoc0", 25, "adhoc1", 10));
+
+    queueLengths.put("adhoc", ImmutableMap.of("adhoc0", 50, "adhoc1", 10));
+    smoothedTable.updateRoutingTable(queueLengths, null, now + SECONDS.toNanos(10));
+    Assert.assertEquals(smoothedTable.getInternalClusterQueueLength("adhoc"),
+        ImmutableMap.of("adhoc0", 49, "adhoc1", 10));
+    Map<String, Integer> weights = smoothedTable.getInternalWeightedRoutingTable("adhoc");
+    Assert.assertTrue(weights.get("adhoc1") > weights.get("adhoc0") - weights.get("adhoc1"));
+
+    // A cluster missing from a poll starts over
+    queueLengths.put("adhoc", ImmutableMap.of("adhoc1", 10));
+    smoothedTable.updateRoutingTable(queueLengths, null, now + SECONDS.toNanos(15));
+    queueLengths.put("adhoc", ImmutableMap.of("adhoc0", 5, "adhoc1", 10));
+    smoothedTable.updateRoutingTable(queueLengths, null, now + SECONDS.toNanos(20));
+    Assert.assertEquals(smoothedTable.getInternalClusterQueueLength("adhoc").get("adhoc0"),
+        Integer.valueOf(5));
+  }
+
+  @Test
+  public void testEjectedClustersAreLeftOutUntilBack() throws Exception {
+    PrestoQueueLengthRoutingTable table = new PrestoQueueLengthRoutingTable(
+        backendManager, historyManager, routingGroupsManager);
+    OutlierDetectionConfiguration outlierConf = new OutlierDetectionConfiguration();
+    outlierConf.setConsecutiveConnectFailures(1);
+    outlierConf.setBaseEjectionMillis(300);
+    table.setOutlierDetector(new BackendOutlierDetector(outlierConf));
+    Map<String, Map<String, Integer>> queueLengths = new HashMap<>();
+    queueLengths.put("scheduled", ImmutableMap.of("scheduled0", 0, "scheduled1", 10));
+    table.updateRoutingTable(queueLengths);
+
+    table.recordBackendResponse("scheduled0.presto.lyft.com", 0, new ConnectException(), -1);
+    Assert.assertEquals(table.getInternalWeightedRoutingTable("scheduled").keySet(),
+        ImmutableSet.of("scheduled1"));
+    Assert.assertEquals(table.getEligibleBackEnd("scheduled"), "scheduled1");
+
+    // A routing group is never left without clusters
+    table.recordBackendResponse("scheduled1.presto.lyft.com", 0, new ConnectException(), -1);
+    Assert.assertEquals(table.getInternalWeightedRoutingTable("scheduled").keySet(),
+        ImmutableSet.of("scheduled0", "scheduled1"));
+
+    Thread.sleep(400);
+    table.getEligibleBackEnd("scheduled");
+    Assert.assertFalse(table.isEjected("scheduled0.presto.lyft.com"));
+    Assert.assertEquals(table.getInternalWeightedRoutingTable("scheduled").keySet(),
+        ImmutableSet.of("scheduled0", "scheduled1"));
+  }
+
+  @Test
+  public void testEjectionEndIsRecomputedOnce() throws Exception {
+    PrestoQueueLengthRoutingTable table = new PrestoQueueLengthRoutingTable(
+        backendManager, historyManager, routingGroupsManager);
+    OutlierDetectionConfiguration outlierConf = new OutlierDetectionConfiguration();
+    outlierConf.setConsecutiveConnectFailures(1);
+    outlierConf.setBaseEjectionMillis(200);
+    AtomicInteger lookups = new AtomicInteger();
+    table.setOutlierDetector(new BackendOutlierDetector(outlierConf) {
+      @Override
+      public long getEjectionRemainingNanos(String backend) {
+        lookups.incrementAndGet();
+        return super.getEjectionRemainingNanos(backend);
+      }
+    });
+    Map<String, Map<String, Integer>> queueLengths = new HashMap<>();
+    queueLengths.put("scheduled", ImmutableMap.of("scheduled0", 0, "scheduled1", 10));
+    table.updateRoutingTable(queueLengths);
+    table.recordBackendResponse("scheduled0.presto.lyft.com", 0, new ConnectException(), -1);
+
+    Thread.sleep(300);
+    lookups.set(0);
+    ExecutorService routingThreads = Executors.newFixedThreadPool(8);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<?>> routed = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        routed.add(routingThreads.submit(() -> {
+          start.await();
+          for (int j = 0; j < 100; j++) {
+            table.getEligibleBackEnd("scheduled");
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> future : routed) {
+        future.get();
+      }
+    } finally {
+      routingThreads.shutdown();
+    }
+    // One recompute, looking up both clusters
+    Assert.assertEquals(lookups.get(), 2);
+    Assert.assertEquals(table.getInternalWeightedRoutingTable("scheduled").keySet(),
+        ImmutableSet.of("scheduled0", "scheduled1"));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidQueueLengthSmoothing() {
+    new QueueLengthModel(0, 0.5);
+  }
+
+  @Test
+  public void testRoutingUsesPublishedSnapshot() {
+    RoutingSnapshot snapshot = routingTable.refreshRoutingSnapshot();
+    Assert.assertTrue(snapshot.isRoutingGroupActive("scheduled"));
+    Assert.assertEquals(snapshot.getProxyTo("scheduled0"), "scheduled0.presto.lyft.com");
+
+    routingGroupsManager.pauseRoutingGroup("scheduled");
+    try {
+      // Writes are not seen by routing until a new snapshot is published
+      Assert.assertSame(routingTable.getRoutingSnapshot(), snapshot);
+      RoutingSnapshot refreshed = routingTable.refreshRoutingSnapshot();
+      Assert.assertTrue(refreshed.getVersion() > snapshot.getVersion());
+      Assert.assertFalse(refreshed.isRoutingGroupActive("scheduled"));
+      Assert.assertTrue(snapshot.isRoutingGroupActive("scheduled"));
+    } finally {
+      routingGroupsManager.resumeRoutingGroup("scheduled");
+      routingTable.refreshRoutingSnapshot();
+    }
+  }
+
   @Test
   public void testActiveClusterMonitorUpdateAndRouting() throws InterruptedException {
     int numRequests = 10;
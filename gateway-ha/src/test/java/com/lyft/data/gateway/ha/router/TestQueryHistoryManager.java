@@ -43,9 +43,10 @@ public class TestQueryHistoryManager {
     queryDetail.setSource("sqlWorkbench");
     queryDetail.setUser("test@ea.com");
     queryDetail.setQueryText("select 1");
+    long now = System.currentTimeMillis();
     for (int i = 0; i < 10; i++) {
-      queryDetail.setQueryId(String.valueOf(System.currentTimeMillis()));
-      queryDetail.setCaptureTime(System.currentTimeMillis());
+      queryDetail.setQueryId(String.valueOf(now + i));
+      queryDetail.setCaptureTime(now + i);
       queryHistoryManager.submitQueryDetail(queryDetail);
     }
     queryDetails = queryHistoryManager.fetchQueryHistory();
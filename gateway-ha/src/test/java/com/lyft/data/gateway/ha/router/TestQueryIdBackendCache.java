@@ -0,0 +1,101 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestQueryIdBackendCache {
+
+  @Test
+  public void testConcurrentMissesLoadOnce() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch loading = new CountDownLatch(1);
+    QueryIdBackendCache cache = new QueryIdBackendCache(100, TimeUnit.MINUTES.toMillis(1), 0,
+        queryId -> {
+          loads.incrementAndGet();
+          try {
+            loading.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "http://adhoc0.presto.lyft.com";
+        });
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit(() -> cache.get("q1")));
+      }
+      Thread.sleep(200);
+      loading.countDown();
+      for (Future<String> lookup : lookups) {
+        Assert.assertEquals(lookup.get(5, TimeUnit.SECONDS), "http://adhoc0.presto.lyft.com");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(loads.get(), 1);
+  }
+
+  @Test
+  public void testStatsArePublished() {
+    QueryIdBackendCache cache = new QueryIdBackendCache(2, TimeUnit.MINUTES.toMillis(1), 0,
+        queryId -> "http://adhoc1.presto.lyft.com");
+    MetricRegistry metrics = new MetricRegistry();
+    cache.registerMetrics(metrics, "queryIdCache");
+
+    cache.put("q1", "http://adhoc0.presto.lyft.com");
+    Assert.assertEquals(cache.get("q1"), "http://adhoc0.presto.lyft.com");
+    Assert.assertEquals(cache.get("q2"), "http://adhoc1.presto.lyft.com");
+    cache.put("q3", "http://adhoc0.presto.lyft.com");
+    cache.put("q4", "http://adhoc0.presto.lyft.com");
+
+    Assert.assertEquals(gauge(metrics, "queryIdCache.hits"), 1L);
+    Assert.assertEquals(gauge(metrics, "queryIdCache.misses"), 1L);
+    Assert.assertEquals(gauge(metrics, "queryIdCache.evictions"), 2L);
+    Assert.assertEquals(gauge(metrics, "queryIdCache.size"), 2L);
+  }
+
+  @Test
+  public void testRefreshAheadKeepsServingCurrentBackend() throws Exception {
+    CountDownLatch reloading = new CountDownLatch(1);
+    QueryIdBackendCache cache = new QueryIdBackendCache(100, TimeUnit.MINUTES.toMillis(1), 100,
+        queryId -> {
+          try {
+            reloading.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return "http://adhoc1.presto.lyft.com";
+        });
+    cache.put("q1", "http://adhoc0.presto.lyft.com");
+
+    Thread.sleep(200);
+    // Stale, the read triggers a reload but still gets the cached backend
+    Assert.assertEquals(cache.get("q1"), "http://adhoc0.presto.lyft.com");
+    reloading.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!cache.get("q1").equals("http://adhoc1.presto.lyft.com")
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(cache.get("q1"), "http://adhoc1.presto.lyft.com");
+  }
+
+  private static Object gauge(MetricRegistry metrics, String name) {
+    return ((Gauge<?>) metrics.getGauges().get(name)).getValue();
+  }
+}
@@ -0,0 +1,134 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.google.common.collect.ImmutableList;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test
+public class TestQueryIdDiscovery {
+  private final int missingPort = 22000 + (int) (Math.random() * 900);
+  private final int fastPort = missingPort + 1;
+  private final int slowPort = missingPort + 2;
+  private final int deadPort = missingPort + 3;
+
+  private final WireMockServer missingBackend =
+      new WireMockServer(WireMockConfiguration.options().port(missingPort));
+  private final WireMockServer fastBackend =
+      new WireMockServer(WireMockConfiguration.options().port(fastPort));
+  private final WireMockServer slowBackend =
+      new WireMockServer(WireMockConfiguration.options().port(slowPort));
+
+  @BeforeClass(alwaysRun = true)
+  public void setUp() {
+    stubQuery(missingBackend, 404, 0);
+    stubQuery(fastBackend, 200, 200);
+    stubQuery(slowBackend, 200, 5000);
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void cleanUp() {
+    missingBackend.stop();
+    fastBackend.stop();
+    slowBackend.stop();
+  }
+
+  private static void stubQuery(WireMockServer backend, int status, int delayMillis) {
+    backend.start();
+    backend.stubFor(
+        WireMock.head(WireMock.urlPathEqualTo("/v1/query/q1"))
+            .willReturn(WireMock.aResponse().withStatus(status).withFixedDelay(delayMillis)));
+  }
+
+  private static String localhost(int port) {
+    return "http://localhost:" + port;
+  }
+
+  @Test
+  public void testFirstBackendClaimingTheQueryWins() {
+    QueryIdDiscovery discovery = new QueryIdDiscovery(TimeUnit.SECONDS.toMillis(10));
+    long start = System.nanoTime();
+    String backend = discovery.discover("q1", Arrays.asList(localhost(deadPort),
+        localhost(missingPort), localhost(slowPort), localhost(fastPort)));
+    Assert.assertEquals(backend, localhost(fastPort));
+    // The slow backend is not waited for
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+  }
+
+  @Test
+  public void testUnclaimedQuery() {
+    QueryIdDiscovery discovery = new QueryIdDiscovery(TimeUnit.SECONDS.toMillis(10));
+    long start = System.nanoTime();
+    Assert.assertNull(discovery.discover("q1",
+        Arrays.asList(localhost(deadPort), localhost(missingPort))));
+    // Answered as soon as every backend did, not at the timeout
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+    Assert.assertNull(discovery.discover("q1", Collections.emptyList()));
+  }
+
+  @Test
+  public void testUnknownQueryIdsAreNotLookedForAgain() {
+    ProxyBackendConfiguration adhoc = new ProxyBackendConfiguration();
+    adhoc.setName("adhoc0");
+    adhoc.setProxyTo(localhost(missingPort));
+    adhoc.setRoutingGroup("adhoc");
+    adhoc.setActive(true);
+    RoutingSnapshot snapshot = new RoutingSnapshot(1, ImmutableList.of(adhoc), ImmutableList.of());
+    AtomicInteger lookups = new AtomicInteger();
+    RoutingManager routingManager = new RoutingManager(null, null) {
+      @Override
+      public RoutingSnapshot getRoutingSnapshot() {
+        return snapshot;
+      }
+
+      @Override
+      protected String findBackendForUnknownQueryId(String queryId) {
+        lookups.incrementAndGet();
+        return super.findBackendForUnknownQueryId(queryId);
+      }
+    };
+    routingManager.configureQueryIdDiscovery(TimeUnit.SECONDS.toMillis(5), 200);
+
+    for (int i = 0; i < 5; i++) {
+      Assert.assertEquals(routingManager.findBackendForQueryId("q2"), localhost(missingPort));
+    }
+    Assert.assertEquals(lookups.get(), 1);
+
+    routingManager.setBackendForQueryId("q3", localhost(fastPort));
+    Assert.assertEquals(routingManager.findBackendForQueryId("q3"), localhost(fastPort));
+    Assert.assertEquals(lookups.get(), 1);
+  }
+
+  @Test
+  public void testUnknownQueryIdWithoutAdhocBackend() {
+    ProxyBackendConfiguration adhoc = new ProxyBackendConfiguration();
+    adhoc.setName("adhoc0");
+    adhoc.setProxyTo(localhost(missingPort));
+    adhoc.setRoutingGroup("adhoc");
+    adhoc.setActive(false);
+    RoutingSnapshot snapshot = new RoutingSnapshot(1, ImmutableList.of(adhoc), ImmutableList.of());
+    RoutingManager routingManager = new RoutingManager(null, null) {
+      @Override
+      public RoutingSnapshot getRoutingSnapshot() {
+        return snapshot;
+      }
+    };
+    routingManager.configureQueryIdDiscovery(TimeUnit.SECONDS.toMillis(5), 200);
+
+    Assert.assertNull(routingManager.findBackendForQueryId("q4"));
+    // Known queries are still routed
+    routingManager.setBackendForQueryId("q5", localhost(fastPort));
+    Assert.assertEquals(routingManager.findBackendForQueryId("q5"), localhost(fastPort));
+  }
+}
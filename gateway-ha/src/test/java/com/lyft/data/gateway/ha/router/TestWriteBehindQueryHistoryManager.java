@@ -0,0 +1,180 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.codahale.metrics.MetricRegistry;
+import com.lyft.data.gateway.ha.HaGatewayTestUtils;
+import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
+import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
+import com.lyft.data.gateway.ha.config.QueryHistoryWriterConfiguration;
+import com.lyft.data.gateway.ha.config.RequestRouterConfiguration;
+import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test
+public class TestWriteBehindQueryHistoryManager {
+  private QueryHistoryManager historyManager;
+
+  @BeforeClass(alwaysRun = true)
+  public void setUp() {
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File tempH2DbDir = new File(baseDir, "h2db-" + System.currentTimeMillis());
+    tempH2DbDir.deleteOnExit();
+    HaGatewayTestUtils.seedRequiredData(
+        new HaGatewayTestUtils.TestConfig("", tempH2DbDir.getAbsolutePath()));
+    String jdbcUrl = "jdbc:h2:" + tempH2DbDir.getAbsolutePath();
+    DataStoreConfiguration db = new DataStoreConfiguration(jdbcUrl, "sa", "sa", "org.h2.Driver");
+    JdbcConnectionManager connectionManager = new JdbcConnectionManager(db);
+    HaGatewayConfiguration gatewayConf = new HaGatewayConfiguration();
+    RequestRouterConfiguration routerConf = new RequestRouterConfiguration();
+    routerConf.setHistorySize(100);
+    gatewayConf.setRequestRouter(routerConf);
+    historyManager = new HaQueryHistoryManager(gatewayConf, connectionManager);
+  }
+
+  private static QueryHistoryManager.QueryDetail queryDetail(String queryId) {
+    QueryHistoryManager.QueryDetail queryDetail = new QueryHistoryManager.QueryDetail();
+    queryDetail.setQueryId(queryId);
+    queryDetail.setBackendUrl("http://localhost:9999");
+    queryDetail.setSource("sqlWorkbench");
+    queryDetail.setUser("test@ea.com");
+    queryDetail.setQueryText("select 1");
+    queryDetail.setCaptureTime(System.currentTimeMillis());
+    return queryDetail;
+  }
+
+  @Test
+  public void testBatchedWritesAreFlushedOnStop() throws Exception {
+    QueryHistoryWriterConfiguration conf = new QueryHistoryWriterConfiguration();
+    conf.setBatchSize(4);
+    conf.setFlushIntervalMillis(60000);
+    WriteBehindQueryHistoryManager writeBehind =
+        new WriteBehindQueryHistoryManager(historyManager, conf, new MetricRegistry(), "test");
+    writeBehind.start();
+
+    final int before = historyManager.fetchQueryHistory().size();
+    for (int i = 0; i < 10; i++) {
+      writeBehind.submitQueryDetail(queryDetail("batched-" + i));
+    }
+    // A duplicate id fails its batch, the other queries must still be saved
+    writeBehind.submitQueryDetail(queryDetail("batched-0"));
+    writeBehind.stop();
+
+    Assert.assertEquals(writeBehind.getQueueDepth(), 0);
+    List<QueryHistoryManager.QueryDetail> queryDetails = writeBehind.fetchQueryHistory();
+    Assert.assertEquals(queryDetails.size(), before + 10);
+    Assert.assertEquals(writeBehind.getBackendForQueryId("batched-7"), "http://localhost:9999");
+  }
+
+  @Test
+  public void testDiscardNewestWhenFull() throws Exception {
+    CountDownLatch writerBlocked = new CountDownLatch(1);
+    CountDownLatch releaseWriter = new CountDownLatch(1);
+    QueryHistoryManager slowStore =
+        new HaQueryHistoryManager(null, null) {
+          @Override
+          public void submitQueryDetails(List<QueryDetail> queryDetails) {
+            writerBlocked.countDown();
+            try {
+              releaseWriter.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        };
+
+    QueryHistoryWriterConfiguration conf = new QueryHistoryWriterConfiguration();
+    conf.setBatchSize(1);
+    conf.setQueueCapacity(2);
+    MetricRegistry metrics = new MetricRegistry();
+    WriteBehindQueryHistoryManager writeBehind =
+        new WriteBehindQueryHistoryManager(slowStore, conf, metrics, "test");
+    writeBehind.start();
+
+    writeBehind.submitQueryDetail(queryDetail("q0"));
+    writerBlocked.await();
+    for (int i = 1; i <= 4; i++) {
+      writeBehind.submitQueryDetail(queryDetail("q" + i));
+    }
+    Assert.assertEquals(writeBehind.getQueueDepth(), 2);
+    Assert.assertEquals(metrics.meter("test.dropped").getCount(), 2);
+
+    releaseWriter.countDown();
+    writeBehind.stop();
+    Assert.assertEquals(writeBehind.getQueueDepth(), 0);
+  }
+
+  @Test
+  public void testQueriesSubmittedWhileStoppingAreWritten() throws Exception {
+    AtomicInteger written = new AtomicInteger();
+    QueryHistoryManager countingStore =
+        new HaQueryHistoryManager(null, null) {
+          @Override
+          public void submitQueryDetail(QueryDetail queryDetail) {
+            written.incrementAndGet();
+          }
+
+          @Override
+          public void submitQueryDetails(List<QueryDetail> queryDetails) {
+            written.addAndGet(queryDetails.size());
+          }
+        };
+
+    QueryHistoryWriterConfiguration conf = new QueryHistoryWriterConfiguration();
+    // Written continuously without submitters waking the writer: the queue stays short, the writer
+    // exits soon after stop and any query accepted before stop but queued after is left behind
+    conf.setBatchSize(Integer.MAX_VALUE);
+    conf.setFlushIntervalMillis(0);
+    int submitterCount = 8;
+    for (int round = 0; round < 200; round++) {
+      written.set(0);
+      MetricRegistry metrics = new MetricRegistry();
+      WriteBehindQueryHistoryManager writeBehind =
+          new WriteBehindQueryHistoryManager(countingStore, conf, metrics, "test");
+      writeBehind.start();
+
+      AtomicBoolean stopped = new AtomicBoolean();
+      AtomicInteger submitted = new AtomicInteger();
+      CyclicBarrier started = new CyclicBarrier(submitterCount + 1);
+      List<Thread> submitters = new ArrayList<>();
+      for (int i = 0; i < submitterCount; i++) {
+        Thread submitter = new Thread(() -> {
+          try {
+            started.await();
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+          while (!stopped.get()) {
+            writeBehind.submitQueryDetail(queryDetail("stopping"));
+            submitted.incrementAndGet();
+          }
+        });
+        submitter.start();
+        submitters.add(submitter);
+      }
+      started.await();
+      // Stop with the submitters in full swing
+      while (submitted.get() < 1000) {
+        Thread.yield();
+      }
+      writeBehind.stop();
+      stopped.set(true);
+      for (Thread submitter : submitters) {
+        submitter.join();
+      }
+
+      Assert.assertEquals(writeBehind.getQueueDepth(), 0);
+      Assert.assertEquals(written.get() + metrics.meter("test.dropped").getCount(),
+          submitted.get());
+    }
+  }
+}
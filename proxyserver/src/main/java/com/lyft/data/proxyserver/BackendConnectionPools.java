@@ -0,0 +1,291 @@
+package com.lyft.data.proxyserver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.client.Origin;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.http.HttpDestinationOverHTTP;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+
+/**
+ * Connection pools of the proxy client, one per backend. A backend can have its own limits:
+ * connections in its pool, requests queued waiting for one of them and how long an idle one is
+ * kept open. Backends without limits get the ones of the client. The queue bound and idle
+ * timeout of a backend can change at any time, its pool size is fixed when the pool is created
+ * by the first request to the backend or the first pre-warm.
+ */
+@Slf4j
+public class BackendConnectionPools {
+  private static final PoolStats NO_POOL = new PoolStats(0, 0, 0, 0, 0, 0);
+
+  // By destination key, see destinationKey
+  private final Map<String, Limits> limits = new ConcurrentHashMap<>();
+  private final Map<String, BackendDestination> destinations = new ConcurrentHashMap<>();
+  private volatile HttpClient httpClient;
+
+  /**
+   * Sets the limits of a backend, non positive values leave the limit of the client.
+   *
+   * @param backendUrl address of the backend, its path is ignored
+   */
+  public void setLimits(
+      String backendUrl, int maxConnections, int maxQueuedRequests, long idleTimeoutMillis) {
+    String key = destinationKey(backendUrl);
+    if (key != null) {
+      limits.put(key, new Limits(maxConnections, maxQueuedRequests, idleTimeoutMillis));
+    }
+  }
+
+  /**
+   * Gives the limits of the client back to a backend, once its pool is created again.
+   */
+  public void removeLimits(String backendUrl) {
+    String key = destinationKey(backendUrl);
+    if (key != null) {
+      limits.remove(key);
+    }
+  }
+
+  /**
+   * Opens connections to a backend ahead of its traffic, so requests do not all pay for a
+   * handshake at once when it becomes routable. Connections are opened asynchronously, up to the
+   * pool size.
+   *
+   * @param backendUrl address of the backend, its path is ignored
+   * @param connections connections the pool should have
+   * @return number of connections being opened, 0 if the pool already had enough or the proxy
+   *     is not started
+   */
+  public int prewarm(String backendUrl, int connections) {
+    HttpClient client = httpClient;
+    URI uri = parse(backendUrl);
+    if (client == null || !client.isRunning() || uri == null || connections <= 0) {
+      return 0;
+    }
+    ConnectionPool pool =
+        ((HttpDestination) client.getDestination(uri.getScheme(), uri.getHost(), uri.getPort()))
+            .getConnectionPool();
+    if (!(pool instanceof BackendConnectionPool)) {
+      return 0;
+    }
+    int opened = ((BackendConnectionPool) pool).prewarm(connections);
+    log.debug("Opening [{}] connections to [{}]", opened, backendUrl);
+    return opened;
+  }
+
+  /**
+   * Current state of the pool of a backend, all zeros until the backend is first connected to.
+   */
+  public PoolStats getStats(String backendUrl) {
+    String key = destinationKey(backendUrl);
+    BackendDestination destination = key == null ? null : destinations.get(key);
+    if (destination == null) {
+      return NO_POOL;
+    }
+    ConnectionPool pool = destination.getConnectionPool();
+    if (!(pool instanceof DuplexConnectionPool)) {
+      return NO_POOL;
+    }
+    DuplexConnectionPool duplexPool = (DuplexConnectionPool) pool;
+    return new PoolStats(
+        duplexPool.getConnectionCount(),
+        duplexPool.getActiveConnectionCount(),
+        duplexPool.getIdleConnectionCount(),
+        duplexPool.getPendingCount(),
+        duplexPool.getMaxConnectionCount(),
+        destination.getQueuedRequestCount());
+  }
+
+  HttpClientTransport newTransport() {
+    return new Transport();
+  }
+
+  private static URI parse(String backendUrl) {
+    if (backendUrl == null) {
+      return null;
+    }
+    try {
+      URI uri = URI.create(backendUrl);
+      if (uri.getScheme() == null || uri.getHost() == null) {
+        return null;
+      }
+      return new URI(uri.getScheme(), null, uri.getHost(),
+          HttpClient.normalizePort(uri.getScheme(), uri.getPort()), null, null, null);
+    } catch (Exception e) {
+      log.warn("Invalid backend address [{}]", backendUrl);
+      return null;
+    }
+  }
+
+  private static String destinationKey(String backendUrl) {
+    URI uri = parse(backendUrl);
+    return uri == null ? null : destinationKey(uri.getScheme(), uri.getHost(), uri.getPort());
+  }
+
+  private static String destinationKey(String scheme, String host, int port) {
+    return scheme.toLowerCase(Locale.ENGLISH) + "://" + host.toLowerCase(Locale.ENGLISH) + ":"
+        + port;
+  }
+
+  private static String destinationKey(Origin origin) {
+    return destinationKey(
+        origin.getScheme(), origin.getAddress().getHost(), origin.getAddress().getPort());
+  }
+
+  private static final class Limits {
+    private final int maxConnections;
+    private final int maxQueuedRequests;
+    private final long idleTimeoutMillis;
+
+    Limits(int maxConnections, int maxQueuedRequests, long idleTimeoutMillis) {
+      this.maxConnections = maxConnections;
+      this.maxQueuedRequests = maxQueuedRequests;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+  }
+
+  /**
+   * HTTP/1.1 transport creating the destinations and pools of the backends with their limits.
+   */
+  private final class Transport extends HttpClientTransportOverHTTP {
+    Transport() {
+      setConnectionPoolFactory(destination -> {
+        Limits backendLimits = limits.get(destinationKey(destination.getOrigin()));
+        int maxConnections = backendLimits == null || backendLimits.maxConnections <= 0
+            ? destination.getHttpClient().getMaxConnectionsPerDestination()
+            : backendLimits.maxConnections;
+        return new BackendConnectionPool(destination, maxConnections);
+      });
+    }
+
+    @Override
+    public void setHttpClient(HttpClient client) {
+      super.setHttpClient(client);
+      httpClient = client;
+    }
+
+    @Override
+    public HttpDestination newHttpDestination(Origin origin) {
+      BackendDestination destination = new BackendDestination(getHttpClient(), origin);
+      destinations.put(destination.key, destination);
+      return destination;
+    }
+
+    @Override
+    public Connection newConnection(EndPoint endPoint, Map<String, Object> context)
+        throws IOException {
+      // Connections are given the idle timeout of the client when opened, and get it back
+      // whenever they are released to the pool
+      HttpDestination destination =
+          (HttpDestination) context.get(HttpClientTransport.HTTP_DESTINATION_CONTEXT_KEY);
+      Limits backendLimits = limits.get(destinationKey(destination.getOrigin()));
+      if (backendLimits != null && backendLimits.idleTimeoutMillis > 0) {
+        endPoint.setIdleTimeout(backendLimits.idleTimeoutMillis);
+      }
+      return super.newConnection(endPoint, context);
+    }
+  }
+
+  private final class BackendDestination extends HttpDestinationOverHTTP {
+    private final String key;
+
+    BackendDestination(HttpClient client, Origin origin) {
+      super(client, origin);
+      this.key = destinationKey(origin);
+    }
+
+    // Bounded by enqueue, where the limit of the backend is known
+    @Override
+    protected Queue<HttpExchange> newExchangeQueue(HttpClient client) {
+      return new BlockingArrayQueue<>(64, 64);
+    }
+
+    @Override
+    protected boolean enqueue(Queue<HttpExchange> queue, HttpExchange exchange) {
+      Limits backendLimits = limits.get(key);
+      int maxQueuedRequests = backendLimits == null || backendLimits.maxQueuedRequests <= 0
+          ? getHttpClient().getMaxRequestsQueuedPerDestination()
+          : backendLimits.maxQueuedRequests;
+      return queue.size() < maxQueuedRequests && super.enqueue(queue, exchange);
+    }
+  }
+
+  private static final class BackendConnectionPool extends DuplexConnectionPool {
+    BackendConnectionPool(HttpDestination destination, int maxConnections) {
+      super(destination, maxConnections, destination);
+    }
+
+    // Idle connections, once open, wait in the pool like released ones
+    int prewarm(int connections) {
+      int target = Math.min(connections, getMaxConnectionCount());
+      int opened = 0;
+      for (int count = getConnectionCount(); count < target; count++) {
+        tryCreate(-1);
+        opened++;
+      }
+      return opened;
+    }
+  }
+
+  /**
+   * Connections of the pool of a backend and requests waiting for one of them.
+   */
+  public static final class PoolStats {
+    private final int connections;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int pendingConnections;
+    private final int maxConnections;
+    private final int queuedRequests;
+
+    PoolStats(int connections, int activeConnections, int idleConnections,
+        int pendingConnections, int maxConnections, int queuedRequests) {
+      this.connections = connections;
+      this.activeConnections = activeConnections;
+      this.idleConnections = idleConnections;
+      this.pendingConnections = pendingConnections;
+      this.maxConnections = maxConnections;
+      this.queuedRequests = queuedRequests;
+    }
+
+    // Open and being opened
+    public int getConnections() {
+      return connections;
+    }
+
+    public int getActiveConnections() {
+      return activeConnections;
+    }
+
+    public int getIdleConnections() {
+      return idleConnections;
+    }
+
+    public int getPendingConnections() {
+      return pendingConnections;
+    }
+
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    public int getQueuedRequests() {
+      return queuedRequests;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.lyft.data.proxyserver;
+
+import java.util.Comparator;
+
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+/**
+ * Builds the jetty HTTP/2 pieces, which are not dependencies of the proxy server: they are added
+ * to the classpath with the http2 maven profile. Everything is looked up reflectively so the
+ * proxy still builds and runs on HTTP/1.1 without them.
+ */
+final class Http2Support {
+  static final String H2 = "h2";
+
+  private static final String HTTP2_SERVER_FACTORY =
+      "org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory";
+  private static final String HTTP2C_SERVER_FACTORY =
+      "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
+  private static final String ALPN_SERVER_FACTORY =
+      "org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory";
+  private static final String HTTP2_CIPHER = "org.eclipse.jetty.http2.HTTP2Cipher";
+  private static final String HTTP2_CLIENT = "org.eclipse.jetty.http2.client.HTTP2Client";
+  private static final String HTTP2_CLIENT_TRANSPORT =
+      "org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2";
+
+  private Http2Support() {
+  }
+
+  static boolean isServerAvailable() {
+    return isPresent(HTTP2_SERVER_FACTORY);
+  }
+
+  static boolean isClientAvailable() {
+    return isPresent(HTTP2_CLIENT_TRANSPORT);
+  }
+
+  /** Cleartext HTTP/2, both with prior knowledge and upgraded from HTTP/1.1. */
+  static ConnectionFactory newH2cConnectionFactory(HttpConfiguration httpConfig) {
+    return newInstance(HTTP2C_SERVER_FACTORY, HttpConfiguration.class, httpConfig);
+  }
+
+  /** HTTP/2 over TLS, once negotiated with ALPN. */
+  static ConnectionFactory newH2ConnectionFactory(HttpConfiguration httpConfig) {
+    return newInstance(HTTP2_SERVER_FACTORY, HttpConfiguration.class, httpConfig);
+  }
+
+  /**
+   * ALPN negotiation of the given protocols, in order of preference. Clients without ALPN get
+   * the last one.
+   */
+  static ConnectionFactory newAlpnConnectionFactory(String... protocols) {
+    ConnectionFactory alpn =
+        newInstance(ALPN_SERVER_FACTORY, String[].class, (Object) protocols);
+    try {
+      alpn.getClass()
+          .getMethod("setDefaultProtocol", String.class)
+          .invoke(alpn, protocols[protocols.length - 1]);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to configure ALPN", e);
+    }
+    return alpn;
+  }
+
+  /** HTTP/2 blacklists most CBC ciphers, offer the ones it accepts first. */
+  @SuppressWarnings("unchecked")
+  static void preferHttp2Ciphers(SslContextFactory sslContextFactory) {
+    try {
+      Object comparator = Class.forName(HTTP2_CIPHER).getField("COMPARATOR").get(null);
+      sslContextFactory.setCipherComparator((Comparator<String>) comparator);
+      sslContextFactory.setUseCipherSuitesOrder(true);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("HTTP/2 is not on the classpath", e);
+    }
+  }
+
+  /**
+   * Client transport multiplexing requests to a destination over HTTP/2 connections: h2c for
+   * http backends, h2 negotiated with ALPN for https ones. Backends must all speak HTTP/2.
+   */
+  static HttpClientTransport newClientTransport() {
+    try {
+      Object http2Client = Class.forName(HTTP2_CLIENT).getConstructor().newInstance();
+      return (HttpClientTransport)
+          Class.forName(HTTP2_CLIENT_TRANSPORT)
+              .getConstructor(http2Client.getClass())
+              .newInstance(http2Client);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("HTTP/2 client is not on the classpath", e);
+    }
+  }
+
+  private static ConnectionFactory newInstance(String className, Class<?> argType, Object arg) {
+    try {
+      return (ConnectionFactory)
+          Class.forName(className).getConstructor(argType).newInstance(arg);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("HTTP/2 is not on the classpath, missing " + className, e);
+    }
+  }
+
+  private static boolean isPresent(String className) {
+    try {
+      Class.forName(className);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+}
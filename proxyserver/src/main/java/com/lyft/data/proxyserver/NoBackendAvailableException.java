@@ -0,0 +1,18 @@
+package com.lyft.data.proxyserver;
+
+/**
+ * Thrown by {@link ProxyHandler#rewriteTarget} when there is no backend to send a request to. The
+ * client gets the given status instead of the request being proxied.
+ */
+public class NoBackendAvailableException extends RuntimeException {
+  private final int status;
+
+  public NoBackendAvailableException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+}
@@ -4,6 +4,11 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Enumeration;
@@ -38,6 +43,46 @@ public class ProxyHandler {
     return targetLocation;
   }
 
+  /**
+   * Called when the backend picked by {@link #rewriteTarget} could not be connected to, before
+   * the client gets an error. The request never reached the backend, so it is safe to send it
+   * elsewhere. Only requests whose body was buffered, or that have none, are retried. The
+   * {@link #preConnectionHook} is not called again, the headers it set are carried over.
+   *
+   * @param request client request
+   * @param failure why the connection failed
+   * @param attempt number of this retry, starting at 1
+   * @return target to send the request to instead, null to answer the client with the error
+   */
+  public String rewriteTargetOnConnectFailure(
+      HttpServletRequest request, Throwable failure, int attempt) {
+    // No retries by default.
+    return null;
+  }
+
+  /**
+   * Tells the {@link RequestFilter} whether the body of this request will be read by the handler
+   * and so has to be buffered. Requests that return false are streamed to the backend as is.
+   *
+   * @param request incoming request
+   * @return true if the request body needs to be readable more than once
+   */
+  public boolean requiresBufferedContent(HttpServletRequest request) {
+    // Be conservative by default, subclasses know which requests they actually inspect.
+    return true;
+  }
+
+  /**
+   * Adjusts the headers of a request to a backend. Unlike preConnectionHook, this is called again
+   * for every retry of the request on another backend.
+   *
+   * @param request
+   * @param proxyRequest
+   */
+  public void customizeProxyRequest(HttpServletRequest request, Request proxyRequest) {
+    // you may override it.
+  }
+
   /**
    * Request interceptor.
    *
@@ -73,6 +118,64 @@ public class ProxyHandler {
     }
   }
 
+  /**
+   * Called once the whole response content went through {@link #postConnectionHook}, before the
+   * response to the client is completed. Handlers that held content back write it out here.
+   *
+   * @param request client request
+   * @param response response to the client
+   */
+  public void postConnectionCompleteHook(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    // you may override it.
+  }
+
+  /**
+   * Filters the headers of backend responses before they are copied to the client response.
+   *
+   * @param request client request
+   * @param headerName name of the backend response header
+   * @param headerValue value of the backend response header
+   * @return value to send to the client, null to drop the header
+   */
+  public String filterResponseHeader(
+      HttpServletRequest request, String headerName, String headerValue) {
+    return headerValue;
+  }
+
+  /**
+   * Called once the exchange with the backend is over, whether or not it succeeded. Lets the
+   * handler learn about the health of backends from the traffic it proxies.
+   *
+   * @param request client request
+   * @param status status of the backend response, 0 if no response was received
+   * @param failure why the exchange failed, null if it did not
+   * @param latencyNanos time from sending the request to receiving the response headers, -1 if
+   *     no response was received
+   */
+  public void onBackendExchangeComplete(
+      HttpServletRequest request, int status, Throwable failure, long latencyNanos) {
+    // you may override it.
+  }
+
+  /**
+   * Whether the failure happened while connecting to the backend, so before it received anything.
+   */
+  public static boolean isConnectFailure(Throwable failure) {
+    for (Throwable cause = failure; cause != null;
+        cause = cause.getCause() == cause ? null : cause.getCause()) {
+      if (cause instanceof ConnectException
+          || cause instanceof NoRouteToHostException
+          || cause instanceof UnknownHostException
+          || cause instanceof UnresolvedAddressException
+          // Jetty reports connect timeouts this way, idle timeouts as TimeoutException
+          || cause instanceof SocketTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected void debugLogHeaders(HttpServletRequest request) {
     if (log.isDebugEnabled()) {
       log.debug("-------HttpServletRequest headers---------");
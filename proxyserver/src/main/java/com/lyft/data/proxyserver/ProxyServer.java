@@ -13,25 +13,39 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.http.util.TextUtils;
 import org.eclipse.jetty.http.HttpScheme;
 import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.io.ConnectionStatistics;
 import org.eclipse.jetty.proxy.ConnectHandler;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 @Slf4j
 public class ProxyServer implements Closeable {
   private final Server server;
+  private final QueuedThreadPool threadPool;
+  private final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+  private final BackendConnectionPools backendConnectionPools = new BackendConnectionPools();
   private final ProxyHandler proxyHandler;
   private ServletContextHandler context;
 
   public ProxyServer(ProxyServerConfiguration config, ProxyHandler proxyHandler) {
-    this.server = new Server();
+    this.threadPool =
+        new QueuedThreadPool(
+            config.getMaxThreads(), config.getMinThreads(), config.getThreadIdleTimeoutMillis());
+    this.threadPool.setReservedThreads(config.getReservedThreads());
+    if (config.getName() != null) {
+      this.threadPool.setName(config.getName());
+    }
+    this.server = new Server(threadPool);
     this.server.setStopAtShutdown(true);
     this.proxyHandler = proxyHandler;
     this.setupContext(config);
@@ -40,10 +54,15 @@ public class ProxyServer implements Closeable {
   private void setupContext(ProxyServerConfiguration config) {
     ServerConnector connector = null;
     HttpConfiguration httpConfig = new HttpConfiguration();
-    // Increase Header buffer size
-    // For prepared statements, Presto sends the prepared query in the header
-    // So, the default buffer size of 8kb is insufficient for large queries
-    httpConfig.setRequestHeaderSize(1048576); //1MB
+    httpConfig.setRequestHeaderSize(config.getRequestHeaderSize());
+    httpConfig.setResponseHeaderSize(config.getResponseHeaderSize());
+    httpConfig.setOutputBufferSize(config.getOutputBufferSize());
+
+    boolean http2 = config.isHttp2();
+    if (http2 && !Http2Support.isServerAvailable()) {
+      log.warn("HTTP/2 is not on the classpath, {} only serves HTTP/1.1", config.getName());
+      http2 = false;
+    }
 
     if (config.isSsl()) {
       String keystorePath = config.getKeystorePath();
@@ -63,20 +82,52 @@ public class ProxyServer implements Closeable {
 
       httpConfig.setSecureScheme(HttpScheme.HTTPS.asString());
       httpConfig.setSecurePort(config.getLocalPort());
-      httpConfig.setOutputBufferSize(32768);
 
       SecureRequestCustomizer src = new SecureRequestCustomizer();
       src.setStsMaxAge(TimeUnit.SECONDS.toSeconds(2000));
       src.setStsIncludeSubDomains(true);
       httpConfig.addCustomizer(src);
+      if (http2) {
+        Http2Support.preferHttp2Ciphers(sslContextFactory);
+        ConnectionFactory alpn =
+            Http2Support.newAlpnConnectionFactory(Http2Support.H2, HttpVersion.HTTP_1_1.asString());
+        connector =
+            new ServerConnector(
+                server,
+                config.getAcceptors(),
+                config.getSelectors(),
+                new SslConnectionFactory(sslContextFactory, alpn.getProtocol()),
+                alpn,
+                Http2Support.newH2ConnectionFactory(httpConfig),
+                new HttpConnectionFactory(httpConfig));
+      } else {
+        connector =
+            new ServerConnector(
+                server,
+                config.getAcceptors(),
+                config.getSelectors(),
+                new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
+                new HttpConnectionFactory(httpConfig));
+      }
+    } else if (http2) {
       connector =
           new ServerConnector(
               server,
-              new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
-              new HttpConnectionFactory(httpConfig));
+              config.getAcceptors(),
+              config.getSelectors(),
+              new HttpConnectionFactory(httpConfig),
+              Http2Support.newH2cConnectionFactory(httpConfig));
     } else {
-      connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig));
+      connector =
+          new ServerConnector(
+              server,
+              config.getAcceptors(),
+              config.getSelectors(),
+              new HttpConnectionFactory(httpConfig));
     }
+    connector.setAcceptQueueSize(config.getAcceptQueueSize());
+    connector.setIdleTimeout(config.getIdleTimeoutMillis());
+    connector.addBean(connectionStatistics);
     connector.setHost("0.0.0.0");
     connector.setPort(config.getLocalPort());
     connector.setName(config.getName());
@@ -91,6 +142,7 @@ public class ProxyServer implements Closeable {
     if (proxyHandler != null) {
       proxy.setProxyHandler(proxyHandler);
     }
+    proxy.setBackendConnectionPools(backendConnectionPools);
 
     ServletHolder proxyServlet = new ServletHolder(config.getName(), proxy);
 
@@ -98,12 +150,47 @@ public class ProxyServer implements Closeable {
     proxyServlet.setInitParameter("prefix", config.getPrefix());
     proxyServlet.setInitParameter("trustAll", config.getTrustAll());
     proxyServlet.setInitParameter("preserveHost", config.getPreserveHost());
+    proxyServlet.setInitParameter(
+        ProxyServletImpl.HTTP2_TO_BACKENDS_PARAMETER, String.valueOf(config.isHttp2ToBackends()));
+    proxyServlet.setInitParameter(
+        "maxConnections", String.valueOf(config.getBackendMaxConnections()));
+    proxyServlet.setInitParameter(
+        "idleTimeout", String.valueOf(config.getBackendIdleTimeoutMillis()));
+    proxyServlet.setInitParameter(ProxyServletImpl.MAX_QUEUED_REQUESTS_PARAMETER,
+        String.valueOf(config.getBackendMaxQueuedRequests()));
 
     // Setup proxy servlet
     this.context =
         new ServletContextHandler(proxyConnectHandler, "/", ServletContextHandler.SESSIONS);
     this.context.addServlet(proxyServlet, "/*");
-    this.context.addFilter(RequestFilter.class, "/*", EnumSet.allOf(DispatcherType.class));
+    this.context.addFilter(
+        new FilterHolder(
+            new RequestFilter(
+                proxyHandler, config.isBufferAllRequests(), connector.getByteBufferPool())),
+        "/*",
+        EnumSet.allOf(DispatcherType.class));
+  }
+
+  /**
+   * Request thread pool, to publish its usage.
+   */
+  public QueuedThreadPool getThreadPool() {
+    return threadPool;
+  }
+
+  /**
+   * Client connection statistics of the listener, to publish them.
+   */
+  public ConnectionStatistics getConnectionStatistics() {
+    return connectionStatistics;
+  }
+
+  /**
+   * Connection pools to the backends, empty until the proxy is started. They are not used when
+   * talking HTTP/2 to the backends.
+   */
+  public BackendConnectionPools getBackendConnectionPools() {
+    return backendConnectionPools;
   }
 
   public void addFilter(Class<? extends Filter> filterClass, String pathSpec) {
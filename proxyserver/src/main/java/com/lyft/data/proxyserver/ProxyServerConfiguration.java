@@ -13,6 +13,43 @@ public class ProxyServerConfiguration {
   private boolean ssl;
   private String keystorePath;
   private String keystorePass;
+  private boolean bufferAllRequests;
+
+  // Request threads, every proxied exchange holds one only while its bytes are being moved.
+  // The jetty defaults.
+  private int maxThreads = 200;
+  private int minThreads = 8;
+  private int threadIdleTimeoutMillis = 60000;
+  // Threads kept ready to run selector tasks right away, -1 for jetty's heuristic
+  private int reservedThreads = -1;
+
+  // Connector threads, -1 for jetty's heuristic on the number of cores
+  private int acceptors = -1;
+  private int selectors = -1;
+  // Backlog of connections not yet accepted, 0 for the OS default
+  private int acceptQueueSize = 0;
+  // Client connections idle for that long are closed
+  private long idleTimeoutMillis = 30000;
+
+  private int outputBufferSize = 32768;
+  // Presto clients send prepared statements in a header, the jetty default of 8kb is too small
+  private int requestHeaderSize = 1048576;
+  private int responseHeaderSize = 8192;
+
+  // Connection pool of each backend, unless set for the backend with BackendConnectionPools.
+  // Jetty's proxy servlet default, newHttpClient used to ask for 10000 connections in vain.
+  private int backendMaxConnections = 256;
+  // Requests waiting for a connection to a backend, beyond that they are rejected
+  private int backendMaxQueuedRequests = 1024;
+  // Backend connections idle for that long are closed
+  private long backendIdleTimeoutMillis = 30000;
+
+  // Experimental. Serve HTTP/2 next to HTTP/1.1: h2c on plain connectors, h2 negotiated with ALPN
+  // on ssl ones. Needs the jetty http2 jars, see the http2 maven profile.
+  private boolean http2;
+  // Experimental. Multiplex requests to the backends over HTTP/2 connections, all backends must
+  // support it
+  private boolean http2ToBackends;
 
   protected String getPrefix() {
     return prefix;
@@ -38,6 +75,10 @@ public class ProxyServerConfiguration {
     return keystorePass;
   }
 
+  protected boolean isBufferAllRequests() {
+    return bufferAllRequests;
+  }
+
   protected int getLocalPort() {
     return localPort;
   }
@@ -1,5 +1,8 @@
 package com.lyft.data.proxyserver;
 
+import com.lyft.data.proxyserver.wrapper.MultiReadHttpServletRequest;
+
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
@@ -10,13 +13,29 @@ import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.proxy.ProxyServlet;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 @Slf4j
 public class ProxyServletImpl extends ProxyServlet.Transparent {
+  static final String HTTP2_TO_BACKENDS_PARAMETER = "http2ToBackends";
+  static final String MAX_QUEUED_REQUESTS_PARAMETER = "maxRequestsQueuedPerDestination";
+
+  private static final String SEND_TIME_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".sendTime";
+  private static final String RESPONSE_HEADERS_TIME_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".responseHeadersTime";
+  private static final String RETRY_ATTEMPT_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".retryAttempt";
+  private static final String NO_BACKEND_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".noBackend";
+
   private ProxyHandler proxyHandler;
+  private BackendConnectionPools backendConnectionPools;
 
   public void setProxyHandler(ProxyHandler proxyHandler) {
     this.proxyHandler = proxyHandler;
@@ -24,6 +43,10 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     this.setTimeout(TimeUnit.MINUTES.toMillis(1));
   }
 
+  public void setBackendConnectionPools(BackendConnectionPools backendConnectionPools) {
+    this.backendConnectionPools = backendConnectionPools;
+  }
+
   // Overriding this method to support ssl
   @Override
   protected HttpClient newHttpClient() {
@@ -32,8 +55,20 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     sslFactory.setStopTimeout(TimeUnit.SECONDS.toMillis(15));
     sslFactory.setSslSessionTimeout((int) TimeUnit.SECONDS.toMillis(15));
 
-    HttpClient httpClient = new HttpClient(sslFactory);
-    httpClient.setMaxConnectionsPerDestination(10000);
+    HttpClient httpClient;
+    if (isHttp2ToBackends()) {
+      // Requests are multiplexed, a handful of connections per backend carry all of them
+      httpClient = new HttpClient(Http2Support.newClientTransport(), sslFactory);
+    } else if (backendConnectionPools != null) {
+      httpClient = new HttpClient(backendConnectionPools.newTransport(), sslFactory);
+    } else {
+      httpClient = new HttpClient(sslFactory);
+    }
+    // The pool size and idle timeout are set by the maxConnections and idleTimeout parameters
+    String maxQueuedRequests = getServletConfig().getInitParameter(MAX_QUEUED_REQUESTS_PARAMETER);
+    if (maxQueuedRequests != null) {
+      httpClient.setMaxRequestsQueuedPerDestination(Integer.parseInt(maxQueuedRequests));
+    }
     httpClient.setConnectTimeout(TimeUnit.SECONDS.toMillis(60));
     // Increase Header buffer size
     // For prepared statements, Presto sends the prepared query in the header
@@ -42,11 +77,33 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     return httpClient;
   }
 
+  /**
+   * Jetty copies the version of the client request, HTTP/2 clients are proxied with HTTP/1.1
+   * unless backends are talked to over HTTP/2, where the transport ignores it.
+   */
+  private static HttpVersion backendVersion(HttpServletRequest clientRequest) {
+    HttpVersion version = HttpVersion.fromString(clientRequest.getProtocol());
+    return version == null || version == HttpVersion.HTTP_2 ? HttpVersion.HTTP_1_1 : version;
+  }
+
+  private boolean isHttp2ToBackends() {
+    if (!Boolean.parseBoolean(getServletConfig().getInitParameter(HTTP2_TO_BACKENDS_PARAMETER))) {
+      return false;
+    }
+    if (!Http2Support.isClientAvailable()) {
+      log.warn("HTTP/2 client is not on the classpath, using HTTP/1.1 to the backends");
+      return false;
+    }
+    return true;
+  }
+
   /** Customize the headers of forwarding proxy requests. */
   @Override
   protected void addProxyHeaders(HttpServletRequest request, Request proxyRequest) {
+    proxyRequest.version(backendVersion(request));
     super.addProxyHeaders(request, proxyRequest);
     if (proxyHandler != null) {
+      proxyHandler.customizeProxyRequest(request, proxyRequest);
       proxyHandler.preConnectionHook(request, proxyRequest);
     }
   }
@@ -55,7 +112,13 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
   protected String rewriteTarget(HttpServletRequest request) {
     String target = null;
     if (proxyHandler != null) {
-      target = proxyHandler.rewriteTarget(request);
+      try {
+        target = proxyHandler.rewriteTarget(request);
+      } catch (NoBackendAvailableException e) {
+        log.warn("No backend for [{}]: {}", request.getRequestURI(), e.getMessage());
+        request.setAttribute(NO_BACKEND_ATTRIBUTE, e);
+        return null;
+      }
     }
     if (target == null) {
       target = super.rewriteTarget(request);
@@ -64,6 +127,177 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     return target;
   }
 
+  @Override
+  protected void onProxyRewriteFailed(
+      HttpServletRequest clientRequest, HttpServletResponse proxyResponse) {
+    NoBackendAvailableException noBackend =
+        (NoBackendAvailableException) clientRequest.getAttribute(NO_BACKEND_ATTRIBUTE);
+    if (noBackend == null) {
+      super.onProxyRewriteFailed(clientRequest, proxyResponse);
+      return;
+    }
+    sendProxyResponseError(clientRequest, proxyResponse, noBackend.getStatus());
+  }
+
+  @Override
+  protected void sendProxyRequest(
+      HttpServletRequest clientRequest, HttpServletResponse proxyResponse, Request proxyRequest) {
+    clientRequest.setAttribute(SEND_TIME_ATTRIBUTE, System.nanoTime());
+    super.sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
+  }
+
+  @Override
+  protected void onServerResponseHeaders(
+      HttpServletRequest clientRequest,
+      HttpServletResponse proxyResponse,
+      Response serverResponse) {
+    clientRequest.setAttribute(RESPONSE_HEADERS_TIME_ATTRIBUTE, System.nanoTime());
+    super.onServerResponseHeaders(clientRequest, proxyResponse, serverResponse);
+  }
+
+  @Override
+  protected void onProxyResponseSuccess(
+      HttpServletRequest clientRequest,
+      HttpServletResponse proxyResponse,
+      Response serverResponse) {
+    onBackendExchangeComplete(clientRequest, serverResponse, null);
+    if (proxyHandler != null) {
+      try {
+        proxyHandler.postConnectionCompleteHook(clientRequest, proxyResponse);
+      } catch (Exception e) {
+        super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, e);
+        return;
+      }
+    }
+    super.onProxyResponseSuccess(clientRequest, proxyResponse, serverResponse);
+  }
+
+  @Override
+  protected String filterServerResponseHeader(
+      HttpServletRequest clientRequest,
+      Response serverResponse,
+      String headerName,
+      String headerValue) {
+    String value =
+        super.filterServerResponseHeader(clientRequest, serverResponse, headerName, headerValue);
+    if (value != null && proxyHandler != null) {
+      value = proxyHandler.filterResponseHeader(clientRequest, headerName, value);
+    }
+    return value;
+  }
+
+  @Override
+  protected void onProxyResponseFailure(
+      HttpServletRequest clientRequest,
+      HttpServletResponse proxyResponse,
+      Response serverResponse,
+      Throwable failure) {
+    onBackendExchangeComplete(clientRequest, serverResponse, failure);
+    if (retryOnConnectFailure(clientRequest, proxyResponse, serverResponse, failure)) {
+      return;
+    }
+    super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, failure);
+  }
+
+  /**
+   * Sends the request to the target the proxy handler picks instead, if the backend could not be
+   * connected to and nothing was answered to the client yet.
+   *
+   * @return true if the request was sent again
+   */
+  private boolean retryOnConnectFailure(
+      HttpServletRequest clientRequest,
+      HttpServletResponse proxyResponse,
+      Response serverResponse,
+      Throwable failure) {
+    if (proxyHandler == null
+        || proxyResponse.isCommitted()
+        || clientRequest.getAttribute(RESPONSE_HEADERS_TIME_ATTRIBUTE) != null
+        || !ProxyHandler.isConnectFailure(failure)
+        || !isReplayable(clientRequest)) {
+      return false;
+    }
+    Integer previousAttempt = (Integer) clientRequest.getAttribute(RETRY_ATTEMPT_ATTRIBUTE);
+    int attempt = previousAttempt == null ? 1 : previousAttempt + 1;
+    try {
+      String target = proxyHandler.rewriteTargetOnConnectFailure(clientRequest, failure, attempt);
+      if (target == null) {
+        return false;
+      }
+      log.warn("Could not connect for request [{}]: {}, retrying on [{}]",
+          getRequestId(clientRequest), failure.toString(), target);
+      clientRequest.setAttribute(RETRY_ATTEMPT_ATTRIBUTE, attempt);
+      Request failedRequest = serverResponse == null ? null : serverResponse.getRequest();
+      sendProxyRequest(
+          clientRequest, proxyResponse, newRetryRequest(clientRequest, proxyResponse,
+              failedRequest, target));
+      return true;
+    } catch (Exception e) {
+      log.warn("Error retrying the request, failing it", e);
+      return false;
+    }
+  }
+
+  private static boolean isReplayable(HttpServletRequest clientRequest) {
+    if (clientRequest instanceof MultiReadHttpServletRequest) {
+      return ((MultiReadHttpServletRequest) clientRequest).isContentBuffered();
+    }
+    return clientRequest.getContentLengthLong() == 0;
+  }
+
+  /**
+   * Builds the request to the retry target the way {@link #service} does, reading the buffered
+   * body from its start again. Headers added by the proxy handler to the failed request are kept,
+   * and the handler customizes the request again.
+   */
+  private Request newRetryRequest(
+      HttpServletRequest clientRequest,
+      HttpServletResponse proxyResponse,
+      Request failedRequest,
+      String target)
+      throws IOException {
+    Request proxyRequest =
+        getHttpClient()
+            .newRequest(target)
+            .method(clientRequest.getMethod())
+            .version(backendVersion(clientRequest));
+    copyRequestHeaders(clientRequest, proxyRequest);
+    super.addProxyHeaders(clientRequest, proxyRequest);
+    if (failedRequest != null) {
+      HttpFields headers = proxyRequest.getHeaders();
+      for (HttpField field : failedRequest.getHeaders()) {
+        if (!headers.containsKey(field.getName())) {
+          headers.add(field);
+        }
+      }
+    }
+    proxyHandler.customizeProxyRequest(clientRequest, proxyRequest);
+    proxyRequest.timeout(getTimeout(), TimeUnit.MILLISECONDS);
+    if (hasContent(clientRequest)) {
+      proxyRequest.content(proxyRequestContent(clientRequest, proxyResponse, proxyRequest));
+    }
+    proxyRequest.attribute(CLIENT_REQUEST_ATTRIBUTE, clientRequest);
+    return proxyRequest;
+  }
+
+  private void onBackendExchangeComplete(
+      HttpServletRequest clientRequest, Response serverResponse, Throwable failure) {
+    if (proxyHandler == null) {
+      return;
+    }
+    Object sendTime = clientRequest.getAttribute(SEND_TIME_ATTRIBUTE);
+    Object headersTime = clientRequest.getAttribute(RESPONSE_HEADERS_TIME_ATTRIBUTE);
+    long latencyNanos = sendTime != null && headersTime != null
+        ? (Long) headersTime - (Long) sendTime : -1;
+    // Without response headers there is no status, whatever the response object says
+    int status = serverResponse != null && headersTime != null ? serverResponse.getStatus() : 0;
+    try {
+      proxyHandler.onBackendExchangeComplete(clientRequest, status, failure, latencyNanos);
+    } catch (Exception e) {
+      log.warn("Error recording the backend response", e);
+    }
+  }
+
   /**
    * Customize the response returned from remote server.
    *
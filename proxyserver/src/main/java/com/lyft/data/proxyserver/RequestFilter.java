@@ -4,6 +4,8 @@ import com.lyft.data.proxyserver.wrapper.MultiReadHttpServletRequest;
 
 import java.io.IOException;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -15,11 +17,35 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
 
 @Slf4j
 public class RequestFilter implements Filter {
+  private final ProxyHandler proxyHandler;
+  private final boolean bufferAllRequests;
+  private final ByteBufferPool bufferPool;
   private FilterConfig filterConfig = null;
 
+  public RequestFilter() {
+    this(null, true, new ArrayByteBufferPool());
+  }
+
+  /**
+   * Creates a filter that only buffers request bodies the proxy handler asks for, unless
+   * bufferAllRequests is set.
+   *
+   * @param proxyHandler handler deciding which requests need their body buffered
+   * @param bufferAllRequests buffer every request body regardless of the handler
+   * @param bufferPool pool the request body buffers are taken from
+   */
+  public RequestFilter(
+      ProxyHandler proxyHandler, boolean bufferAllRequests, ByteBufferPool bufferPool) {
+    this.proxyHandler = proxyHandler;
+    this.bufferAllRequests = bufferAllRequests;
+    this.bufferPool = bufferPool;
+  }
+
   public void init(FilterConfig filterConfig) throws ServletException {
     this.filterConfig = filterConfig;
   }
@@ -30,11 +56,53 @@ public class RequestFilter implements Filter {
 
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
-    // We need to convert the ServletRequest to MultiReadRequest, so that we can intercept later
+    // We need to convert the ServletRequest to MultiReadRequest, so that we can intercept later.
+    // The body is only copied into memory when it is going to be inspected, everything else
+    // is streamed through to the backend.
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    boolean bufferContent =
+        bufferAllRequests
+            || proxyHandler == null
+            || proxyHandler.requiresBufferedContent(httpRequest);
     MultiReadHttpServletRequest multiReadRequest =
-        new MultiReadHttpServletRequest((HttpServletRequest) request);
+        new MultiReadHttpServletRequest(httpRequest, bufferContent, bufferPool);
     HttpServletResponseWrapper responseWrapper =
         new HttpServletResponseWrapper((HttpServletResponse) response);
-    chain.doFilter(multiReadRequest, responseWrapper);
+    boolean releaseOnComplete = false;
+    try {
+      chain.doFilter(multiReadRequest, responseWrapper);
+      if (bufferContent && multiReadRequest.isAsyncStarted()) {
+        // The proxy keeps reading the body after we return, hand the buffer back once the
+        // exchange with the backend is done.
+        multiReadRequest.getAsyncContext().addListener(new ReleaseBufferListener(multiReadRequest));
+        releaseOnComplete = true;
+      }
+    } finally {
+      if (!releaseOnComplete) {
+        multiReadRequest.release();
+      }
+    }
+  }
+
+  private static class ReleaseBufferListener implements AsyncListener {
+    private final MultiReadHttpServletRequest request;
+
+    ReleaseBufferListener(MultiReadHttpServletRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      request.release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {}
+
+    @Override
+    public void onError(AsyncEvent event) {}
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
   }
 }
@@ -1,12 +1,11 @@
 package com.lyft.data.proxyserver.wrapper;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -18,9 +17,20 @@ import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
-public class MultiReadHttpServletRequest extends HttpServletRequestWrapper {
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
 
-  private byte[] content;
+public class MultiReadHttpServletRequest extends HttpServletRequestWrapper {
+  private static final ByteBufferPool DEFAULT_BUFFER_POOL = new ArrayByteBufferPool();
+  // Used when the client does not send a Content-Length (chunked bodies).
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  // Never trust Content-Length for more than this up front, the buffer grows if needed.
+  private static final int MAX_PRESIZED_BUFFER_SIZE = 1048576; //1MB
+
+  private final boolean contentBuffered;
+  private final ByteBufferPool bufferPool;
+  private volatile ByteBuffer content;
   private final Map<String, String> headerMap = new HashMap<>();
 
   public static void copy(InputStream in, OutputStream out) throws IOException {
@@ -36,10 +46,104 @@ public class MultiReadHttpServletRequest extends HttpServletRequestWrapper {
   }
 
   public MultiReadHttpServletRequest(HttpServletRequest request) throws IOException {
+    this(request, true);
+  }
+
+  public MultiReadHttpServletRequest(HttpServletRequest request, boolean bufferContent)
+      throws IOException {
+    this(request, bufferContent, DEFAULT_BUFFER_POOL);
+  }
+
+  /**
+   * Wraps the request, optionally buffering its body so it can be read more than once. When the
+   * body is not buffered the underlying input stream is handed out untouched and can only be
+   * consumed once, by whoever proxies it. Buffered bodies live in a buffer taken from the given
+   * pool, which must be handed back with {@link #release()}.
+   *
+   * @param request request to wrap
+   * @param bufferContent whether to materialize the body in memory
+   * @param bufferPool pool to take the body buffer from
+   */
+  public MultiReadHttpServletRequest(
+      HttpServletRequest request, boolean bufferContent, ByteBufferPool bufferPool)
+      throws IOException {
     super(request);
-    ByteArrayOutputStream bodyInOutputStream = new ByteArrayOutputStream();
-    copy(request.getInputStream(), bodyInOutputStream);
-    content = bodyInOutputStream.toByteArray();
+    this.contentBuffered = bufferContent;
+    this.bufferPool = bufferPool;
+    if (bufferContent) {
+      content = readContent(request);
+    }
+  }
+
+  private ByteBuffer readContent(HttpServletRequest request) throws IOException {
+    int contentLength = request.getContentLength();
+    if (contentLength == 0) {
+      return BufferUtil.EMPTY_BUFFER;
+    }
+    int initialSize =
+        contentLength > 0 ? Math.min(contentLength, MAX_PRESIZED_BUFFER_SIZE) : INITIAL_BUFFER_SIZE;
+
+    InputStream in = request.getInputStream();
+    ByteBuffer buffer = bufferPool.acquire(initialSize, false);
+    BufferUtil.clearToFill(buffer);
+    try {
+      while (true) {
+        if (!buffer.hasRemaining()) {
+          // A buffer presized to Content-Length is full exactly at the end of the body, probe
+          // for one more byte before paying for a larger buffer and a copy.
+          int next = in.read();
+          if (next == -1) {
+            break;
+          }
+          // Presizing was not enough (chunked or lying Content-Length), grow the buffer.
+          ByteBuffer larger = bufferPool.acquire(buffer.capacity() * 2, false);
+          BufferUtil.clearToFill(larger);
+          buffer.flip();
+          larger.put(buffer);
+          bufferPool.release(buffer);
+          buffer = larger;
+          buffer.put((byte) next);
+        }
+        int bytesRead =
+            in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (bytesRead == -1) {
+          break;
+        }
+        buffer.position(buffer.position() + bytesRead);
+      }
+    } catch (IOException | RuntimeException e) {
+      bufferPool.release(buffer);
+      throw e;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  public boolean isContentBuffered() {
+    return contentBuffered;
+  }
+
+  /**
+   * Read only view of the buffered body, no bytes are copied. The view is only valid until the
+   * request is released.
+   *
+   * @return the buffered body, or null if the body was not buffered
+   */
+  public ByteBuffer getContentBuffer() {
+    ByteBuffer buffer = content;
+    return buffer == null ? null : buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Hands the body buffer back to the pool. Must only be called once nothing reads the request
+   * anymore.
+   */
+  public synchronized void release() {
+    ByteBuffer buffer = content;
+    if (buffer != null && buffer != BufferUtil.EMPTY_BUFFER) {
+      content = BufferUtil.EMPTY_BUFFER;
+      bufferPool.release(buffer);
+    }
   }
 
   /**
@@ -84,29 +188,62 @@ public class MultiReadHttpServletRequest extends HttpServletRequestWrapper {
 
   @Override
   public ServletInputStream getInputStream() throws IOException {
-    final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(content);
+    if (!contentBuffered) {
+      return super.getInputStream();
+    }
+    // Every stream gets its own position over the same bytes.
+    final ByteBuffer buffer = content.duplicate();
     return new ServletInputStream() {
       @Override
       public boolean isFinished() {
-        return false;
+        return !buffer.hasRemaining();
       }
 
       @Override
       public boolean isReady() {
-        return false;
+        return true;
       }
 
       @Override
       public void setReadListener(ReadListener readListener) {}
 
+      @Override
       public int read() throws IOException {
-        return byteArrayInputStream.read();
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+          return 0;
+        }
+        if (!buffer.hasRemaining()) {
+          return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+      }
+
+      @Override
+      public int available() throws IOException {
+        return buffer.remaining();
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
       }
     };
   }
 
   @Override
   public BufferedReader getReader() throws IOException {
+    if (!contentBuffered) {
+      return super.getReader();
+    }
     return new BufferedReader(new InputStreamReader(this.getInputStream()));
   }
 }
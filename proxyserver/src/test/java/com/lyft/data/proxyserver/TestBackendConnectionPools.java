@@ -0,0 +1,88 @@
+package com.lyft.data.proxyserver;
+
+import static org.testng.Assert.assertEquals;
+
+import com.lyft.data.proxyserver.BackendConnectionPools.PoolStats;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.Test;
+
+public class TestBackendConnectionPools {
+
+  @Test
+  public void testPrewarmAndIdleEviction() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("warm"));
+    backend.play(backendPort);
+    String backendUrl = "http://localhost:" + backendPort;
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = new ProxyServerConfiguration();
+    config.setName("PooledBackend");
+    config.setProxyTo(backendUrl + "/");
+    config.setLocalPort(serverPort);
+    ProxyServer proxyServer = new ProxyServer(config, new ProxyHandler(backendPort));
+    BackendConnectionPools pools = proxyServer.getBackendConnectionPools();
+
+    try {
+      // Not started yet
+      assertEquals(pools.prewarm(backendUrl, 2), 0);
+
+      proxyServer.start();
+      pools.setLimits(backendUrl + "/v1/statement", 3, 0, 500);
+      assertEquals(pools.getStats(backendUrl).getConnections(), 0);
+
+      // Capped by the pool size of the backend
+      assertEquals(pools.prewarm(backendUrl, 5), 3);
+      PoolStats stats = awaitStats(pools, backendUrl, s -> s.getIdleConnections() == 3);
+      assertEquals(stats.getMaxConnections(), 3);
+      assertEquals(stats.getActiveConnections(), 0);
+      assertEquals(pools.prewarm(backendUrl, 3), 0);
+
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpResponse response = httpclient.execute(new HttpGet("http://localhost:" + serverPort));
+      assertEquals(EntityUtils.toString(response.getEntity()), "warm");
+
+      // Idle for longer than the idle timeout of the backend
+      awaitStats(pools, backendUrl, s -> s.getConnections() == 0);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testNoPoolBeforeFirstConnection() throws IOException {
+    BackendConnectionPools pools = new BackendConnectionPools();
+    pools.setLimits("not a url", 1, 1, 1);
+    assertEquals(pools.getStats("http://localhost:8080").getMaxConnections(), 0);
+    assertEquals(pools.getStats(null).getConnections(), 0);
+  }
+
+  private static PoolStats awaitStats(
+      BackendConnectionPools pools, String backendUrl, Predicate<PoolStats> condition)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    PoolStats stats = pools.getStats(backendUrl);
+    while (!condition.test(stats) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+      stats = pools.getStats(backendUrl);
+    }
+    if (!condition.test(stats)) {
+      throw new AssertionError("Pool of " + backendUrl + " never reached the expected state");
+    }
+    return stats;
+  }
+}
@@ -1,20 +1,39 @@
 package com.lyft.data.proxyserver;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.client.api.Request;
+import org.testng.SkipException;
 import org.testng.annotations.Test;
 
 public class TestProxyServer {
@@ -44,6 +63,98 @@ public class TestProxyServer {
     }
   }
 
+  @Test
+  public void testServerTuning() throws IOException {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("tuned"));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    config.setMaxThreads(32);
+    config.setMinThreads(4);
+    config.setSelectors(2);
+    ProxyServer proxyServer = new ProxyServer(config, new ProxyHandler(backendPort));
+
+    try {
+      proxyServer.start();
+      assertEquals(proxyServer.getThreadPool().getMaxThreads(), 32);
+      assertEquals(proxyServer.getThreadPool().getMinThreads(), 4);
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpResponse response =
+          httpclient.execute(new HttpGet("http://localhost:" + serverPort));
+      assertEquals(EntityUtils.toString(response.getEntity()), "tuned");
+      assertEquals(proxyServer.getConnectionStatistics().getConnectionsTotal(), 1);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testHttp2ListenerServesHttp11() throws IOException {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("http/1.1"));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    // With or without the http2 jars, HTTP/1.1 clients are still served
+    config.setHttp2(true);
+    ProxyServer proxyServer = new ProxyServer(config, new ProxyHandler(backendPort));
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpResponse response =
+          httpclient.execute(new HttpGet("http://localhost:" + serverPort));
+      assertEquals(EntityUtils.toString(response.getEntity()), "http/1.1");
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testH2cWithPriorKnowledge() throws Exception {
+    if (!Http2Support.isServerAvailable()) {
+      throw new SkipException("Needs the jetty http2 jars: mvn -P http2 test");
+    }
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    config.setHttp2(true);
+    ProxyServer proxyServer = new ProxyServer(config, new ProxyHandler(backendPort));
+
+    try (Socket socket = new Socket()) {
+      proxyServer.start();
+      socket.connect(new InetSocketAddress("localhost", serverPort), 5000);
+      socket.setSoTimeout(5000);
+      OutputStream out = socket.getOutputStream();
+      out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      // Empty SETTINGS frame: length 0, type 4, no flags, stream 0
+      out.write(new byte[] {0, 0, 0, 4, 0, 0, 0, 0, 0});
+      out.flush();
+
+      // An HTTP/2 server answers the preface with its own SETTINGS frame
+      byte[] frameHeader = new byte[9];
+      new DataInputStream(socket.getInputStream()).readFully(frameHeader);
+      assertEquals(frameHeader[3], 4);
+      assertEquals(frameHeader[4], 0);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
   @Test
   public void testCustomHeader() throws Exception {
     String mockResponseText = "CUSTOM HEADER TEST";
@@ -75,6 +186,269 @@ public class TestProxyServer {
     }
   }
 
+  @Test
+  public void testUnbufferedRequestBody() throws Exception {
+    String mockResponseText = "STREAMED BODY TEST";
+    String requestBody = "SELECT * FROM system.runtime.nodes";
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    ProxyHandler streamingHandler =
+        new ProxyHandler(backendPort) {
+          @Override
+          public boolean requiresBufferedContent(HttpServletRequest request) {
+            return false;
+          }
+        };
+    ProxyServer proxyServer = new ProxyServer(config, streamingHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setEntity(new StringEntity(requestBody));
+
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(mockResponseText, EntityUtils.toString(response.getEntity()));
+      RecordedRequest recordedRequest = backend.takeRequest();
+      assertEquals(recordedRequest.getUtf8Body(), requestBody);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testLargeBufferedRequestBody() throws Exception {
+    String mockResponseText = "BUFFERED BODY TEST";
+    StringBuilder queryBuilder = new StringBuilder("SELECT 1");
+    while (queryBuilder.length() < 100_000) {
+      queryBuilder.append(" UNION ALL SELECT ").append(queryBuilder.length());
+    }
+    String requestBody = queryBuilder.toString();
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    ProxyServer proxyServer = new ProxyServer(config, new ProxyHandler(backendPort));
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      // Unknown length forces a chunked upload, so the buffer can not be presized
+      httpPost.setEntity(
+          new InputStreamEntity(
+              new ByteArrayInputStream(requestBody.getBytes(StandardCharsets.UTF_8)), -1));
+
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(mockResponseText, EntityUtils.toString(response.getEntity()));
+      RecordedRequest recordedRequest = backend.takeRequest();
+      assertEquals(recordedRequest.getUtf8Body(), requestBody);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testBackendExchangeOutcome() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setResponseCode(503));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    int deadBackendPort = backendPort + 2;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    BlockingQueue<Object[]> outcomes = new LinkedBlockingQueue<>();
+    ProxyHandler recordingHandler =
+        new ProxyHandler(backendPort) {
+          @Override
+          protected String rewriteTarget(HttpServletRequest request) {
+            int port = request.getRequestURI().startsWith("/dead") ? deadBackendPort : backendPort;
+            return "http://localhost:" + port + request.getRequestURI();
+          }
+
+          @Override
+          public void onBackendExchangeComplete(
+              HttpServletRequest request, int status, Throwable failure, long latencyNanos) {
+            outcomes.add(new Object[] {status, failure, latencyNanos});
+          }
+        };
+    ProxyServer proxyServer = new ProxyServer(config, recordingHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpResponse response = httpclient.execute(new HttpGet("http://localhost:" + serverPort));
+      assertEquals(response.getStatusLine().getStatusCode(), 503);
+      EntityUtils.consume(response.getEntity());
+      Object[] outcome = outcomes.poll(10, TimeUnit.SECONDS);
+      assertEquals(outcome[0], 503);
+      assertNull(outcome[1]);
+      assertTrue((Long) outcome[2] >= 0);
+
+      response = httpclient.execute(new HttpGet("http://localhost:" + serverPort + "/dead"));
+      EntityUtils.consume(response.getEntity());
+      outcome = outcomes.poll(10, TimeUnit.SECONDS);
+      assertEquals(outcome[0], 0);
+      assertNotNull(outcome[1]);
+      assertEquals(outcome[2], -1L);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testRetryOnConnectFailure() throws Exception {
+    String mockResponseText = "RETRIED";
+    String requestBody = "SELECT * FROM system.runtime.nodes";
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    int deadBackendPort = backendPort + 2;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    BlockingQueue<Integer> attempts = new LinkedBlockingQueue<>();
+    ProxyHandler failoverHandler =
+        new ProxyHandler(backendPort) {
+          @Override
+          protected String rewriteTarget(HttpServletRequest request) {
+            return "http://localhost:" + deadBackendPort + request.getRequestURI();
+          }
+
+          @Override
+          public String rewriteTargetOnConnectFailure(
+              HttpServletRequest request, Throwable failure, int attempt) {
+            attempts.add(attempt);
+            if (request.getMethod().equals("GET")) {
+              return null;
+            }
+            // The first retry fails too
+            int port = attempt == 1 ? deadBackendPort : backendPort;
+            return "http://localhost:" + port + request.getRequestURI();
+          }
+        };
+    ProxyServer proxyServer = new ProxyServer(config, failoverHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setEntity(new StringEntity(requestBody));
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(EntityUtils.toString(response.getEntity()), mockResponseText);
+      assertEquals(backend.takeRequest().getUtf8Body(), requestBody);
+      assertEquals(attempts.poll(), Integer.valueOf(1));
+      assertEquals(attempts.poll(), Integer.valueOf(2));
+      assertNull(attempts.poll());
+
+      // Declined retries fail as before
+      response = httpclient.execute(new HttpGet("http://localhost:" + serverPort + "/v1/query"));
+      EntityUtils.consume(response.getEntity());
+      assertEquals(response.getStatusLine().getStatusCode(), 502);
+      assertEquals(attempts.poll(), Integer.valueOf(1));
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testRetryRequestIsCustomized() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("RETRIED"));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    int deadBackendPort = backendPort + 2;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    ProxyHandler failoverHandler =
+        new ProxyHandler(backendPort) {
+          @Override
+          protected String rewriteTarget(HttpServletRequest request) {
+            return "http://localhost:" + deadBackendPort + request.getRequestURI();
+          }
+
+          @Override
+          public String rewriteTargetOnConnectFailure(
+              HttpServletRequest request, Throwable failure, int attempt) {
+            return "http://localhost:" + backendPort + request.getRequestURI();
+          }
+
+          @Override
+          public void customizeProxyRequest(HttpServletRequest request, Request proxyRequest) {
+            proxyRequest.getHeaders().remove("Accept-Encoding");
+          }
+        };
+    ProxyServer proxyServer = new ProxyServer(config, failoverHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setHeader("Accept-Encoding", "gzip");
+      httpPost.setEntity(new StringEntity("SELECT 1"));
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(EntityUtils.toString(response.getEntity()), "RETRIED");
+      RecordedRequest retried = backend.takeRequest();
+      assertEquals(retried.getUtf8Body(), "SELECT 1");
+      assertNull(retried.getHeader("Accept-Encoding"));
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testNoBackendAvailable() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    ProxyHandler noBackendHandler =
+        new ProxyHandler(backendPort) {
+          @Override
+          protected String rewriteTarget(HttpServletRequest request) {
+            throw new NoBackendAvailableException(404, "Query not found");
+          }
+        };
+    ProxyServer proxyServer = new ProxyServer(config, noBackendHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpResponse response = httpclient.execute(
+          new HttpGet("http://localhost:" + serverPort + "/v1/statement/q1/1"));
+      EntityUtils.consume(response.getEntity());
+      assertEquals(response.getStatusLine().getStatusCode(), 404);
+      assertEquals(backend.getRequestCount(), 0);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
   private ProxyServerConfiguration buildConfig(String backendUrl, int localPort) {
     ProxyServerConfiguration config = new ProxyServerConfiguration();
     config.setName("MockBackend");
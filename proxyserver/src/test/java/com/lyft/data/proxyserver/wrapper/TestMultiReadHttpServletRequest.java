@@ -0,0 +1,103 @@
+package com.lyft.data.proxyserver.wrapper;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.testng.annotations.Test;
+
+public class TestMultiReadHttpServletRequest {
+
+  @Test
+  public void testExactContentLengthIsNotGrown() throws Exception {
+    // A multiple of 1024, the pool hands out exactly that capacity
+    byte[] body = new byte[128 * 1024];
+    Arrays.fill(body, (byte) 'x');
+    RecordingPool pool = new RecordingPool();
+
+    MultiReadHttpServletRequest request =
+        new MultiReadHttpServletRequest(request(body, body.length), true, pool);
+
+    assertEquals(pool.acquired, Arrays.asList(body.length));
+    assertEquals(BufferUtil.toArray(request.getContentBuffer()), body);
+    request.release();
+  }
+
+  @Test
+  public void testUnknownLengthGrows() throws Exception {
+    byte[] body = "SELECT 1 UNION ALL SELECT 2".getBytes(StandardCharsets.UTF_8);
+    byte[] large = new byte[10000];
+    System.arraycopy(body, 0, large, 0, body.length);
+    RecordingPool pool = new RecordingPool();
+
+    MultiReadHttpServletRequest request =
+        new MultiReadHttpServletRequest(request(large, -1), true, pool);
+
+    assertEquals(pool.acquired, Arrays.asList(4096, 8192, 16384));
+    assertEquals(BufferUtil.toArray(request.getContentBuffer()), large);
+    request.release();
+  }
+
+  private static HttpServletRequest request(byte[] body, int contentLength) {
+    ByteArrayInputStream in = new ByteArrayInputStream(body);
+    ServletInputStream servletIn = new ServletInputStream() {
+      @Override
+      public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {}
+
+      @Override
+      public int read() {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+        return in.read(bytes, offset, length);
+      }
+    };
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        TestMultiReadHttpServletRequest.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getContentLength":
+              return contentLength;
+            case "getInputStream":
+              return servletIn;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static class RecordingPool extends ArrayByteBufferPool {
+    private final List<Integer> acquired = new ArrayList<>();
+
+    @Override
+    public ByteBuffer acquire(int size, boolean direct) {
+      acquired.add(size);
+      return super.acquire(size, direct);
+    }
+  }
+}